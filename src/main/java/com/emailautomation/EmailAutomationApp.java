@@ -2,14 +2,54 @@ package com.emailautomation;
 
 import com.emailautomation.services.*;
 import com.emailautomation.models.*;
+import com.emailautomation.server.SubmissionServer;
 import com.emailautomation.utils.*;
-import java.util.logging.Logger;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.mail.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Simple email sending application
  */
 public class EmailAutomationApp {
-    private static final Logger logger = Logger.getLogger(EmailAutomationApp.class.getName());
+    private static final Logger logger = LoggerFactory.getLogger(EmailAutomationApp.class);
+
+    // Upper bound for keeping the process alive while a dialog is still on screen
+    private static final Duration NOTIFICATION_MAX_WAIT = Duration.ofSeconds(2);
+
+    // How often batch runs post a "N sent, M failed" summary
+    private static final Duration BATCH_SUMMARY_INTERVAL = Duration.ofSeconds(30);
+
+    private static final int DEFAULT_API_PORT = 8787;
+    private static final int SENDER_THREADS = 4;
+    // Share of the heap that messages being built and sent may take up
+    private static final double MEMORY_BUDGET_HEAP_FRACTION = 0.5;
+    private static final long SCHEDULER_TICK_MILLIS = 100;
+    // Batch mode reads param files in chunks of this many, the next chunk
+    // loading while the current one is queued for sending
+    private static final int BATCH_LOAD_CHUNK = 1024;
+
+    // Spool mode: how long a silent node keeps its claimed messages, how
+    // many messages one node claims ahead, and how often an empty spool is polled
+    private static final Duration SPOOL_LEASE_TIMEOUT = Duration.ofSeconds(60);
+    private static final int SPOOL_CLAIM_AHEAD = 32;
+    private static final long SPOOL_POLL_MILLIS = 1000;
 
     private final EmailService emailService;
     private final NotificationService notificationService;
@@ -29,88 +69,621 @@ public class EmailAutomationApp {
     private void run(String[] args) {
         if (args.length == 0) {
             showUsageError();
-            System.exit(1);
+            exit(1);
+        }
+
+        if ("--cds-training".equals(args[0])) {
+            runCdsTraining();
+            return;
+        }
+
+        if ("--cds-setup".equals(args[0])) {
+            runCdsSetup();
+            return;
+        }
+
+        if ("--serve".equals(args[0])) {
+            runServer(args);
+            return;
+        }
+
+        if ("--spool".equals(args[0])) {
+            runSpool(args);
+            return;
+        }
+
+        if ("--compile-bundle".equals(args[0])) {
+            runCompileBundle(args);
+            return;
+        }
+
+        if ("--dry-run".equals(args[0])) {
+            runDryRun(args);
+            return;
+        }
+
+        if ("--archive-get".equals(args[0])) {
+            runArchiveGet(args);
+            return;
         }
 
+        if ("--bounces".equals(args[0])) {
+            runBounces(args);
+            return;
+        }
+
+        if (args.length > 1) {
+            runBatch(args);
+            return;
+        }
+
+        // Start connecting to the SMTP server as soon as its settings are
+        // known, so the handshake overlaps with loading and encoding
+        AtomicReference<CompletableFuture<Transport>> connection = new AtomicReference<>();
         try {
             String paramFile = args[0];
+            EmailConfig config = loadParamFile(paramFile, settings -> {
+                if (!settings.isDeferred() && settings.getSmtpServer() != null) {
+                    connection.set(emailService.connectAsync(settings));
+                }
+            });
+
+            // A single run has nowhere to hand a deferred message to, so it waits
+            if (config.isDeferred()) {
+                logger.info("Waiting until {} to send {}", config.getSendAt(), paramFile);
+                Thread.sleep(Math.max(0, config.getSendAt().toEpochMilli() - System.currentTimeMillis()));
+            }
 
-            logger.info("Loading email configuration from: " + paramFile);
+            sendParamFile(paramFile, config, connection.get());
+            notificationService.showSuccess("Email sent successfully!");
 
-            // Load email configuration
-            EmailConfig config = EmailConfigLoader.loadFromFile(paramFile);
+            // Wait for the notification to be shown, then force exit
+            exit(0);
 
-            // Validate configuration
-            if (!config.isValid()) {
-                String error = "Invalid email configuration: " + config.getValidationErrors();
-                logService.logError("filesendlist.log", error, config);
-                logService.logError("sentlast.log", error, config);
-                notificationService.showError("Email configuration error!");
-                System.exit(1);
+        } catch (InvalidConfigException e) {
+            discardConnection(connection.get());
+            notificationService.showError("Email configuration error!");
+            exit(1);
+        } catch (Exception e) {
+            // Building the message may fail before the early connection is used
+            discardConnection(connection.get());
+            logger.error("Error sending email: {}", e.getMessage());
+            e.printStackTrace(); // This will show the full error stack trace
+            notificationService.showError("Email sending failed: " + e.getMessage());
+            exit(1);
+        }
+    }
+
+    /**
+     * Close an early SMTP connection that may not have been used. Closing
+     * one that delivery already closed does nothing.
+     */
+    private static void discardConnection(CompletableFuture<Transport> connection) {
+        if (connection != null) {
+            EmailService.discard(connection);
+        }
+    }
+
+    /**
+     * Send several param files in one JVM through the staged pipeline, so
+     * loading, rendering and SMTP delivery of different files overlap.
+     * Per-email notifications are coalesced into periodic summaries instead
+     * of one popup per message. Files with a future send_at are held in a
+     * timing wheel and resubmitted when due; they stay on disk until then,
+     * so re-running the batch resumes.
+     */
+    private void runBatch(String[] paramFiles) {
+        NotificationAggregator aggregator = new NotificationAggregator(notificationService, BATCH_SUMMARY_INTERVAL);
+        EmailDispatcher dispatcher = new EmailDispatcher(emailService, logService, aggregator, SENDER_THREADS,
+                MemoryBudget.ofHeapFraction(MEMORY_BUDGET_HEAP_FRACTION));
+        BlockingQueue<String> released = new LinkedBlockingQueue<>();
+        TimingWheel<String> wheel = new TimingWheel<>(SCHEDULER_TICK_MILLIS, released::add);
+        AtomicInteger deferred = new AtomicInteger();
+
+        Function<String, Consumer<EmailConfig>> deferral = paramFile -> config -> {
+            logger.info("Holding {} until {}", paramFile, config.getSendAt());
+            deferred.incrementAndGet();
+            wheel.schedule(config.getSendAt().toEpochMilli(), paramFile);
+        };
+        List<String> files = List.of(paramFiles);
+        CompletableFuture<Map<String, EmailConfig>> nextChunk = loadChunk(files, 0);
+        for (int from = 0; from < files.size(); from += BATCH_LOAD_CHUNK) {
+            Map<String, EmailConfig> loaded = nextChunk.join();
+            nextChunk = loadChunk(files, from + BATCH_LOAD_CHUNK);
+            for (String paramFile : files.subList(from, Math.min(from + BATCH_LOAD_CHUNK, files.size()))) {
+                EmailConfig config = loaded.get(paramFile);
+                if (config != null) {
+                    dispatcher.submitLoaded(paramFile, config, sent -> cleanUpParamFile(paramFile, sent),
+                            deferral.apply(paramFile));
+                } else {
+                    // Could not be read in bulk; the pipeline loads it again and reports why
+                    dispatcher.submitParamFile(paramFile, sent -> cleanUpParamFile(paramFile, sent),
+                            deferral.apply(paramFile));
+                }
             }
+        }
 
-            logger.info("Sending email to: " + String.join(",", config.getTo()));
-            if (config.isDebug()) {
-                logger.info("Debug mode is ON - files will be preserved");
+        try {
+            // Deferrals are recorded before a job completes, so once the
+            // pipeline is idle the counter is exact
+            while (true) {
+                dispatcher.awaitIdle();
+                if (deferred.get() == 0) {
+                    break;
+                }
+                String paramFile = released.take();
+                deferred.decrementAndGet();
+                dispatcher.submitParamFile(paramFile, config -> cleanUpParamFile(paramFile, config), deferral.apply(paramFile));
             }
+            dispatcher.shutdown(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        wheel.close();
 
-            // Send email via SMTP
-            emailService.sendViaSMTP(config);
+        aggregator.close();
+        logger.info("Batch finished: {} sent, {} failed", aggregator.getTotalSent(), aggregator.getTotalFailed());
+        exit(aggregator.getTotalFailed() == 0 ? 0 : 1);
+    }
 
-            logService.logSuccess("filesendlist.log", "Email sent successfully", config);
-            logService.logSuccess("sentlast.log", "Email sent successfully", config);
-            notificationService.showSuccess("Email sent successfully!");
+    /**
+     * Read the chunk of {@code files} starting at {@code from} in the background
+     */
+    private static CompletableFuture<Map<String, EmailConfig>> loadChunk(List<String> files, int from) {
+        if (from >= files.size()) {
+            return CompletableFuture.completedFuture(Map.of());
+        }
+        List<String> chunk = files.subList(from, Math.min(from + BATCH_LOAD_CHUNK, files.size()));
+        return CompletableFuture.supplyAsync(() -> EmailConfigLoader.loadAll(chunk));
+    }
 
-            // Wait a bit to ensure notification is displayed
-            try {
-                Thread.sleep(2000); // 2 seconds
-            } catch (InterruptedException e) {
-                // Ignore
-            }
+    /**
+     * Daemon mode: accept emails over the local HTTP API and send them from
+     * this JVM. Runs until the process is stopped. Messages with a future
+     * send_at are journaled next to the defaults file and survive restarts.
+     * Clients authenticate with the token in api.token next to it.
+     */
+    private void runServer(String[] args) {
+        if (args.length < 2) {
+            showUsageError();
+            exit(1);
+        }
+
+        try {
+            EmailConfig defaults = EmailConfigLoader.loadFromFile(args[1]);
+            int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_API_PORT;
+            Path stateDir = Paths.get(args[1]).toAbsolutePath().getParent();
+            Path uploadDir = stateDir.resolve("uploads");
+
+            NotificationAggregator aggregator = new NotificationAggregator(notificationService, BATCH_SUMMARY_INTERVAL);
+            EmailDispatcher dispatcher = new EmailDispatcher(emailService, logService, aggregator, SENDER_THREADS,
+                    MemoryBudget.ofHeapFraction(MEMORY_BUDGET_HEAP_FRACTION));
+            SendScheduler scheduler = new SendScheduler(stateDir.resolve("schedule.journal"), defaults,
+                    (config, done) -> dispatcher.submit(config, () -> {
+                        done.run();
+                        SubmissionServer.discardUploads(uploadDir, config.getMessageId());
+                    }));
+            String token = SubmissionServer.loadOrCreateToken(stateDir.resolve("api.token"));
+            SubmissionServer server = new SubmissionServer(port, defaults, token, dispatcher, scheduler, uploadDir);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                logger.info("Shutting down submission API");
+                server.stop();
+                // Stop releasing due messages before the pipeline stops taking them
+                try {
+                    scheduler.close();
+                } catch (IOException e) {
+                    logger.warn("Could not close schedule journal: {}", e.getMessage());
+                }
+                try {
+                    dispatcher.shutdown(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                aggregator.close();
+            }, "shutdown"));
+
+            server.start();
+        } catch (Exception e) {
+            logger.error("Could not start submission API: {}", e.getMessage());
+            notificationService.showError("Could not start submission API: " + e.getMessage());
+            exit(1);
+        }
+    }
+
+    /**
+     * Spool mode: keep sending the .prm param files dropped into a directory
+     * that several nodes may share. Each node claims files by atomic rename
+     * (see SpoolDirectory), so adding nodes adds throughput without double
+     * sends. A node claims only as many files as its pipeline has room for,
+     * leaving the rest to the others. Runs until the process is stopped;
+     * unsent files then go back to the spool.
+     */
+    private void runSpool(String[] args) {
+        if (args.length < 2) {
+            showUsageError();
+            exit(1);
+        }
+
+        try {
+            String nodeId = args.length > 2 ? args[2]
+                    : java.net.InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+            SpoolDirectory spool = new SpoolDirectory(Paths.get(args[1]), nodeId, SPOOL_LEASE_TIMEOUT);
+            NotificationAggregator aggregator = new NotificationAggregator(notificationService, BATCH_SUMMARY_INTERVAL);
+            EmailDispatcher dispatcher = new EmailDispatcher(emailService, logService, aggregator, SENDER_THREADS,
+                    MemoryBudget.ofHeapFraction(MEMORY_BUDGET_HEAP_FRACTION));
+            Semaphore room = new Semaphore(SPOOL_CLAIM_AHEAD);
+            AtomicReference<TimingWheel<String>> wheelRef = new AtomicReference<>();
+            TimingWheel<String> wheel = new TimingWheel<>(SCHEDULER_TICK_MILLIS, paramFile -> {
+                room.acquireUninterruptibly();
+                submitSpooled(dispatcher, spool, room, paramFile, null, wheelRef.get());
+            });
+            wheelRef.set(wheel);
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread main = Thread.currentThread();
 
-            // Delete parameter file only if debug=false
-            if (!config.isDebug()) {
-                FileUtils.deleteFile(paramFile);
-                logger.info("Parameter file deleted: " + paramFile);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                logger.info("Stopping spool node {}", nodeId);
+                running.set(false);
+                main.interrupt();
+                try {
+                    main.join();
+                    wheel.close();
+                    dispatcher.shutdown(30, TimeUnit.SECONDS);
+                    spool.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    logger.warn("Could not return unsent files to the spool: {}", e.getMessage());
+                }
+                aggregator.close();
+            }, "shutdown"));
 
-                // Also delete associated files
-                String baseFileName = paramFile.replaceAll("\\.[^.]+$", "");
-                deleteIfExists(baseFileName + ".txt");
-                deleteIfExists(baseFileName + ".html");
-                deleteIfExists(baseFileName + ".list");
+            logger.info("Node {} processing spool {}", nodeId, args[1]);
+            while (running.get()) {
+                try {
+                    // Wait for room before claiming, so files stay available to idle nodes
+                    room.acquire();
+                    List<String> claimed;
+                    try {
+                        claimed = spool.claim(room.availablePermits() + 1);
+                    } catch (IOException e) {
+                        logger.warn("Could not read spool {}: {}", args[1], e.getMessage());
+                        claimed = List.of();
+                    }
+                    room.release();
+                    if (claimed.isEmpty()) {
+                        Thread.sleep(SPOOL_POLL_MILLIS);
+                        continue;
+                    }
+                    // Read the claimed files in bulk, the next chunk while this one is queued
+                    CompletableFuture<Map<String, EmailConfig>> nextChunk = loadChunk(claimed, 0);
+                    for (int from = 0; from < claimed.size(); from += BATCH_LOAD_CHUNK) {
+                        Map<String, EmailConfig> loaded = nextChunk.join();
+                        nextChunk = loadChunk(claimed, from + BATCH_LOAD_CHUNK);
+                        for (String paramFile : claimed.subList(from, Math.min(from + BATCH_LOAD_CHUNK, claimed.size()))) {
+                            room.acquire();
+                            submitSpooled(dispatcher, spool, room, paramFile, loaded.get(paramFile), wheel);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IllegalStateException e) {
+                    // Interrupted while queueing; the claimed file goes back to the spool on close
+                    if (running.get()) {
+                        throw e;
+                    }
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Spool processing failed: {}", e.getMessage());
+            notificationService.showError("Spool processing failed: " + e.getMessage());
+            exit(1);
+        }
+    }
+
+    /**
+     * Send one claimed spool file, already read into {@code loaded} or, if
+     * that is null, read in the pipeline. A permit of {@code room} must be
+     * held; it is returned when the file has been sent, failed or was
+     * deferred. Deferred files stay claimed by this node and wait in {@code wheel}.
+     */
+    private void submitSpooled(EmailDispatcher dispatcher, SpoolDirectory spool, Semaphore room, String paramFile,
+                               EmailConfig loaded, TimingWheel<String> wheel) {
+        AtomicBoolean handled = new AtomicBoolean();
+        Consumer<EmailConfig> onSent = config -> {
+            handled.set(true);
+            if (config.isDebug()) {
+                spool.keep(paramFile);
             } else {
-                logger.info("Debug mode: keeping all files");
+                spool.complete(paramFile);
+            }
+        };
+        Consumer<EmailConfig> onDeferred = config -> {
+            handled.set(true);
+            logger.info("Holding {} until {}", paramFile, config.getSendAt());
+            wheel.schedule(config.getSendAt().toEpochMilli(), paramFile);
+        };
+        Runnable afterSend = () -> {
+            if (!handled.get()) {
+                spool.fail(paramFile);
             }
+            room.release();
+        };
+        if (loaded != null) {
+            dispatcher.submitLoaded(paramFile, loaded, onSent, onDeferred, afterSend);
+        } else {
+            // Not read yet, or could not be read in bulk; the pipeline loads it and reports why
+            dispatcher.submitParamFile(paramFile, onSent, onDeferred, afterSend);
+        }
+    }
 
-            // Clean up notification service to allow exit
-            notificationService.cleanup();
+    /**
+     * Read new bounces and read receipts from a mailbox (IMAP URL, maildir or
+     * mbox) and apply them to the suppression list and filesendlist.log
+     * files. The state directory holds sent.index, suppression.list and the
+     * sync checkpoint; it defaults to the current directory. Sends record
+     * sent.index only when their param file points sent_index at it.
+     */
+    private void runBounces(String[] args) {
+        if (args.length < 2) {
+            showUsageError();
+            exit(1);
+        }
 
-            // Force exit
+        try {
+            Path stateDir = args.length > 2 ? Paths.get(args[2]) : Paths.get("");
+            BounceProcessor processor = new BounceProcessor(logService,
+                    new SentIndex(stateDir.resolve("sent.index")),
+                    new SuppressionList(stateDir.resolve("suppression.list")));
+            processor.sync(args[1], stateDir.resolve("bounces.checkpoint"));
             System.exit(0);
+        } catch (Exception e) {
+            logger.error("Bounce processing failed: {}", e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compile the html_template, signature_file and logo_path of a param file
+     * into a template bundle that param files then name with template_bundle
+     */
+    private void runCompileBundle(String[] args) {
+        if (args.length < 3) {
+            showUsageError();
+            exit(1);
+        }
 
+        try {
+            TemplateBundle.compile(EmailConfigLoader.loadFromFile(args[1]), Paths.get(args[2]));
+            System.exit(0);
         } catch (Exception e) {
-            logger.severe("Error sending email: " + e.getMessage());
-            e.printStackTrace(); // This will show the full error stack trace
-            notificationService.showError("Email sending failed: " + e.getMessage());
-            notificationService.cleanup();
+            logger.error("Could not compile template bundle: {}", e.getMessage());
             System.exit(1);
         }
     }
 
-    private void showUsageError() {
-        String usage = "Usage: java -jar email-automation.jar <param-file>\n" +
-                "Example: java -jar email-automation.jar email-config.txt";
-        notificationService.showError(usage, 5);
+    /**
+     * Load, render, assemble and serialize param files without sending them,
+     * then report throughput, allocation and the time per stage. Options:
+     * --repeat N builds every file N times, --threads N sets the worker
+     * count (default: all cores), --per-recipient builds one message per
+     * recipient as a mail merge does.
+     */
+    private void runDryRun(String[] args) {
+        int repeat = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean perRecipient = false;
+        List<String> paramFiles = new java.util.ArrayList<>();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--repeat":
+                        repeat = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--per-recipient":
+                        perRecipient = true;
+                        break;
+                    default:
+                        paramFiles.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            paramFiles.clear();
+        }
+        if (paramFiles.isEmpty()) {
+            showUsageError();
+            exit(1);
+        }
+
+        try {
+            long failed = new DryRun(emailService, threads).run(paramFiles, repeat, perRecipient);
+            System.exit(failed == 0 ? 0 : 1);
+        } catch (Exception e) {
+            logger.error("Dry run failed: {}", e.getMessage());
+            System.exit(1);
+        }
     }
 
-    private void deleteIfExists(String filePath) {
+    /**
+     * Write one message from a sent-mail archive as an .eml file, or to
+     * standard output when no file is given
+     */
+    private void runArchiveGet(String[] args) {
+        if (args.length < 3) {
+            showUsageError();
+            exit(1);
+        }
+
+        try (java.io.OutputStream out = args.length > 3
+                ? java.nio.file.Files.newOutputStream(Paths.get(args[3]))
+                : new java.io.FileOutputStream(java.io.FileDescriptor.out)) {
+            if (!SentArchive.openForReading(args[1]).retrieve(args[2], out)) {
+                logger.error("Message {} is not in the archive", args[2]);
+                System.exit(1);
+            }
+            out.flush();
+            System.exit(0);
+        } catch (Exception e) {
+            logger.error("Could not read archived message: {}", e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Load and validate a single param file
+     */
+    private EmailConfig loadParamFile(String paramFile, Consumer<EmailConfig> onParamsRead)
+            throws IOException, InvalidConfigException {
+        logger.info("Loading email configuration from: {}", paramFile);
+
+        // Load email configuration
+        EmailConfig config = EmailConfigLoader.loadFromFile(paramFile, onParamsRead);
+
+        // Validate configuration
+        if (!config.isValid()) {
+            String error = "Invalid email configuration: " + config.getValidationErrors();
+            logService.logError("filesendlist.log", error, config);
+            logService.logError("sentlast.log", error, config);
+            throw new InvalidConfigException(error);
+        }
+        return config;
+    }
+
+    /**
+     * Send a loaded param file, then write the log entries and clean up the
+     * spool files.
+     */
+    private void sendParamFile(String paramFile, EmailConfig config, CompletableFuture<Transport> connection)
+            throws Exception {
+        if (logger.isInfoEnabled()) {
+            logger.info("Sending email to: {}", String.join(",", config.getTo()));
+        }
+        if (config.isDebug()) {
+            logger.info("Debug mode is ON - files will be preserved");
+        }
+
+        // Our own Message-ID lets later bounces and read receipts be matched up
+        if (config.getMessageId() == null) {
+            config = config.withMessageId(EmailDispatcher.newMessageId());
+        }
+
+        // Send email via SMTP, over the early connection when there is one
+        if (connection != null) {
+            emailService.sendViaSMTP(config, connection);
+        } else {
+            emailService.sendViaSMTP(config);
+        }
+
+        logService.logSuccess("filesendlist.log", "Email sent successfully", config);
+        logService.logSuccess("sentlast.log", "Email sent successfully", config);
+        logService.recordSent(config);
+
+        cleanUpParamFile(paramFile, config);
+    }
+
+    /**
+     * Delete a sent param file and its sibling files, unless debug is on
+     */
+    private void cleanUpParamFile(String paramFile, EmailConfig config) {
+        // Delete parameter file only if debug=false
+        if (!config.isDebug()) {
+            // Also deletes the associated files, once even if cleanups race
+            SpoolDirectory.remove(paramFile);
+        } else {
+            logger.info("Debug mode: keeping all files");
+        }
+    }
+
+    /**
+     * Exit as soon as pending notifications are on screen instead of sleeping
+     * for a fixed time. Headless runs exit immediately.
+     */
+    private void exit(int status) {
+        notificationService.awaitDelivery(NOTIFICATION_MAX_WAIT);
+        notificationService.cleanup();
+        System.exit(status);
+    }
+
+    /**
+     * Dump the AppCDS archive next to the jar, where the launcher looks for
+     * it. Run once after installing or updating: the JVM only accepts an
+     * archive whose classpath jar has the same path, size and modification
+     * time as when it was dumped, so it cannot be built ahead of time.
+     */
+    private void runCdsSetup() {
         try {
-            if (FileUtils.fileExists(filePath)) {
-                FileUtils.deleteFile(filePath);
-                logger.info("Deleted: " + filePath);
+            Path jar = Paths.get(EmailAutomationApp.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            Path archive = jar.resolveSibling("EmailAutomation.jsa");
+            Process training = new ProcessBuilder(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-XX:ArchiveClassesAtExit=" + archive,
+                    "-Djava.awt.headless=true",
+                    "-cp", jar.toString(),
+                    EmailAutomationApp.class.getName(),
+                    "--cds-training")
+                    .inheritIO()
+                    .start();
+            int status = training.waitFor();
+            if (status == 0) {
+                logger.info("CDS archive written to {}", archive);
             }
+            System.exit(status);
         } catch (Exception e) {
-            logger.warning("Could not delete " + filePath + ": " + e.getMessage());
+            logger.error("CDS setup failed: {}", e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Training run for the AppCDS archive: loads the mail classes without
+     * sending anything. Started by --cds-setup with -XX:ArchiveClassesAtExit.
+     */
+    private void runCdsTraining() {
+        try {
+            // Parse a throwaway param file so the loader and charsets are archived too
+            java.nio.file.Path sample = java.nio.file.Files.createTempFile("cds-training", ".prm");
+            try {
+                java.nio.file.Files.writeString(sample, "smtp_server=localhost\nport=25\nto=warmup@localhost\n");
+                EmailConfigLoader.loadFromFile(sample.toString());
+            } finally {
+                java.nio.file.Files.deleteIfExists(sample);
+            }
+
+            emailService.warmUp();
+            logger.info("CDS training run completed");
+            System.exit(0);
+        } catch (Exception e) {
+            logger.error("CDS training run failed: {}", e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void showUsageError() {
+        String usage = "Usage: java -jar email-automation.jar <param-file> [<param-file> ...]\n" +
+                "       java -jar email-automation.jar --serve <defaults-param-file> [port]\n" +
+                "       java -jar email-automation.jar --spool <spool-dir> [node-id]\n" +
+                "       java -jar email-automation.jar --compile-bundle <branding-param-file> <bundle-file>\n" +
+                "       java -jar email-automation.jar --dry-run [--repeat N] [--threads N] [--per-recipient] <param-file> ...\n" +
+                "       java -jar email-automation.jar --archive-get <archive-dir> <message-id> [eml-file]\n" +
+                "       java -jar email-automation.jar --bounces <imap-url|maildir|mbox> [state-dir]\n" +
+                "       java -jar email-automation.jar --cds-setup\n" +
+                "Example: java -jar email-automation.jar email-config.txt";
+        notificationService.showError(usage, 5);
+    }
+
+    /**
+     * Raised when a param file loads but does not describe a sendable email
+     */
+    private static class InvalidConfigException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        InvalidConfigException(String message) {
+            super(message);
         }
     }
 }
\ No newline at end of file
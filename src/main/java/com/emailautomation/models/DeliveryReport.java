@@ -0,0 +1,52 @@
+package com.emailautomation.models;
+
+/**
+ * Outcome for one recipient of a sent message, taken from a delivery status
+ * notification (DSN, RFC 3464) or a read receipt (MDN, RFC 8098).
+ */
+public class DeliveryReport {
+
+    public enum Kind {
+        HARD_BOUNCE("BOUNCED"),   // permanent failure, the address is suppressed
+        SOFT_BOUNCE("BOUNCED"),   // failed with a transient status
+        DELAYED("DELAYED"),
+        DELIVERED("DELIVERED"),
+        READ("READ");
+
+        private final String logStatus;
+
+        Kind(String logStatus) {
+            this.logStatus = logStatus;
+        }
+
+        /**
+         * Status column written to filesendlist.log
+         */
+        public String getLogStatus() { return logStatus; }
+    }
+
+    private final String messageId;   // our Message-ID local part, null if the report did not carry one
+    private final String recipient;
+    private final Kind kind;
+    private final String status;      // DSN status code (5.1.1) or MDN disposition
+    private final String diagnostic;
+
+    public DeliveryReport(String messageId, String recipient, Kind kind, String status, String diagnostic) {
+        this.messageId = messageId;
+        this.recipient = recipient;
+        this.kind = kind;
+        this.status = status;
+        this.diagnostic = diagnostic;
+    }
+
+    public String getMessageId() { return messageId; }
+    public String getRecipient() { return recipient; }
+    public Kind getKind() { return kind; }
+    public String getStatus() { return status; }
+    public String getDiagnostic() { return diagnostic; }
+
+    @Override
+    public String toString() {
+        return kind + " " + recipient + " (" + status + ") for " + messageId;
+    }
+}
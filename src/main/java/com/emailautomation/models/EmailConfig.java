@@ -1,39 +1,84 @@
 package com.emailautomation.models;
 
+import java.time.Instant;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.RandomAccess;
 import java.util.StringJoiner;
 
 /**
- * Email configuration model with builder pattern and validation
+ * Email configuration model with builder pattern and validation.
+ *
+ * Instances are immutable. Recipient and attachment lists are stored as
+ * compact array-backed read-only lists and returned without copying, so
+ * configs (or overlays derived from a shared base with the with* methods)
+ * can be passed around a batch freely.
  */
 public class EmailConfig {
-    private String smtpServer;
-    private int port;
-    private String user;
-    private String password;
-    private String from;
-    private List<String> to;
-    private List<String> bcc;
-    private String attachmentPath;
-    private String attachmentName;
-    private List<String> attachmentPaths;  // New field for multiple attachments
-    private String subject;
-    private String body;
-    private boolean useTLS;
-    private String logoPath;  // New field for logo/image
-    private boolean useHtml;  // New field for HTML format
-    private String signatureFile;  // New field for signature file
-    private boolean debug;  // New field for debug mode
-    private String replyTo;  // New field for reply-to address
-    private boolean readReceipt;  // New field for read receipt
-    private String teamName;  // New field for team name
-    private String htmlTemplate;  // New field for HTML template path
-
-    private EmailConfig() {
-        this.to = new ArrayList<>();
-        this.bcc = new ArrayList<>();
-        this.attachmentPaths = new ArrayList<>();
+    private final String smtpServer;
+    private final int port;
+    private final String user;
+    private final String password;
+    private final String from;
+    private final List<String> to;
+    private final List<String> bcc;
+    private final String attachmentPath;
+    private final String attachmentName;
+    private final List<String> attachmentPaths;  // New field for multiple attachments
+    private final String subject;
+    private final String body;
+    private final boolean useTLS;
+    private final String logoPath;  // New field for logo/image
+    private final boolean useHtml;  // New field for HTML format
+    private final String signatureFile;  // New field for signature file
+    private final boolean debug;  // New field for debug mode
+    private final String replyTo;  // New field for reply-to address
+    private final boolean readReceipt;  // New field for read receipt
+    private final String teamName;  // New field for team name
+    private final String htmlTemplate;  // New field for HTML template path
+    private final String messageId;  // Message-ID local part, used to correlate replies and bounces
+    private final Instant sendAt;  // Deferred send time, null means send now
+    private final String dkimSelector;  // DKIM selector, signing is off when not set
+    private final String dkimKey;  // Path to the PKCS#8 private key for the From domain
+    private final int compressOverKb;  // Zip attachments bigger than this, 0 means never
+    private final Priority priority;  // Sending lane, transactional mail goes HIGH
+    private final String templateBundle;  // Precompiled template, logo and signature; replaces htmlTemplate
+    private final String archiveDir;  // Sent-mail archive directory, no archive when not set
+    private final String sentIndex;  // Sent index for matching bounces, none kept when not set
+
+    private EmailConfig(Builder builder) {
+        this.smtpServer = builder.smtpServer;
+        this.port = builder.port;
+        this.user = builder.user;
+        this.password = builder.password;
+        this.from = builder.from;
+        this.to = StringList.of(builder.to);
+        this.bcc = StringList.of(builder.bcc);
+        this.attachmentPath = builder.attachmentPath;
+        this.attachmentName = builder.attachmentName;
+        this.attachmentPaths = StringList.of(builder.attachmentPaths);
+        this.subject = builder.subject;
+        this.body = builder.body;
+        this.useTLS = builder.useTLS;
+        this.logoPath = builder.logoPath;
+        this.useHtml = builder.useHtml;
+        this.signatureFile = builder.signatureFile;
+        this.debug = builder.debug;
+        this.replyTo = builder.replyTo;
+        this.readReceipt = builder.readReceipt;
+        this.teamName = builder.teamName;
+        this.htmlTemplate = builder.htmlTemplate;
+        this.messageId = builder.messageId;
+        this.sendAt = builder.sendAt;
+        this.dkimSelector = builder.dkimSelector;
+        this.dkimKey = builder.dkimKey;
+        this.compressOverKb = builder.compressOverKb;
+        this.priority = builder.priority;
+        this.templateBundle = builder.templateBundle;
+        this.archiveDir = builder.archiveDir;
+        this.sentIndex = builder.sentIndex;
     }
 
     public static Builder builder() {
@@ -76,11 +121,11 @@ public class EmailConfig {
     public String getUser() { return user; }
     public String getPassword() { return password; }
     public String getFrom() { return from != null ? from : user; }
-    public List<String> getTo() { return new ArrayList<>(to); }
-    public List<String> getBcc() { return new ArrayList<>(bcc); }
+    public List<String> getTo() { return to; }
+    public List<String> getBcc() { return bcc; }
     public String getAttachmentPath() { return attachmentPath; }
     public String getAttachmentName() { return attachmentName; }
-    public List<String> getAttachmentPaths() { return new ArrayList<>(attachmentPaths); }
+    public List<String> getAttachmentPaths() { return attachmentPaths; }
     public String getSubject() { return subject != null ? subject : ""; }
     public String getBody() { return body != null ? body : ""; }
     public boolean isUseTLS() { return useTLS; }
@@ -92,6 +137,46 @@ public class EmailConfig {
     public boolean isReadReceipt() { return readReceipt; }  // New getter
     public String getTeamName() { return teamName != null ? teamName : "Team"; }  // New getter
     public String getHtmlTemplate() { return htmlTemplate; }  // New getter
+    public String getMessageId() { return messageId; }
+    public Instant getSendAt() { return sendAt; }
+    public String getDkimSelector() { return dkimSelector; }
+    public String getDkimKey() { return dkimKey; }
+    public int getCompressOverKb() { return compressOverKb; }
+    public Priority getPriority() { return priority; }
+    public String getTemplateBundle() { return templateBundle; }
+    public String getArchiveDir() { return archiveDir; }
+    public String getSentIndex() { return sentIndex; }
+
+    // As set, without the fallbacks of the getters above, for persisting a config
+    public String getRawFrom() { return from; }
+    public String getRawSubject() { return subject; }
+    public String getRawBody() { return body; }
+    public String getRawTeamName() { return teamName; }
+
+    /**
+     * Whether outgoing messages are DKIM signed
+     */
+    public boolean isDkimEnabled() {
+        return dkimSelector != null && !dkimSelector.isEmpty() && dkimKey != null && !dkimKey.isEmpty();
+    }
+
+    /**
+     * Attachments to send: the .list file's paths, or else the single
+     * attachment from the param file
+     */
+    public List<String> getAllAttachmentPaths() {
+        if (!attachmentPaths.isEmpty() || attachmentPath == null || attachmentPath.isEmpty()) {
+            return attachmentPaths;
+        }
+        return List.of(attachmentPath);
+    }
+
+    /**
+     * Whether the message has a send time that is still in the future
+     */
+    public boolean isDeferred() {
+        return sendAt != null && sendAt.isAfter(Instant.now());
+    }
 
     @Override
     public String toString() {
@@ -102,135 +187,335 @@ public class EmailConfig {
                 .toString();
     }
 
+    /**
+     * Builder pre-filled with this configuration, e.g. to overlay a submitted
+     * message on top of the server defaults. Only references are copied;
+     * the lists are copied only if the builder adds to them.
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.smtpServer = smtpServer;
+        builder.port = port;
+        builder.user = user;
+        builder.password = password;
+        builder.from = from;
+        builder.to = to;
+        builder.bcc = bcc;
+        builder.attachmentPath = attachmentPath;
+        builder.attachmentName = attachmentName;
+        builder.attachmentPaths = attachmentPaths;
+        builder.subject = subject;
+        builder.body = body;
+        builder.useTLS = useTLS;
+        builder.logoPath = logoPath;
+        builder.useHtml = useHtml;
+        builder.signatureFile = signatureFile;
+        builder.debug = debug;
+        builder.replyTo = replyTo;
+        builder.readReceipt = readReceipt;
+        builder.teamName = teamName;
+        builder.htmlTemplate = htmlTemplate;
+        builder.messageId = messageId;
+        builder.sendAt = sendAt;
+        builder.dkimSelector = dkimSelector;
+        builder.dkimKey = dkimKey;
+        builder.compressOverKb = compressOverKb;
+        builder.priority = priority;
+        builder.templateBundle = templateBundle;
+        builder.archiveDir = archiveDir;
+        builder.sentIndex = sentIndex;
+        return builder;
+    }
+
+    /**
+     * Per-recipient variant sharing everything else with this config
+     */
+    public EmailConfig withRecipients(List<String> to) {
+        return toBuilder().to(to).build();
+    }
+
+    public EmailConfig withMessageId(String messageId) {
+        return toBuilder().messageId(messageId).build();
+    }
+
+    public EmailConfig withSendAt(Instant sendAt) {
+        return toBuilder().sendAt(sendAt).build();
+    }
+
+    /**
+     * Sending lane. HIGH (password resets, invoices) is scheduled ahead of
+     * NORMAL (campaigns and other bulk mail) and has reserved workers.
+     */
+    public enum Priority {
+        HIGH, NORMAL;
+
+        /**
+         * Parse a param file value: high/transactional or normal/bulk, empty means normal
+         */
+        public static Priority parse(String value) {
+            switch (value == null ? "" : value.trim().toLowerCase(Locale.ROOT)) {
+                case "high":
+                case "transactional":
+                    return HIGH;
+                case "":
+                case "normal":
+                case "bulk":
+                    return NORMAL;
+                default:
+                    throw new IllegalArgumentException("Unknown priority: " + value);
+            }
+        }
+    }
+
     public static class Builder {
-        private final EmailConfig config;
+        private String smtpServer;
+        private int port;
+        private String user;
+        private String password;
+        private String from;
+        private List<String> to = StringList.EMPTY;
+        private List<String> bcc = StringList.EMPTY;
+        private String attachmentPath;
+        private String attachmentName;
+        private List<String> attachmentPaths = StringList.EMPTY;
+        private String subject;
+        private String body;
+        private boolean useTLS;
+        private String logoPath;
+        private boolean useHtml;
+        private String signatureFile;
+        private boolean debug;
+        private String replyTo;
+        private boolean readReceipt;
+        private String teamName;
+        private String htmlTemplate;
+        private String messageId;
+        private Instant sendAt;
+        private String dkimSelector;
+        private String dkimKey;
+        private int compressOverKb;
+        private Priority priority = Priority.NORMAL;
+        private String templateBundle;
+        private String archiveDir;
+        private String sentIndex;
 
         private Builder() {
-            this.config = new EmailConfig();
         }
 
         public Builder smtpServer(String smtpServer) {
-            config.smtpServer = smtpServer;
+            this.smtpServer = smtpServer;
             return this;
         }
 
         public Builder port(int port) {
-            config.port = port;
+            this.port = port;
             return this;
         }
 
         public Builder user(String user) {
-            config.user = user;
+            this.user = user;
             return this;
         }
 
         public Builder password(String password) {
-            config.password = password;
+            this.password = password;
             return this;
         }
 
         public Builder from(String from) {
-            config.from = from;
+            this.from = from;
             return this;
         }
 
         public Builder to(List<String> to) {
-            config.to = new ArrayList<>(to);
+            this.to = StringList.of(to);
             return this;
         }
 
         public Builder addTo(String email) {
-            config.to.add(email);
+            to = writable(to);
+            to.add(email);
             return this;
         }
 
         public Builder bcc(List<String> bcc) {
-            config.bcc = new ArrayList<>(bcc);
+            this.bcc = StringList.of(bcc);
             return this;
         }
 
         public Builder addBcc(String email) {
-            config.bcc.add(email);
+            bcc = writable(bcc);
+            bcc.add(email);
             return this;
         }
 
         public Builder attachmentPath(String path) {
-            config.attachmentPath = path;
+            this.attachmentPath = path;
             return this;
         }
 
         public Builder attachmentName(String name) {
-            config.attachmentName = name;
+            this.attachmentName = name;
             return this;
         }
 
         public Builder attachmentPaths(List<String> paths) {
-            config.attachmentPaths = new ArrayList<>(paths);
+            this.attachmentPaths = StringList.of(paths);
             return this;
         }
 
         public Builder addAttachmentPath(String path) {
-            config.attachmentPaths.add(path);
+            attachmentPaths = writable(attachmentPaths);
+            attachmentPaths.add(path);
             return this;
         }
 
         public Builder subject(String subject) {
-            config.subject = subject;
+            this.subject = subject;
             return this;
         }
 
         public Builder body(String body) {
-            config.body = body;
+            this.body = body;
             return this;
         }
 
         public Builder useTLS(boolean useTLS) {
-            config.useTLS = useTLS;
+            this.useTLS = useTLS;
             return this;
         }
 
         public Builder logoPath(String logoPath) {
-            config.logoPath = logoPath;
+            this.logoPath = logoPath;
             return this;
         }
 
         public Builder useHtml(boolean useHtml) {
-            config.useHtml = useHtml;
+            this.useHtml = useHtml;
             return this;
         }
 
         public Builder signatureFile(String signatureFile) {
-            config.signatureFile = signatureFile;
+            this.signatureFile = signatureFile;
             return this;
         }
 
         public Builder debug(boolean debug) {
-            config.debug = debug;
+            this.debug = debug;
             return this;
         }
 
         public Builder replyTo(String replyTo) {
-            config.replyTo = replyTo;
+            this.replyTo = replyTo;
             return this;
         }
 
         public Builder readReceipt(boolean readReceipt) {
-            config.readReceipt = readReceipt;
+            this.readReceipt = readReceipt;
             return this;
         }
 
         public Builder teamName(String teamName) {
-            config.teamName = teamName;
+            this.teamName = teamName;
             return this;
         }
 
         public Builder htmlTemplate(String htmlTemplate) {
-            config.htmlTemplate = htmlTemplate;
+            this.htmlTemplate = htmlTemplate;
+            return this;
+        }
+
+        public Builder messageId(String messageId) {
+            this.messageId = messageId;
+            return this;
+        }
+
+        public Builder sendAt(Instant sendAt) {
+            this.sendAt = sendAt;
+            return this;
+        }
+
+        public Builder dkimSelector(String dkimSelector) {
+            this.dkimSelector = dkimSelector;
+            return this;
+        }
+
+        public Builder dkimKey(String dkimKey) {
+            this.dkimKey = dkimKey;
             return this;
         }
 
+        public Builder compressOverKb(int compressOverKb) {
+            this.compressOverKb = compressOverKb;
+            return this;
+        }
+
+        public Builder priority(Priority priority) {
+            this.priority = priority != null ? priority : Priority.NORMAL;
+            return this;
+        }
+
+        public Builder templateBundle(String templateBundle) {
+            this.templateBundle = templateBundle;
+            return this;
+        }
+
+        public Builder archiveDir(String archiveDir) {
+            this.archiveDir = archiveDir;
+            return this;
+        }
+
+        public Builder sentIndex(String sentIndex) {
+            this.sentIndex = sentIndex;
+            return this;
+        }
+
+        /**
+         * Lists set on the builder are frozen; copy one the first time it is added to
+         */
+        private static List<String> writable(List<String> list) {
+            return list instanceof ArrayList ? list : new ArrayList<>(list);
+        }
+
+        /**
+         * Create a new config; the builder can keep being used afterwards
+         */
         public EmailConfig build() {
-            return config;
+            return new EmailConfig(this);
+        }
+    }
+
+    /**
+     * Read-only list over a String array. Frozen lists are shared as-is
+     * between configs, builders and overlays.
+     */
+    private static final class StringList extends AbstractList<String> implements RandomAccess {
+        static final StringList EMPTY = new StringList(new String[0]);
+
+        private final String[] values;
+
+        private StringList(String[] values) {
+            this.values = values;
+        }
+
+        static StringList of(List<String> list) {
+            if (list instanceof StringList) {
+                return (StringList) list;
+            }
+            if (list == null || list.isEmpty()) {
+                return EMPTY;
+            }
+            return new StringList(list.toArray(new String[0]));
+        }
+
+        @Override
+        public String get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public int size() {
+            return values.length;
         }
     }
-}
\ No newline at end of file
+}
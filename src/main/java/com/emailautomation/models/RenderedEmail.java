@@ -0,0 +1,44 @@
+package com.emailautomation.models;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of rendering an email's body: the final text or HTML (template,
+ * placeholders and footer applied) plus the inline images it refers to.
+ * MIME assembly works from this without re-reading any template files.
+ */
+public class RenderedEmail {
+    private final EmailConfig config;
+    private final String content;
+    private final boolean html;
+    private final List<InlineImage> inlineImages;
+
+    public RenderedEmail(EmailConfig config, String content, boolean html, List<InlineImage> inlineImages) {
+        this.config = config;
+        this.content = content;
+        this.html = html;
+        this.inlineImages = Collections.unmodifiableList(inlineImages);
+    }
+
+    public EmailConfig getConfig() { return config; }
+    public String getContent() { return content; }
+    public boolean isHtml() { return html; }
+    public List<InlineImage> getInlineImages() { return inlineImages; }
+
+    /**
+     * Image embedded in the HTML body and referenced by cid: URL
+     */
+    public static class InlineImage {
+        private final String path;
+        private final String contentId;
+
+        public InlineImage(String path, String contentId) {
+            this.path = path;
+            this.contentId = contentId;
+        }
+
+        public String getPath() { return path; }
+        public String getContentId() { return contentId; }
+    }
+}
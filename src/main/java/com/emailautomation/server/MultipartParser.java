@@ -0,0 +1,123 @@
+package com.emailautomation.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parser for multipart/form-data request bodies that are already in memory
+ */
+class MultipartParser {
+
+    static class Part {
+        final String name;
+        final String filename;
+        final byte[] content;
+
+        Part(String name, String filename, byte[] content) {
+            this.name = name;
+            this.filename = filename;
+            this.content = content;
+        }
+
+        boolean isFile() {
+            return filename != null;
+        }
+
+        String text() {
+            return new String(content, StandardCharsets.UTF_8);
+        }
+    }
+
+    static String boundaryOf(String contentType) {
+        for (String param : contentType.split(";")) {
+            String trimmed = param.trim();
+            if (trimmed.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                String boundary = trimmed.substring("boundary=".length());
+                if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary;
+            }
+        }
+        throw new IllegalArgumentException("Multipart boundary is missing");
+    }
+
+    static List<Part> parse(byte[] body, String boundary) {
+        byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        List<Part> parts = new ArrayList<>();
+
+        int start = indexOf(body, delimiter, 0);
+        if (start < 0) {
+            throw new IllegalArgumentException("Multipart body has no parts");
+        }
+
+        while (true) {
+            int lineEnd = start + delimiter.length;
+            // "--boundary--" closes the body
+            if (lineEnd + 1 < body.length && body[lineEnd] == '-' && body[lineEnd + 1] == '-') {
+                return parts;
+            }
+            int headersStart = indexOf(body, CRLF, lineEnd);
+            if (headersStart < 0) {
+                throw new IllegalArgumentException("Malformed multipart body");
+            }
+            headersStart += CRLF.length;
+
+            int headersEnd = indexOf(body, CRLF_CRLF, headersStart);
+            if (headersEnd < 0) {
+                throw new IllegalArgumentException("Malformed multipart headers");
+            }
+            String headers = new String(body, headersStart, headersEnd - headersStart, StandardCharsets.UTF_8);
+            int contentStart = headersEnd + CRLF_CRLF.length;
+
+            int next = indexOf(body, delimiter, contentStart);
+            if (next < 0) {
+                throw new IllegalArgumentException("Unterminated multipart body");
+            }
+            // The CRLF before the next delimiter belongs to the delimiter
+            int contentEnd = next - CRLF.length;
+            byte[] content = new byte[Math.max(0, contentEnd - contentStart)];
+            System.arraycopy(body, contentStart, content, 0, content.length);
+
+            parts.add(new Part(dispositionParam(headers, "name"), dispositionParam(headers, "filename"), content));
+            start = next;
+        }
+    }
+
+    private static String dispositionParam(String headers, String param) {
+        for (String line : headers.split("\r\n")) {
+            if (!line.toLowerCase(Locale.ROOT).startsWith("content-disposition:")) {
+                continue;
+            }
+            for (String token : line.split(";")) {
+                String trimmed = token.trim();
+                if (trimmed.toLowerCase(Locale.ROOT).startsWith(param + "=")) {
+                    String value = trimmed.substring(param.length() + 1);
+                    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] CRLF_CRLF = { '\r', '\n', '\r', '\n' };
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,619 @@
+package com.emailautomation.server;
+
+import com.emailautomation.models.EmailConfig;
+import com.emailautomation.services.EmailDispatcher;
+import com.emailautomation.services.MemoryBudget;
+import com.emailautomation.services.SendScheduler;
+import com.emailautomation.utils.EmailConfigLoader;
+import com.emailautomation.utils.Json;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local HTTP API for submitting emails to the in-process sender, so that
+ * upstream applications don't have to write a param file and start a JVM
+ * per message. Binds to the loopback interface only.
+ * <p>
+ * Every request must carry the per-install token as
+ * {@code Authorization: Bearer <token>}; the token is created on first start
+ * in the file given to {@link #loadOrCreateToken(Path)}. Requests from a web
+ * page on another origin are refused, and POST bodies must be
+ * application/json or multipart/form-data, so a browser cannot submit mail
+ * without a CORS preflight.
+ *
+ * POST /api/messages        JSON object, or multipart/form-data with a
+ *                           "message" JSON part plus file parts as attachments
+ * POST /api/messages/batch  JSON array of message objects; if queueing fails
+ *                           partway, the error lists the IDs queued so far
+ *                           and the failedIndex of the first message not queued
+ * GET  /api/messages/{id}   status of a submitted message
+ * GET  /api/pipeline         current depth of each pipeline stage queue and memory in flight
+ *
+ * Message fields use the param file keys (to, subject, body, ...); to and
+ * bcc may be arrays. The SMTP settings, the From address, template, logo,
+ * signature and archive settings come only from the defaults param file the
+ * server was started with, and attachments only from multipart uploads, so
+ * a request cannot make the server read or write arbitrary local files.
+ * Messages with a future send_at (same formats as the param file, or epoch
+ * millis) go to the scheduler instead of being sent right away.
+ */
+public class SubmissionServer {
+    private static final Logger logger = LoggerFactory.getLogger(SubmissionServer.class);
+
+    private static final long MAX_REQUEST_BYTES = 64L * 1024 * 1024;
+    private static final String MESSAGES_PATH = "/api/messages";
+    private static final String PIPELINE_PATH = "/api/pipeline";
+    private static final int TOKEN_BYTES = 32;
+
+    private final EmailConfig defaults;
+    private final byte[] token;
+    private final EmailDispatcher dispatcher;
+    private final SendScheduler scheduler;
+    private final Path uploadDir;
+    private final HttpServer server;
+    private final ExecutorService requestThreads;
+
+    /**
+     * @param uploadDir where multipart attachments are kept until their
+     *                  message is sent; one subdirectory per message ID
+     */
+    public SubmissionServer(int port, EmailConfig defaults, String token, EmailDispatcher dispatcher,
+                            SendScheduler scheduler, Path uploadDir) throws IOException {
+        this.defaults = defaults;
+        this.token = token.getBytes(StandardCharsets.US_ASCII);
+        this.dispatcher = dispatcher;
+        this.scheduler = scheduler;
+        this.uploadDir = uploadDir;
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.requestThreads = Executors.newFixedThreadPool(4);
+        server.setExecutor(requestThreads);
+        server.createContext(MESSAGES_PATH, this::handle);
+        server.createContext(PIPELINE_PATH, this::handle);
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Submission API listening on http://{}:{}{}",
+                server.getAddress().getHostString(), server.getAddress().getPort(), MESSAGES_PATH);
+    }
+
+    /**
+     * The port the server is bound to, which differs from the one asked for
+     * when that was 0
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(1);
+        requestThreads.shutdown();
+    }
+
+    /**
+     * The API token stored in {@code file}, created with owner-only access
+     * on first use. Clients read it from there.
+     */
+    public static String loadOrCreateToken(Path file) throws IOException {
+        if (Files.exists(file)) {
+            String stored = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+            if (!stored.isEmpty()) {
+                return stored;
+            }
+        }
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        String created = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the file inherits the directory's ACL
+        }
+        Files.write(temp, created.getBytes(StandardCharsets.US_ASCII));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Created submission API token in {}", file);
+        return created;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+
+            if (!isLocalOrigin(exchange.getRequestHeaders().getFirst("Origin"))) {
+                respond(exchange, 403, "{\"error\":\"Cross-origin requests are not accepted\"}");
+            } else if (!hasToken(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                respond(exchange, 401, "{\"error\":\"Missing or wrong API token\"}");
+            } else if (path.equals(MESSAGES_PATH) && method.equals("POST")) {
+                handlePost(exchange, true);
+            } else if (path.equals(MESSAGES_PATH + "/batch") && method.equals("POST")) {
+                handlePost(exchange, false);
+            } else if (path.equals(PIPELINE_PATH) && method.equals("GET")) {
+                handlePipeline(exchange);
+            } else if (path.startsWith(MESSAGES_PATH + "/") && method.equals("GET")) {
+                handleStatus(exchange, path.substring(MESSAGES_PATH.length() + 1));
+            } else {
+                respond(exchange, 404, "{\"error\":\"Not found\"}");
+            }
+        } catch (RequestTooLargeException e) {
+            respond(exchange, 413, "{\"error\":" + Json.quote(e.getMessage()) + "}");
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "{\"error\":" + Json.quote(e.getMessage()) + "}");
+        } catch (Exception e) {
+            logger.error("Submission request failed: {}", e.getMessage());
+            respond(exchange, 500, "{\"error\":" + Json.quote(String.valueOf(e.getMessage())) + "}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Only pages served from this machine may call the API; requests from
+     * other programs carry no Origin at all
+     */
+    private static boolean isLocalOrigin(String origin) {
+        if (origin == null) {
+            return true;
+        }
+        try {
+            String host = URI.create(origin).getHost();
+            return host != null && (host.equalsIgnoreCase("localhost") || host.equals("127.0.0.1")
+                    || host.equals("[::1]"));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private boolean hasToken(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return false;
+        }
+        byte[] given = authorization.substring(7).trim().getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(given, token);
+    }
+
+    /**
+     * Read a POST body and queue the messages in it. The body counts against
+     * the memory budget of the pipeline only while it is read and parsed:
+     * queueing blocks while the pipeline is full, and the pipeline needs
+     * budget to drain, so a reservation held across it could deadlock.
+     */
+    private void handlePost(HttpExchange exchange, boolean single) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String mediaType = contentType == null ? "" : contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+        boolean multipart = single && mediaType.equals("multipart/form-data");
+        if (!multipart && !mediaType.equals("application/json")) {
+            respond(exchange, 415, "{\"error\":" + Json.quote("Content-Type must be application/json"
+                    + (single ? " or multipart/form-data" : "")) + "}");
+            return;
+        }
+
+        MemoryBudget budget = dispatcher.getMemoryBudget();
+        long length = contentLength(exchange);
+        long reserved;
+        try {
+            reserved = budget.acquire(length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for memory budget");
+        }
+        List<EmailConfig> configs;
+        try {
+            byte[] body = readBody(exchange, length);
+            configs = single ? List.of(parseMessage(body, multipart ? contentType : null)) : parseBatch(body);
+        } finally {
+            budget.release(reserved);
+        }
+
+        if (single) {
+            submitMessage(exchange, configs.get(0), multipart);
+        } else {
+            submitBatch(exchange, configs);
+        }
+    }
+
+    private EmailConfig parseMessage(byte[] body, String multipartType) throws IOException {
+        String messageId = EmailDispatcher.newMessageId();
+
+        EmailConfig config;
+        Path messageUploads = null;
+        if (multipartType != null) {
+            EmailConfig.Builder builder = newBuilder(messageId);
+            messageUploads = uploadDir.resolve(messageId);
+            try {
+                applyMultipart(builder, MultipartParser.parse(body, MultipartParser.boundaryOf(multipartType)),
+                        messageUploads);
+            } catch (RuntimeException | IOException e) {
+                deleteRecursively(messageUploads);
+                throw e;
+            }
+            config = builder.build();
+        } else {
+            config = toConfig(Json.parse(new String(body, StandardCharsets.UTF_8)), messageId);
+        }
+
+        if (!config.isValid()) {
+            deleteRecursively(messageUploads);
+            throw new IllegalArgumentException("Invalid email configuration: " + config.getValidationErrors());
+        }
+        return config;
+    }
+
+    private void submitMessage(HttpExchange exchange, EmailConfig config, boolean multipart) throws IOException {
+        // Multipart attachments were saved under the message ID
+        Path uploads = multipart ? uploadDir.resolve(config.getMessageId()) : null;
+        try {
+            if (config.isDeferred()) {
+                scheduler.schedule(config);
+                dispatcher.markScheduled(config.getMessageId());
+            } else {
+                dispatcher.submit(config, uploads == null ? null : () -> deleteRecursively(uploads));
+            }
+        } catch (RuntimeException | IOException e) {
+            deleteRecursively(uploads);
+            throw e;
+        }
+        respond(exchange, 202, "{\"id\":" + Json.quote(config.getMessageId()) + "}");
+    }
+
+    private List<EmailConfig> parseBatch(byte[] body) {
+        Object parsed = Json.parse(new String(body, StandardCharsets.UTF_8));
+        if (parsed instanceof Map && ((Map<?, ?>) parsed).get("messages") instanceof List) {
+            parsed = ((Map<?, ?>) parsed).get("messages");
+        }
+        if (!(parsed instanceof List)) {
+            throw new IllegalArgumentException("Batch body must be a JSON array of messages");
+        }
+
+        // Validate the whole batch first so a bad entry doesn't leave half of it queued
+        List<EmailConfig> configs = new ArrayList<>();
+        List<?> messages = (List<?>) parsed;
+        for (int i = 0; i < messages.size(); i++) {
+            EmailConfig config = toConfig(messages.get(i), EmailDispatcher.newMessageId());
+            if (!config.isValid()) {
+                throw new IllegalArgumentException("Message " + i + ": invalid email configuration: "
+                        + config.getValidationErrors());
+            }
+            configs.add(config);
+        }
+        return configs;
+    }
+
+    /**
+     * Queue a validated batch. If queueing fails partway, the messages before
+     * the failed one stay queued, so the error response lists their IDs and
+     * the index of the first message that was not queued.
+     */
+    private void submitBatch(HttpExchange exchange, List<EmailConfig> configs) throws IOException {
+        List<String> ids = new ArrayList<>();
+        for (EmailConfig config : configs) {
+            try {
+                if (config.isDeferred()) {
+                    scheduler.schedule(config);
+                    dispatcher.markScheduled(config.getMessageId());
+                } else {
+                    dispatcher.submit(config);
+                }
+            } catch (RuntimeException | IOException e) {
+                logger.error("Batch stopped at message {} of {}: {}", ids.size(), configs.size(), e.getMessage());
+                respond(exchange, e instanceof IllegalArgumentException ? 400 : 500,
+                        "{\"error\":" + Json.quote(String.valueOf(e.getMessage()))
+                                + ",\"failedIndex\":" + ids.size() + ",\"ids\":" + idList(ids) + "}");
+                return;
+            }
+            ids.add(config.getMessageId());
+        }
+        respond(exchange, 202, "{\"ids\":" + idList(ids) + "}");
+    }
+
+    private static String idList(List<String> ids) {
+        StringBuilder json = new StringBuilder("[");
+        for (String id : ids) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(Json.quote(id));
+        }
+        return json.append(']').toString();
+    }
+
+    private void handleStatus(HttpExchange exchange, String messageId) throws IOException {
+        EmailDispatcher.Status status = dispatcher.getStatus(messageId);
+        if (status == null) {
+            respond(exchange, 404, "{\"error\":\"Unknown message ID\"}");
+            return;
+        }
+        respond(exchange, 200, "{\"id\":" + Json.quote(messageId) + ",\"status\":" + Json.quote(status.name()) + "}");
+    }
+
+    private void handlePipeline(HttpExchange exchange) throws IOException {
+        StringBuilder response = new StringBuilder("{\"queues\":{");
+        boolean first = true;
+        for (Map.Entry<String, Integer> queue : dispatcher.getQueueDepths().entrySet()) {
+            if (!first) {
+                response.append(',');
+            }
+            first = false;
+            response.append(Json.quote(queue.getKey())).append(':').append(queue.getValue());
+        }
+        response.append("},\"memoryInFlightBytes\":").append(dispatcher.getMemoryBudget().getReservedBytes())
+                .append(",\"memoryBudgetBytes\":").append(dispatcher.getMemoryBudget().getBudgetBytes())
+                .append('}');
+        respond(exchange, 200, response.toString());
+    }
+
+    private EmailConfig toConfig(Object json, String messageId) {
+        if (!(json instanceof Map)) {
+            throw new IllegalArgumentException("Message must be a JSON object");
+        }
+        EmailConfig.Builder builder = newBuilder(messageId);
+        for (Map.Entry<?, ?> field : ((Map<?, ?>) json).entrySet()) {
+            applyField(builder, String.valueOf(field.getKey()), field.getValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * A builder with the server's sender, SMTP, branding and archive
+     * settings; the recipients, content and attachments come from the request
+     */
+    private EmailConfig.Builder newBuilder(String messageId) {
+        return EmailConfig.builder()
+                .messageId(messageId)
+                .smtpServer(defaults.getSmtpServer())
+                .port(defaults.getPort())
+                .user(defaults.getUser())
+                .password(defaults.getPassword())
+                .useTLS(defaults.isUseTLS())
+                .from(defaults.getFrom())
+                .replyTo(defaults.getReplyTo())
+                .teamName(defaults.getTeamName())
+                .useHtml(defaults.isUseHtml())
+                .readReceipt(defaults.isReadReceipt())
+                .logoPath(defaults.getLogoPath())
+                .signatureFile(defaults.getSignatureFile())
+                .htmlTemplate(defaults.getHtmlTemplate())
+                .templateBundle(defaults.getTemplateBundle())
+                .dkimSelector(defaults.getDkimSelector())
+                .dkimKey(defaults.getDkimKey())
+                .compressOverKb(defaults.getCompressOverKb())
+                .archiveDir(defaults.getArchiveDir())
+                .sentIndex(defaults.getSentIndex());
+    }
+
+    private void applyMultipart(EmailConfig.Builder builder, List<MultipartParser.Part> parts, Path messageUploads)
+            throws IOException {
+        for (MultipartParser.Part part : parts) {
+            if (part.isFile()) {
+                // Keep only the file name so uploads can't escape the upload directory
+                Path name = part.filename.isEmpty() ? null : Paths.get(part.filename).getFileName();
+                if (name == null || name.toString().equals("..") || name.toString().equals(".")) {
+                    throw new IllegalArgumentException("Attachment part \"" + part.name + "\" has no file name");
+                }
+                Files.createDirectories(messageUploads);
+                Path target = messageUploads.resolve(name.toString());
+                Files.write(target, part.content);
+                builder.addAttachmentPath(target.toString());
+            } else if ("message".equals(part.name)) {
+                Object json = Json.parse(part.text());
+                if (!(json instanceof Map)) {
+                    throw new IllegalArgumentException("The message part must be a JSON object");
+                }
+                for (Map.Entry<?, ?> field : ((Map<?, ?>) json).entrySet()) {
+                    applyField(builder, String.valueOf(field.getKey()), field.getValue());
+                }
+            } else if (part.name != null) {
+                applyField(builder, part.name, part.text());
+            }
+        }
+    }
+
+    /**
+     * Map one API field onto the builder, using the same keys as the param file
+     */
+    private void applyField(EmailConfig.Builder builder, String key, Object value) {
+        switch (key) {
+            case "to":
+                builder.to(asList(value));
+                break;
+            case "bcc":
+                builder.bcc(asList(value));
+                break;
+            case "subject":
+                builder.subject(asString(value));
+                break;
+            case "body":
+                builder.body(asString(value));
+                break;
+            case "html":
+            case "use_html":
+                builder.useHtml(asBoolean(value));
+                break;
+            case "reply_to":
+            case "replyto":
+                builder.replyTo(asString(value));
+                break;
+            case "read_receipt":
+            case "readreceipt":
+                builder.readReceipt(asBoolean(value));
+                break;
+            case "teamname":
+            case "team_name":
+                builder.teamName(asString(value));
+                break;
+            case "send_at":
+            case "sendat":
+                builder.sendAt(value instanceof Number
+                        ? Instant.ofEpochMilli(((Number) value).longValue())
+                        : EmailConfigLoader.parseSendAt(asString(value)));
+                break;
+            case "compress_over_kb":
+            case "compressoverkb":
+                builder.compressOverKb(value instanceof Number
+                        ? ((Number) value).intValue()
+                        : Integer.parseInt(asString(value)));
+                break;
+            case "priority":
+                builder.priority(EmailConfig.Priority.parse(asString(value)));
+                break;
+            // DKIM signs whatever From the message carries, so the sender is fixed by the server
+            case "from":
+            case "from_":
+            case "smtp_server":
+            case "port":
+            case "user":
+            case "password":
+            case "cert":
+            case "fileandpath":
+            case "filename":
+            case "attachments":
+            case "logo":
+            case "logo_path":
+            case "signaturefile":
+            case "signature_file":
+            case "signature":
+            case "htmltemplate":
+            case "html_template":
+            case "template_bundle":
+            case "templatebundle":
+            case "archive_dir":
+            case "archivedir":
+            case "sent_index":
+            case "sentindex":
+                throw new IllegalArgumentException("Field " + key + " can only be set in the server's defaults"
+                        + (key.equals("attachments") || key.equals("fileandpath")
+                        ? "; upload attachments as multipart file parts" : ""));
+            default:
+                throw new IllegalArgumentException("Unknown field: " + key);
+        }
+    }
+
+    private static String asString(Object value) {
+        return value == null ? null : String.valueOf(value).trim();
+    }
+
+    private static boolean asBoolean(Object value) {
+        return value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(asString(value));
+    }
+
+    private static List<String> asList(Object value) {
+        List<String> result = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                String text = asString(item);
+                if (text != null && !text.isEmpty()) {
+                    result.add(text);
+                }
+            }
+        } else if (value != null) {
+            for (String item : asString(value).split(",")) {
+                if (!item.trim().isEmpty()) {
+                    result.add(item.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Declared body size, so it can be admitted to the memory budget before
+     * it is read
+     */
+    private static long contentLength(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (header == null) {
+            // Chunked bodies may be anything up to the limit
+            return MAX_REQUEST_BYTES;
+        }
+        long length;
+        try {
+            length = Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid Content-Length");
+        }
+        if (length > MAX_REQUEST_BYTES) {
+            throw new RequestTooLargeException("Request exceeds " + MAX_REQUEST_BYTES + " bytes");
+        }
+        return length;
+    }
+
+    private static byte[] readBody(HttpExchange exchange, long length) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes((int) length + 1);
+            if (body.length > length) {
+                throw new RequestTooLargeException("Request exceeds " + length + " bytes");
+            }
+            return body;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Remove the uploaded attachments of a message once it has been sent
+     */
+    public static void discardUploads(Path uploadDir, String messageId) {
+        deleteRecursively(uploadDir.resolve(messageId));
+    }
+
+    private static void deleteRecursively(Path dir) {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    logger.warn("Could not delete upload {}: {}", path, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Could not clean up uploads in {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private static class RequestTooLargeException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        RequestTooLargeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.emailautomation.services;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds attachment and inline image parts on the fork-join pool, with the
+ * base64 encoding done up front. Encoding several files then runs in
+ * parallel and overlaps with template rendering and the SMTP handshake,
+ * instead of happening serially inside Transport.send.
+ * <p>
+ * Attachments over a per-message size threshold can be zipped on the way:
+ * the file is deflated straight into the base64 encoder, one file per
+ * worker, and the result is cached so mail-merge recipients of the same
+ * report share one compressed copy. Files over PREENCODE_LIMIT are zipped
+ * once to a temp file instead, which is cached the same way on disk and
+ * streamed from there each time a message is written.
+ */
+class AttachmentEncoder {
+    // Bigger files are streamed and encoded at send time instead of held in memory
+    private static final long PREENCODE_LIMIT = 32L * 1024 * 1024;
+
+    /**
+     * Heap held for an attachment of {@code size} bytes: the raw bytes while
+     * encoding plus the base64 text (4/3 and line breaks) until it is sent
+     */
+    static long footprint(long size) {
+        if (size > PREENCODE_LIMIT) {
+            return 64 * 1024;  // streamed through a buffer
+        }
+        return size + size * 4 / 3 + size / 38;
+    }
+
+    private static final Base64.Encoder MIME_BASE64 = Base64.getMimeEncoder();
+
+    // Formats that are already compressed and are sent as they are
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jpg", "jpeg", "png", "gif", "webp",
+            "mp3", "mp4", "mov", "docx", "xlsx", "pptx", "odt", "ods");
+
+    // Upper bounds on zipped attachments kept for reuse by later messages,
+    // in memory and in temp files
+    private static final long ZIP_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final long ZIP_FILE_CACHE_BYTES = 1024L * 1024 * 1024;
+
+    private final long preencodeLimit;
+    private final Path zipFileDir;
+    private final ZipCache<byte[]> zipped;
+    private final ZipCache<Path> zippedFiles;
+    private final AtomicInteger zipCount = new AtomicInteger();
+
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    AttachmentEncoder() {
+        this(PREENCODE_LIMIT, ZIP_CACHE_BYTES, ZIP_FILE_CACHE_BYTES, null);
+    }
+
+    /**
+     * @param zipFileDir where zips of large files go (null = the system temp directory)
+     */
+    AttachmentEncoder(long preencodeLimit, long zipCacheBytes, long zipFileCacheBytes, Path zipFileDir) {
+        this.preencodeLimit = preencodeLimit;
+        this.zipFileDir = zipFileDir;
+        this.zipped = new ZipCache<>(zipCacheBytes, encoded -> encoded.length, encoded -> { });
+        this.zippedFiles = new ZipCache<>(zipFileCacheBytes, AttachmentEncoder::sizeOf, AttachmentEncoder::delete);
+    }
+
+    /**
+     * Start building an attachment part for {@code path}, zipped if it is
+     * bigger than {@code compressOverBytes} (0 = never)
+     */
+    CompletableFuture<MimeBodyPart> attachment(String path, long compressOverBytes) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Path file = Paths.get(path);
+                String name = new File(path).getName();
+                long size = Files.size(file);
+                if (compressOverBytes > 0 && size > compressOverBytes && isCompressible(name)) {
+                    if (size > preencodeLimit) {
+                        MimeBodyPart part = new MimeBodyPart();
+                        zippedFiles.get(file, name, this::zipToFile);
+                        part.setDataHandler(new DataHandler(new ZippedFileDataSource(file, name)));
+                        // Set up front so javax.mail does not zip the file once more to pick an encoding
+                        part.setHeader("Content-Transfer-Encoding", "base64");
+                        part.setFileName(name + ".zip");
+                        return part;
+                    }
+                    MimeBodyPart part = new PreencodedMimeBodyPart("base64");
+                    part.setDataHandler(new DataHandler(new ByteArrayDataSource(
+                            zipped.get(file, name, this::zip), "application/zip")));
+                    part.setFileName(name + ".zip");
+                    return part;
+                }
+                MimeBodyPart part = encode(file);
+                part.setFileName(name);
+                return part;
+            } catch (IOException | MessagingException e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+    }
+
+    /**
+     * Start building an inline image part referenced by {@code cid:contentId}
+     */
+    CompletableFuture<MimeBodyPart> inline(String path, String contentId) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                MimeBodyPart part = encode(Paths.get(path));
+                part.setHeader("Content-ID", "<" + contentId + ">");
+                part.setDisposition(MimeBodyPart.INLINE);
+                return part;
+            } catch (IOException | MessagingException e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+    }
+
+    private static boolean isCompressible(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Deflate the file into a zip entry that is base64 encoded as it is
+     * written, so neither the raw nor the zipped bytes are held in memory
+     */
+    private byte[] zip(Path file, String name) throws IOException {
+        zipCount.incrementAndGet();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream((int) Math.min(Files.size(file) / 3 + 1024, 1 << 26));
+        try (ZipOutputStream zip = new ZipOutputStream(MIME_BASE64.wrap(encoded));
+             InputStream in = Files.newInputStream(file)) {
+            zip.putNextEntry(newEntry(file, name));
+            in.transferTo(zip);
+            zip.closeEntry();
+        }
+        return encoded.toByteArray();
+    }
+
+    /**
+     * Zip the file into a temp file, left raw for javax.mail to base64
+     * encode as it writes the message
+     */
+    private Path zipToFile(Path file, String name) throws IOException {
+        zipCount.incrementAndGet();
+        Path zip = zipFileDir != null
+                ? Files.createTempFile(zipFileDir, "attachment", ".zip")
+                : Files.createTempFile("attachment", ".zip");
+        zip.toFile().deleteOnExit();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip));
+             InputStream in = Files.newInputStream(file)) {
+            out.putNextEntry(newEntry(file, name));
+            in.transferTo(out);
+            out.closeEntry();
+        } catch (IOException | RuntimeException e) {
+            delete(zip);
+            throw e;
+        }
+        return zip;
+    }
+
+    /**
+     * Number of times a file has been compressed; cache hits do not count
+     */
+    int zipCount() {
+        return zipCount.get();
+    }
+
+    private static long sizeOf(Path zip) {
+        try {
+            return Files.size(zip);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void delete(Path zip) {
+        try {
+            Files.deleteIfExists(zip);
+        } catch (IOException e) {
+            // Still open for sending on Windows
+            zip.toFile().deleteOnExit();
+        }
+    }
+
+    /**
+     * Zip entry stamped with the file's own time, so zipping the same file
+     * again gives the same bytes
+     */
+    private static ZipEntry newEntry(Path file, String name) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(Files.getLastModifiedTime(file).toMillis());
+        return entry;
+    }
+
+    private MimeBodyPart encode(Path path) throws IOException, MessagingException {
+        String contentType = FileTypeMap.getDefaultFileTypeMap().getContentType(path.toFile());
+
+        if (Files.size(path) > preencodeLimit) {
+            MimeBodyPart part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(new FileDataSource(path.toFile())));
+            return part;
+        }
+
+        byte[] encoded = MIME_BASE64.encode(Files.readAllBytes(path));
+        MimeBodyPart part = new PreencodedMimeBodyPart("base64");
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(encoded, contentType)));
+        return part;
+    }
+
+    /**
+     * Zips of attachments keyed by path, size and modification time, the
+     * least recently used dropped once they add up to more than maxBytes.
+     * Futures let concurrent messages with the same attachment wait for a
+     * single compression.
+     */
+    private static class ZipCache<T> {
+        private final Map<String, CompletableFuture<T>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxBytes;
+        private final ToLongFunction<T> sizeOf;
+        private final Consumer<T> onEvict;
+        private long bytes = 0;
+
+        ZipCache(long maxBytes, ToLongFunction<T> sizeOf, Consumer<T> onEvict) {
+            this.maxBytes = maxBytes;
+            this.sizeOf = sizeOf;
+            this.onEvict = onEvict;
+        }
+
+        T get(Path file, String name, Zipper<T> zipper) throws IOException {
+            String key = file.toAbsolutePath() + "|" + Files.size(file) + "|" + Files.getLastModifiedTime(file).toMillis();
+            CompletableFuture<T> future;
+            boolean compress = false;
+            synchronized (entries) {
+                future = entries.get(key);
+                if (future == null) {
+                    future = new CompletableFuture<>();
+                    entries.put(key, future);
+                    compress = true;
+                }
+            }
+            if (!compress) {
+                return future.join();
+            }
+
+            try {
+                T zipped = zipper.zip(file, name);
+                future.complete(zipped);
+                synchronized (entries) {
+                    bytes += sizeOf.applyAsLong(zipped);
+                    evict(future);
+                }
+                return zipped;
+            } catch (IOException | RuntimeException e) {
+                synchronized (entries) {
+                    entries.remove(key);
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        /**
+         * Drop the least recently used zips until the rest fit, keeping
+         * {@code latest} even if it is bigger than the cache on its own
+         */
+        private void evict(CompletableFuture<T> latest) {
+            Iterator<CompletableFuture<T>> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                CompletableFuture<T> future = eldest.next();
+                T zipped = future.getNow(null);
+                if (zipped != null && future != latest) {
+                    bytes -= sizeOf.applyAsLong(zipped);
+                    eldest.remove();
+                    onEvict.accept(zipped);
+                }
+            }
+        }
+    }
+
+    private interface Zipper<T> {
+        T zip(Path file, String name) throws IOException;
+    }
+
+    /**
+     * A large attachment read from its zip in the temp file cache. Looked up
+     * on every read (DKIM signing and sending both read it), so a zip that
+     * was evicted before the message went out is made again.
+     */
+    private class ZippedFileDataSource implements DataSource {
+        private final Path file;
+        private final String name;
+
+        ZippedFileDataSource(Path file, String name) {
+            this.file = file;
+            this.name = name;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            try {
+                return Files.newInputStream(zippedFiles.get(file, name, AttachmentEncoder.this::zipToFile));
+            } catch (NoSuchFileException e) {
+                // Evicted between the lookup and opening it
+                return Files.newInputStream(zippedFiles.get(file, name, AttachmentEncoder.this::zipToFile));
+            }
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Zipped attachments are read-only");
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/zip";
+        }
+
+        @Override
+        public String getName() {
+            return name + ".zip";
+        }
+    }
+}
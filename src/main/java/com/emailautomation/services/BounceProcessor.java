@@ -0,0 +1,131 @@
+package com.emailautomation.services;
+
+import com.emailautomation.models.DeliveryReport;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads bounces (DSNs) and read receipts (MDNs) from a mailbox and applies
+ * them: permanently failed recipients go on the suppression list, and every
+ * report that matches a sent message by Message-ID is added to that
+ * message's filesendlist.log as a BOUNCED, DELAYED, DELIVERED or READ line.
+ * <p>
+ * The mailbox is synced incrementally (see ReportSource) in batches; each
+ * batch costs one suppression list write and one write per log file, so
+ * a backlog of hundreds of thousands of reports is applied in bulk.
+ */
+public class BounceProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(BounceProcessor.class);
+
+    private static final int BATCH_SIZE = 500;
+
+    private final LogService logService;
+    private final SentIndex sentIndex;
+    private final SuppressionList suppressionList;
+
+    public BounceProcessor(LogService logService, SentIndex sentIndex, SuppressionList suppressionList) {
+        this.logService = logService;
+        this.sentIndex = sentIndex;
+        this.suppressionList = suppressionList;
+    }
+
+    /**
+     * Process everything in {@code mailbox} that arrived since the last sync
+     *
+     * @param mailbox        imap:// or imaps:// URL, maildir directory or mbox file
+     * @param checkpointFile where the mbox offset or IMAP UID is kept
+     * @return number of reports found
+     */
+    public int sync(String mailbox, Path checkpointFile) throws IOException, MessagingException {
+        // Read on the first batch with reports, so a sync with nothing new skips the index
+        Map<String, SentIndex.Entry> sent = null;
+        int messages = 0;
+        int reports = 0;
+        int suppressed = 0;
+        int unmatched = 0;
+
+        try (ReportSource source = ReportSource.open(mailbox, checkpointFile)) {
+            while (true) {
+                List<Message> batch = source.nextBatch(BATCH_SIZE);
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                List<DeliveryReport> batchReports = new ArrayList<>();
+                for (Message message : batch) {
+                    try {
+                        batchReports.addAll(ReportParser.parse(message));
+                    } catch (MessagingException | IOException e) {
+                        logger.warn("Skipping unreadable message in {}: {}", mailbox, e.getMessage());
+                    }
+                }
+
+                if (sent == null && !batchReports.isEmpty()) {
+                    sent = sentIndex.load();
+                }
+                suppressed += suppress(batchReports);
+                unmatched += appendToLogs(batchReports, sent);
+                source.commit();
+
+                messages += batch.size();
+                reports += batchReports.size();
+                logger.debug("Processed {} messages from {}", messages, mailbox);
+            }
+        }
+
+        logger.info("Processed {} messages from {}: {} reports, {} addresses suppressed, {} not matched to a sent message",
+                messages, mailbox, reports, suppressed, unmatched);
+        return reports;
+    }
+
+    private int suppress(List<DeliveryReport> reports) throws IOException {
+        Set<String> failed = new LinkedHashSet<>();
+        for (DeliveryReport report : reports) {
+            if (report.getKind() == DeliveryReport.Kind.HARD_BOUNCE) {
+                failed.add(report.getRecipient());
+            }
+        }
+        return suppressionList.addAll(failed);
+    }
+
+    /**
+     * Add each report to the log of the message it belongs to, grouped so
+     * every log file is written once. A failed write is thrown so the batch
+     * is not committed and is read again on the next sync.
+     *
+     * @return number of reports without a known sent message
+     */
+    private int appendToLogs(List<DeliveryReport> reports, Map<String, SentIndex.Entry> sent) throws IOException {
+        Map<Path, List<String>> entries = new LinkedHashMap<>();
+        int unmatched = 0;
+        for (DeliveryReport report : reports) {
+            SentIndex.Entry entry = report.getMessageId() != null ? sent.get(report.getMessageId()) : null;
+            if (entry == null) {
+                unmatched++;
+                continue;
+            }
+            String detail = report.getStatus() != null ? report.getStatus() : "";
+            if (report.getDiagnostic() != null) {
+                detail += " " + report.getDiagnostic();
+            }
+            String message = "Message " + report.getMessageId() + ": " + detail.replaceAll("[\\t\\r\\n]+", " ").trim();
+            entries.computeIfAbsent(entry.getLogPath(), path -> new ArrayList<>())
+                    .add(LogService.formatEntry(report.getKind().getLogStatus(), entry.getAttachmentName(),
+                            entry.getAttachmentPath(), report.getRecipient(), "", message));
+        }
+        for (Map.Entry<Path, List<String>> log : entries.entrySet()) {
+            logService.appendEntries(log.getKey(), log.getValue());
+        }
+        return unmatched;
+    }
+}
@@ -0,0 +1,199 @@
+package com.emailautomation.services;
+
+import java.awt.*;
+import java.awt.TrayIcon.MessageType;
+import java.awt.image.BufferedImage;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import java.time.Duration;
+import java.net.URL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tray balloon and dialog notifications. This is the only class that
+ * references AWT/Swing; NotificationService loads it by name and only when
+ * a GUI is available, so headless and native-image builds never reach it.
+ */
+class DesktopNotifier {
+    private static final Logger logger = LoggerFactory.getLogger(DesktopNotifier.class);
+
+    // Removing the tray icon takes its balloon down. AWT reports a click on
+    // the balloon but not the system closing it, so without a click the icon
+    // is kept this long after the balloon is posted
+    private static final long BALLOON_VISIBLE_NANOS = Duration.ofSeconds(2).toNanos();
+
+    private SystemTray tray;
+    private TrayIcon trayIcon;
+    private boolean systemTrayAvailable = false;
+
+    // Dialogs that were handed to the EDT but are not yet dismissed
+    private final Object pendingLock = new Object();
+    private int pendingDialogs = 0;
+    private long balloonVisibleUntil;
+    private boolean balloonPosted = false;
+
+    DesktopNotifier() {
+        if (GraphicsEnvironment.isHeadless()) {
+            throw new HeadlessException();
+        }
+        initializeSystemTray();
+    }
+
+    private void initializeSystemTray() {
+        // Check if system tray is supported
+        if (!SystemTray.isSupported()) {
+            logger.warn("System tray is not supported on this platform");
+            return;
+        }
+
+        try {
+            tray = SystemTray.getSystemTray();
+
+            // Try to load icon from resources first, then file system
+            Image image = loadIcon();
+            if (image == null) {
+                logger.warn("Could not load tray icon, using default image");
+                // Create a simple default icon
+                image = createDefaultIcon();
+            }
+
+            trayIcon = new TrayIcon(image, "Email Automation");
+            trayIcon.setImageAutoSize(true);
+            trayIcon.addActionListener(e -> balloonDismissed());
+
+            // Add the tray icon
+            assert tray != null;
+            tray.add(trayIcon);
+            systemTrayAvailable = true;
+            logger.info("System tray initialized successfully");
+
+        } catch (AWTException e) {
+            logger.error("Failed to add tray icon: {}", e.getMessage());
+            trayIcon = null;
+            systemTrayAvailable = false;
+        } catch (Exception e) {
+            logger.error("Unexpected error initializing system tray: {}", e.getMessage());
+            trayIcon = null;
+            systemTrayAvailable = false;
+        }
+    }
+
+    private Image loadIcon() {
+        // Try loading from resources
+        URL iconURL = getClass().getResource("/icon.png");
+        if (iconURL != null) {
+            return Toolkit.getDefaultToolkit().getImage(iconURL);
+        }
+
+        // Try loading from file system
+        try {
+            return Toolkit.getDefaultToolkit().getImage("icon.png");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private Image createDefaultIcon() {
+        // Create a simple 16x16 default icon
+        Image image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = (Graphics2D) image.getGraphics();
+        g2d.setColor(Color.BLUE);
+        g2d.fillOval(2, 2, 12, 12);
+        g2d.dispose();
+        return image;
+    }
+
+    void show(String title, String message, boolean error) {
+        MessageType type = error ? MessageType.ERROR : MessageType.INFO;
+
+        // Try system tray notification first
+        if (systemTrayAvailable && trayIcon != null) {
+            try {
+                trayIcon.displayMessage(title, message, type);
+                synchronized (pendingLock) {
+                    balloonPosted = true;
+                    balloonVisibleUntil = System.nanoTime() + BALLOON_VISIBLE_NANOS;
+                }
+                logger.debug("System tray notification displayed");
+            } catch (Exception e) {
+                logger.warn("Failed to display tray notification: {}", e.getMessage());
+                showDialogNotification(title, message, type);
+            }
+        } else {
+            // Fall back to dialog
+            showDialogNotification(title, message, type);
+        }
+    }
+
+    private void showDialogNotification(String title, String message, MessageType type) {
+        synchronized (pendingLock) {
+            pendingDialogs++;
+        }
+
+        // Use SwingUtilities to ensure thread safety
+        SwingUtilities.invokeLater(() -> {
+            try {
+                int optionType = type == MessageType.ERROR ?
+                        JOptionPane.ERROR_MESSAGE : JOptionPane.INFORMATION_MESSAGE;
+                JOptionPane.showMessageDialog(null, message, title, optionType);
+                logger.debug("Dialog notification displayed");
+            } catch (Exception e) {
+                logger.error("Failed to show dialog: {}", e.getMessage());
+            } finally {
+                synchronized (pendingLock) {
+                    pendingDialogs--;
+                    pendingLock.notifyAll();
+                }
+            }
+        });
+    }
+
+    private void balloonDismissed() {
+        synchronized (pendingLock) {
+            balloonPosted = false;
+            pendingLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until dialogs are dismissed and the last balloon has been clicked
+     * or has been up for its display time, but no longer than maxWait.
+     */
+    void awaitDelivery(Duration maxWait) {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        synchronized (pendingLock) {
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    boolean balloonShowing = balloonPosted && now - balloonVisibleUntil < 0;
+                    if (pendingDialogs == 0 && !balloonShowing) {
+                        return;
+                    }
+                    long until = pendingDialogs > 0 ? deadline : Math.min(deadline, balloonVisibleUntil);
+                    long remainingMillis = (until - now) / 1_000_000;
+                    if (remainingMillis <= 0) {
+                        if (pendingDialogs > 0) {
+                            logger.info("Notification still on screen after {} ms, continuing", maxWait.toMillis());
+                        }
+                        return;
+                    }
+                    pendingLock.wait(remainingMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void cleanup() {
+        if (tray != null && trayIcon != null) {
+            try {
+                tray.remove(trayIcon);
+                logger.info("System tray cleaned up");
+            } catch (Exception e) {
+                logger.warn("Error during cleanup: {}", e.getMessage());
+            }
+        }
+    }
+}
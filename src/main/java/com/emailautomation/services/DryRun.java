@@ -0,0 +1,204 @@
+package com.emailautomation.services;
+
+import com.emailautomation.models.EmailConfig;
+import com.emailautomation.models.RenderedEmail;
+import com.emailautomation.utils.EmailConfigLoader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the whole build path of a send (load, render, MIME assembly and
+ * serialization, including DKIM signing) without connecting to a relay,
+ * and reports throughput, allocation and where the time goes. Used to size
+ * a machine's render capacity separately from its network capacity.
+ */
+public class DryRun {
+    private static final Logger logger = LoggerFactory.getLogger(DryRun.class);
+
+    private final EmailService emailService;
+    private final int threads;
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder renderNanos = new LongAdder();
+    private final LongAdder mimeNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+
+    public DryRun(EmailService emailService, int threads) {
+        this.emailService = emailService;
+        this.threads = threads;
+    }
+
+    /**
+     * Build every param file {@code repeat} times, one message per file or,
+     * with {@code perRecipient}, one per recipient as in a mail merge
+     *
+     * @return number of messages that failed to build
+     */
+    public long run(List<String> paramFiles, int repeat, boolean perRecipient) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "dry-run");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        List<Future<?>> pending = new ArrayList<>();
+        for (int i = 0; i < repeat; i++) {
+            for (String paramFile : paramFiles) {
+                pending.add(workers.submit(() -> build(paramFile, perRecipient)));
+            }
+        }
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // counted as a failure in build()
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+
+        report(elapsed, allocated);
+        return failures.sum();
+    }
+
+    private void build(String paramFile, boolean perRecipient) {
+        EmailConfig loaded;
+        try {
+            long t0 = System.nanoTime();
+            loaded = EmailConfigLoader.loadFromFile(paramFile);
+            loadNanos.add(System.nanoTime() - t0);
+            if (!loaded.isValid()) {
+                throw new IllegalArgumentException("Invalid email configuration: " + loaded.getValidationErrors());
+            }
+        } catch (Exception e) {
+            failures.increment();
+            logger.warn("Dry run of {} failed: {}", paramFile, e.getMessage());
+            return;
+        }
+
+        if (perRecipient && loaded.getTo().size() > 1) {
+            // Each recipient is its own message, so one failure must not hide the rest
+            for (String recipient : loaded.getTo()) {
+                buildMessage(paramFile + " for " + recipient, loaded.withRecipients(List.of(recipient)));
+            }
+        } else {
+            buildMessage(paramFile, loaded);
+        }
+    }
+
+    private void buildMessage(String description, EmailConfig config) {
+        try {
+            buildMessage(config);
+        } catch (Exception e) {
+            failures.increment();
+            logger.warn("Dry run of {} failed: {}", description, e.getMessage());
+        }
+    }
+
+    private void buildMessage(EmailConfig config) throws Exception {
+        // Same path as a real send, including our own Message-ID
+        if (config.getMessageId() == null) {
+            config = config.withMessageId(EmailDispatcher.newMessageId());
+        }
+
+        long t0 = System.nanoTime();
+        RenderedEmail rendered = emailService.render(config);
+        long t1 = System.nanoTime();
+        Session session = emailService.createSession(config);
+        MimeMessage message = emailService.assemble(session, rendered);
+        message.saveChanges();
+        long t2 = System.nanoTime();
+        CountingSink sink = new CountingSink();
+        message.writeTo(sink);
+        long t3 = System.nanoTime();
+
+        renderNanos.add(t1 - t0);
+        mimeNanos.add(t2 - t1);
+        writeNanos.add(t3 - t2);
+        bytes.add(sink.count);
+        messages.increment();
+    }
+
+    private void report(long elapsedNanos, long allocatedBytes) {
+        long count = messages.sum();
+        double seconds = elapsedNanos / 1e9;
+        double megabytes = bytes.sum() / (1024.0 * 1024.0);
+        long stageTotal = loadNanos.sum() + renderNanos.sum() + mimeNanos.sum() + writeNanos.sum();
+
+        logger.info("Dry run: {} messages ({} failed) on {} threads in {} s",
+                count, failures.sum(), threads, String.format("%.2f", seconds));
+        if (count == 0) {
+            return;
+        }
+        logger.info("Throughput: {} messages/s, {} MB/s ({} KB per message)",
+                String.format("%.1f", count / seconds), String.format("%.2f", megabytes / seconds),
+                bytes.sum() / count / 1024);
+        logger.info("Allocation: {} KB per message", allocatedBytes >= 0 ? allocatedBytes / count / 1024 : "n/a");
+        logger.info("Time per stage: load {}, render {}, mime {}, write {}",
+                share(loadNanos.sum(), stageTotal, count), share(renderNanos.sum(), stageTotal, count),
+                share(mimeNanos.sum(), stageTotal, count), share(writeNanos.sum(), stageTotal, count));
+    }
+
+    private static String share(long nanos, long total, long count) {
+        return String.format("%.2f ms (%d%%)", nanos / 1e6 / count, total > 0 ? Math.round(100.0 * nanos / total) : 0);
+    }
+
+    /**
+     * Bytes allocated so far by all live threads (the dry-run workers and
+     * the pool that encodes attachments), or -1 if the JVM cannot tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : allocations.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Discards the serialized message, keeping only its size
+     */
+    private static class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.emailautomation.services;
+
+import com.emailautomation.models.EmailConfig;
+import com.emailautomation.utils.EmailConfigLoader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.mail.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-process sender for batch and long-running modes, built as a staged
+ * pipeline so CPU-bound and I/O-bound work overlap:
+ *
+ *   load (param file read and decode) -> render (template) ->
+ *   mime (message and attachment assembly) -> deliver (SMTP) -> log
+ *
+ * Every stage has its own workers and a bounded queue in front of it. When
+ * delivery lags, the queues fill up and submit() blocks, which slows intake
+ * instead of buffering an unbounded backlog. A MemoryBudget additionally
+ * caps the estimated bytes of all messages between render and log, so a run
+ * of large attachments cannot exhaust the heap. Callers get a message ID
+ * back and can poll its status.
+ * <p>
+ * Messages with priority=high travel in a separate lane of every queue, are
+ * taken ahead of bulk mail by weighted round robin and have a reserved worker
+ * (and so SMTP connection) in the render, mime and deliver stages, so a
+ * password reset is not stuck behind a running campaign.
+ */
+public class EmailDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(EmailDispatcher.class);
+
+    // How many finished message statuses are remembered for polling
+    private static final int MAX_TRACKED_STATUSES = 10_000;
+
+    private static final int QUEUE_CAPACITY = 64;
+    // Workers per stage that only handle high priority messages
+    private static final int RESERVED_HIGH_WORKERS = 1;
+    private static final long QUEUE_REPORT_SECONDS = 30;
+
+    public enum Status { SCHEDULED, QUEUED, SENDING, SENT, FAILED }
+
+    private final EmailService emailService;
+    private final LogService logService;
+    private final NotificationAggregator aggregator;
+    private final MemoryBudget memoryBudget;
+
+    private final PipelineStage loadStage;
+    private final PipelineStage renderStage;
+    private final PipelineStage mimeStage;
+    private final PipelineStage deliverStage;
+    private final PipelineStage logStage;
+    private final List<PipelineStage> stages;
+    private final ScheduledExecutorService reporter;
+
+    private final Object idleLock = new Object();
+    private int inFlight = 0;
+
+    // Statuses of messages still scheduled, queued or sending; kept until they finish
+    private final Map<String, Status> activeStatuses = new ConcurrentHashMap<>();
+    // Statuses of finished messages, the oldest forgotten first
+    private final Map<String, Status> finishedStatuses = Collections.synchronizedMap(
+            new LinkedHashMap<String, Status>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Status> eldest) {
+                    return size() > MAX_TRACKED_STATUSES;
+                }
+            });
+
+    /**
+     * @param deliveryThreads number of concurrent SMTP sends, plus one reserved for high priority
+     * @param memoryBudget     limit on the estimated size of messages in flight
+     */
+    public EmailDispatcher(EmailService emailService, LogService logService,
+                           NotificationAggregator aggregator, int deliveryThreads, MemoryBudget memoryBudget) {
+        this.emailService = emailService;
+        this.logService = logService;
+        this.aggregator = aggregator;
+        this.memoryBudget = memoryBudget;
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.loadStage = new PipelineStage("load", Math.max(1, cores / 2), QUEUE_CAPACITY, this::load);
+        this.renderStage = new PipelineStage("render", cores, RESERVED_HIGH_WORKERS, QUEUE_CAPACITY, this::render);
+        this.mimeStage = new PipelineStage("mime", cores, RESERVED_HIGH_WORKERS, QUEUE_CAPACITY, this::assemble);
+        this.deliverStage = new PipelineStage("deliver", deliveryThreads, RESERVED_HIGH_WORKERS, QUEUE_CAPACITY,
+                this::deliver);
+        // A single log writer keeps the log files ordered and free of interleaving
+        this.logStage = new PipelineStage("log", 1, QUEUE_CAPACITY, this::finish);
+
+        loadStage.connect(renderStage, logStage);
+        renderStage.connect(mimeStage, logStage);
+        mimeStage.connect(deliverStage, logStage);
+        deliverStage.connect(logStage, logStage);
+        logStage.connect(null, null);
+
+        this.stages = List.of(loadStage, renderStage, mimeStage, deliverStage, logStage);
+        stages.forEach(PipelineStage::start);
+
+        this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pipeline-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::reportQueues, QUEUE_REPORT_SECONDS, QUEUE_REPORT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public static String newMessageId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Queue a message for sending. The config must carry a message ID.
+     */
+    public String submit(EmailConfig config) {
+        return submit(config, null);
+    }
+
+    /**
+     * Queue a message for sending and run {@code afterSend} once it has been
+     * sent or has failed (e.g. to remove uploaded attachment files). Blocks
+     * while the pipeline is full.
+     */
+    public String submit(EmailConfig config, Runnable afterSend) {
+        String messageId = config.getMessageId();
+        if (messageId == null) {
+            throw new IllegalArgumentException("Message ID is missing");
+        }
+
+        setStatus(messageId, Status.QUEUED);
+        // Already loaded, so skip the load stage
+        enqueue(renderStage, new SendJob(null, config, null, null, afterSend));
+        return messageId;
+    }
+
+    /**
+     * Queue a param file. It is loaded and validated in the pipeline;
+     * {@code onSent} runs only if the email was sent successfully, and
+     * {@code onDeferred} instead of sending when its send_at is still ahead.
+     */
+    public void submitParamFile(String paramFile, Consumer<EmailConfig> onSent, Consumer<EmailConfig> onDeferred) {
+        submitParamFile(paramFile, onSent, onDeferred, null);
+    }
+
+    /**
+     * Queue a param file as above, and run {@code afterSend} once it has been
+     * sent, deferred or has failed
+     */
+    public void submitParamFile(String paramFile, Consumer<EmailConfig> onSent, Consumer<EmailConfig> onDeferred,
+                                Runnable afterSend) {
+        enqueue(loadStage, new SendJob(paramFile, null, onSent, onDeferred, afterSend));
+    }
+
+    /**
+     * Queue a param file that was already read, e.g. by
+     * EmailConfigLoader.loadAll. It is validated and handled as above.
+     */
+    public void submitLoaded(String paramFile, EmailConfig loaded, Consumer<EmailConfig> onSent,
+                             Consumer<EmailConfig> onDeferred) {
+        submitLoaded(paramFile, loaded, onSent, onDeferred, null);
+    }
+
+    /**
+     * Queue a param file that was already read, and run {@code afterSend}
+     * once it has been sent, deferred or has failed
+     */
+    public void submitLoaded(String paramFile, EmailConfig loaded, Consumer<EmailConfig> onSent,
+                             Consumer<EmailConfig> onDeferred, Runnable afterSend) {
+        enqueue(loadStage, new SendJob(paramFile, loaded, onSent, onDeferred, afterSend));
+    }
+
+    /**
+     * Record that a message is being held for a later send time
+     */
+    public void markScheduled(String messageId) {
+        setStatus(messageId, Status.SCHEDULED);
+    }
+
+    public Status getStatus(String messageId) {
+        Status status = activeStatuses.get(messageId);
+        return status != null ? status : finishedStatuses.get(messageId);
+    }
+
+    /**
+     * Current depth of each stage's input queue, in pipeline order
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        for (PipelineStage stage : stages) {
+            depths.put(stage.getName(), stage.depth());
+        }
+        return depths;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    private void setStatus(String messageId, Status status) {
+        activeStatuses.put(messageId, status);
+    }
+
+    /**
+     * Record the last status of a message; it may be forgotten once
+     * MAX_TRACKED_STATUSES newer messages have finished
+     */
+    private void finishStatus(String messageId, Status status) {
+        finishedStatuses.put(messageId, status);
+        activeStatuses.remove(messageId);
+    }
+
+    private void enqueue(PipelineStage stage, SendJob job) {
+        synchronized (idleLock) {
+            inFlight++;
+        }
+        try {
+            stage.put(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            completed();
+            throw new IllegalStateException("Interrupted while queueing " + job.describe(), e);
+        }
+    }
+
+    private void load(SendJob job) throws Exception {
+        EmailConfig loaded = job.config;
+        if (loaded == null) {
+            logger.info("Loading email configuration from: {}", job.paramFile);
+            loaded = EmailConfigLoader.loadFromFile(job.paramFile);
+        }
+        job.config = loaded.getMessageId() != null ? loaded : loaded.withMessageId(newMessageId());
+        job.messageId = job.config.getMessageId();
+        setStatus(job.messageId, Status.QUEUED);
+
+        if (!job.config.isValid()) {
+            job.invalidConfig = true;
+            throw new IllegalArgumentException("Invalid email configuration: " + job.config.getValidationErrors());
+        }
+        if (job.config.isDeferred() && job.onDeferred != null) {
+            job.deferred = true;
+        }
+    }
+
+    private void render(SendJob job) throws InterruptedException {
+        // Blocks the render workers while the budget is used up, which in
+        // turn fills the queues and holds back intake
+        job.reservedBytes = memoryBudget.acquire(MemoryBudget.estimate(job.config), job.isHighPriority());
+        job.rendered = emailService.render(job.config);
+    }
+
+    private void assemble(SendJob job) throws Exception {
+        Session session = emailService.createSession(job.config);
+        job.message = emailService.assemble(session, job.rendered);
+        // Drop the rendered body now that it lives in the message
+        job.rendered = null;
+    }
+
+    private void deliver(SendJob job) throws Exception {
+        setStatus(job.messageId, Status.SENDING);
+        if (logger.isInfoEnabled()) {
+            logger.info("Sending email to: {}", String.join(",", job.config.getTo()));
+        }
+        emailService.deliver(job.message);
+        job.archived = emailService.archive(job.config, job.message);
+        job.message = null;
+    }
+
+    private void finish(SendJob job) {
+        try {
+            if (job.deferred) {
+                // The caller holds on to the param file and loads it again
+                // under a new message ID, so this status need not be kept
+                finishStatus(job.messageId, Status.SCHEDULED);
+                job.onDeferred.accept(job.config);
+            } else if (!job.isFailed()) {
+                finishStatus(job.messageId, Status.SENT);
+                logService.logSuccess("filesendlist.log", "Email sent successfully", job.config);
+                logService.logSuccess("sentlast.log", "Email sent successfully", job.config);
+                logService.recordSent(job.config);
+                aggregator.recordSuccess();
+                if (job.onSent != null) {
+                    job.onSent.accept(job.config);
+                }
+            } else {
+                Exception e = job.failure;
+                if (job.messageId != null) {
+                    finishStatus(job.messageId, Status.FAILED);
+                }
+                logger.error("Failed to send {}: {}", job.describe(), e.getMessage());
+                if (job.config != null) {
+                    String message = job.invalidConfig ? e.getMessage() : "Email sending failed: " + e.getMessage();
+                    logService.logError("filesendlist.log", message, job.config);
+                    if (job.invalidConfig) {
+                        logService.logError("sentlast.log", message, job.config);
+                    }
+                }
+                aggregator.recordFailure(job.describe() + ": " + e.getMessage());
+            }
+        } catch (Exception e) {
+            logger.warn("Post-send handling failed for {}: {}", job.describe(), e.getMessage());
+        } finally {
+            // The archive still holds the message until it has been written
+            long reserved = job.reservedBytes;
+            job.reservedBytes = 0;
+            if (job.archived != null) {
+                job.archived.whenComplete((done, e) -> memoryBudget.release(reserved));
+            } else {
+                memoryBudget.release(reserved);
+            }
+            if (job.onFinished != null) {
+                try {
+                    job.onFinished.run();
+                } catch (Exception e) {
+                    logger.warn("Post-send cleanup failed for {}: {}", job.describe(), e.getMessage());
+                }
+            }
+            completed();
+        }
+    }
+
+    private void completed() {
+        synchronized (idleLock) {
+            inFlight--;
+            idleLock.notifyAll();
+        }
+    }
+
+    private void reportQueues() {
+        synchronized (idleLock) {
+            if (inFlight == 0) {
+                return;
+            }
+        }
+        if (logger.isInfoEnabled()) {
+            int high = 0;
+            for (PipelineStage stage : stages) {
+                high += stage.highDepth();
+            }
+            logger.info("Pipeline queues: {} ({} high priority), memory in flight: {} of {} KB", getQueueDepths(),
+                    high, memoryBudget.getReservedBytes() / 1024, memoryBudget.getBudgetBytes() / 1024);
+        }
+    }
+
+    /**
+     * Block until every submitted message has finished (sent or failed)
+     */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (idleLock) {
+            while (inFlight > 0) {
+                idleLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting work and wait for queued messages to finish
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        reporter.shutdownNow();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (PipelineStage stage : stages) {
+            if (!stage.drainAndStop(deadline)) {
+                logger.warn("Pipeline stage {} did not finish within {}s", stage.getName(), unit.toSeconds(timeout));
+                return;
+            }
+        }
+    }
+}
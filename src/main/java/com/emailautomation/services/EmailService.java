@@ -1,28 +1,105 @@
 package com.emailautomation.services;
 
 import com.emailautomation.models.EmailConfig;
+import com.emailautomation.models.RenderedEmail;
+import com.emailautomation.tracing.SendEvents;
+import com.sun.mail.smtp.SMTPTransport;
 import javax.mail.*;
 import javax.mail.internet.*;
 import javax.activation.*;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import java.util.logging.Logger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Service for sending emails via SMTP
  */
 public class EmailService {
-    private static final Logger logger = Logger.getLogger(EmailService.class.getName());
+    private static final Logger logger = LoggerFactory.getLogger(EmailService.class);
+
+    // SMTP connects block on the network, so they get their own threads rather than the fork-join pool
+    private static final ExecutorService CONNECT_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "smtp-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AttachmentEncoder attachmentEncoder = new AttachmentEncoder();
+
+    /**
+     * Send email via SMTP server over a connection started with connectAsync
+     */
+    public void sendViaSMTP(EmailConfig config, CompletableFuture<Transport> connection) throws MessagingException {
+        try {
+            MimeMessage message = buildMessage(createSession(config), config);
+            deliver(message, connection);
+            logger.info("Email sent successfully via SMTP");
+            archive(config, message);
+
+        } catch (MessagingException e) {
+            logger.error("Failed to send email: {}", e.getMessage());
+            throw e;
+        }
+    }
 
     /**
      * Send email via SMTP server
      */
     public void sendViaSMTP(EmailConfig config) throws MessagingException {
+        Session session = createSession(config);
+
+        try {
+            MimeMessage message = buildMessage(session, config);
+
+            // Send message
+            deliver(message);
+            logger.info("Email sent successfully via SMTP");
+            archive(config, message);
+
+        } catch (MessagingException e) {
+            logger.error("Failed to send email: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Exercise the message building path without touching the network.
+     * Used by the CDS training run so the archive contains the mail classes.
+     */
+    public void warmUp() throws MessagingException, IOException {
+        EmailConfig sample = EmailConfig.builder()
+                .smtpServer("localhost")
+                .port(25)
+                .user("warmup@localhost")
+                .password("warmup")
+                .addTo("warmup@localhost")
+                .subject("Warm-up")
+                .body("Warm-up body")
+                .useHtml(true)
+                .build();
+
+        Session session = createSession(sample);
+        session.getTransport("smtp");
+        MimeMessage message = buildMessage(session, sample);
+        message.saveChanges();
+        message.writeTo(OutputStream.nullOutputStream());
+    }
+
+    /**
+     * Create an authenticated mail session for the configured SMTP server
+     */
+    public Session createSession(EmailConfig config) {
         // Set up mail server properties
         Properties props = new Properties();
         props.put("mail.smtp.host", config.getSmtpServer());
@@ -33,130 +110,365 @@ public class EmailService {
         if (config.isUseTLS()) {  // <-- This checks the cert parameter
             props.put("mail.smtp.starttls.enable", "true");
             props.put("mail.smtp.ssl.trust", config.getSmtpServer());
-            logger.info("Using STARTTLS encryption on port " + config.getPort());
+            logger.debug("Using STARTTLS encryption on port {}", config.getPort());
         } else if (config.getPort() == 465) {
             props.put("mail.smtp.ssl.enable", "true");
-            logger.info("Using SSL encryption on port 465");
+            logger.debug("Using SSL encryption on port 465");
         } else {
-            logger.info("No encryption enabled on port " + config.getPort() + " - cert=false");
+            logger.debug("No encryption enabled on port {} - cert=false", config.getPort());
         }
 
         // Create session with authentication
-        Session session = Session.getInstance(props, new Authenticator() {
+        return Session.getInstance(props, new Authenticator() {
             @Override
             protected PasswordAuthentication getPasswordAuthentication() {
                 return new PasswordAuthentication(config.getUser(), config.getPassword());
             }
         });
+    }
 
-        try {
-            // Create message
-            MimeMessage message = new MimeMessage(session);
-            message.setFrom(new InternetAddress(config.getFrom()));
-
-            // Set Reply-To address if specified
-            if (config.getReplyTo() != null && !config.getReplyTo().isEmpty()) {
-                message.setReplyTo(new Address[] { new InternetAddress(config.getReplyTo()) });
-                logger.info("Reply-To address set to: " + config.getReplyTo());
-            }
+    /**
+     * Build the complete MIME message (headers, body, logo and attachments)
+     */
+    public MimeMessage buildMessage(Session session, EmailConfig config) throws MessagingException {
+        // Encode attachments while the template is being rendered
+        List<CompletableFuture<MimeBodyPart>> attachmentParts = startAttachments(config);
+        return assemble(session, render(config), attachmentParts);
+    }
 
-            // Add recipients
-            for (String recipient : config.getTo()) {
-                message.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient.trim()));
-            }
+    /**
+     * Assemble the MIME message for an already rendered body
+     */
+    public MimeMessage assemble(Session session, RenderedEmail rendered) throws MessagingException {
+        return assemble(session, rendered, startAttachments(rendered.getConfig()));
+    }
 
-            // Add BCC recipients
-            for (String bcc : config.getBcc()) {
-                if (!bcc.isEmpty()) {
-                    message.addRecipient(Message.RecipientType.BCC, new InternetAddress(bcc.trim()));
-                }
+    private MimeMessage assemble(Session session, RenderedEmail rendered,
+                                 List<CompletableFuture<MimeBodyPart>> attachmentParts) throws MessagingException {
+        EmailConfig config = rendered.getConfig();
+
+        // Start the inline images alongside the attachments; bundled ones are already encoded
+        TemplateBundle bundle = loadBundle(config);
+        List<CompletableFuture<MimeBodyPart>> inlineParts = new ArrayList<>();
+        for (RenderedEmail.InlineImage image : rendered.getInlineImages()) {
+            if (bundle != null && bundle.contains(image.getContentId())) {
+                inlineParts.add(CompletableFuture.completedFuture(bundle.newPart(image.getContentId())));
+            } else if (image.getPath().equals(config.getTemplateBundle())
+                    || (bundle != null && image.getPath().equals(bundle.getPath()))) {
+                // Never attach the bundle file itself as an image
+                throw new MessagingException("Template bundle " + config.getTemplateBundle()
+                        + " changed while the message was built");
+            } else {
+                inlineParts.add(attachmentEncoder.inline(image.getPath(), image.getContentId()));
             }
+        }
+
+        // Create message, keeping our own Message-ID when one was assigned
+        // and signing it when DKIM is configured
+        DkimSigner signer = DkimSigner.forConfig(config);
+        MimeMessage message = config.getMessageId() != null || signer != null
+                ? new OutgoingMimeMessage(session,
+                        config.getMessageId() != null ? formatMessageId(config.getMessageId()) : null, signer)
+                : new MimeMessage(session);
+        message.setFrom(new InternetAddress(config.getFrom()));
+
+        // Set Reply-To address if specified
+        if (config.getReplyTo() != null && !config.getReplyTo().isEmpty()) {
+            message.setReplyTo(new Address[] { new InternetAddress(config.getReplyTo()) });
+            logger.debug("Reply-To address set to: {}", config.getReplyTo());
+        }
 
-            // Set subject with UTF-8 encoding for Hebrew support
-            message.setSubject(config.getSubject(), "UTF-8");
+        // Add recipients
+        for (String recipient : config.getTo()) {
+            message.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient.trim()));
+        }
 
-            // Request read receipt if enabled
-            if (config.isReadReceipt()) {
-                String receiptTo = config.getReplyTo() != null && !config.getReplyTo().isEmpty()
-                        ? config.getReplyTo() : config.getFrom();
-                message.setHeader("Disposition-Notification-To", receiptTo);
-                message.setHeader("Return-Receipt-To", receiptTo);
-                logger.info("Read receipt requested, will be sent to: " + receiptTo);
+        // Add BCC recipients
+        for (String bcc : config.getBcc()) {
+            if (!bcc.isEmpty()) {
+                message.addRecipient(Message.RecipientType.BCC, new InternetAddress(bcc.trim()));
             }
+        }
 
-            // Create multipart message
-            Multipart multipart = new MimeMultipart("related");
-
-            // Create body part
-            MimeBodyPart bodyPart = new MimeBodyPart();
-
-            // Generate email body content
-            String emailBody = generateEmailBody(config, multipart);
-
-            // FORCE ADD MISRADIT FOOTER - ALWAYS
-            logger.info("*** FORCING MISRADIT FOOTER ***");
-            String misraditText = "Sent with Misradit - נשלח בעזרת משרדית";
-
-            // Check if we successfully processed an HTML template
-            boolean usingTemplate = (config.getHtmlTemplate() != null &&
-                    !config.getHtmlTemplate().isEmpty() &&
-                    Files.exists(Paths.get(config.getHtmlTemplate())));
-
-            if (usingTemplate && !emailBody.equals(config.getBody())) {
-                // Using HTML template - add footer as HTML
-                if (!emailBody.contains("Sent with Misradit")) {
-                    String htmlFooter = "<div style='margin-top: 30px; font-size: 12px; color: #666;'>" + misraditText + "</div>";
-                    if (emailBody.toLowerCase().contains("</body>")) {
-                        emailBody = emailBody.replace("</body>", htmlFooter + "</body>");
-                    } else {
-                        emailBody = emailBody + htmlFooter;
-                    }
-                    logger.info("*** ADDED FOOTER TO HTML TEMPLATE ***");
-                }
-                bodyPart.setContent(emailBody, "text/html; charset=UTF-8");
-                logger.info("*** SET HTML TEMPLATE CONTENT ***");
-            } else {
-                // Fallback mode - handle both HTML and plain text
-                String bodyContent = config.getBody();
-                boolean useHtml = config.isUseHtml() || config.getLogoPath() != null || config.getSignatureFile() != null;
-
-                if (useHtml) {
-                    // HTML mode - create simple HTML with footer
-                    String htmlBody = "<html><body style='font-family: Arial, sans-serif;'>" +
-                            convertTextToHtml(bodyContent) +
-                            "<div style='margin-top: 30px; font-size: 12px; color: #666;'>" + misraditText + "</div>" +
-                            "</body></html>";
-                    bodyPart.setContent(htmlBody, "text/html; charset=UTF-8");
-                    logger.info("*** SET HTML FALLBACK CONTENT WITH FOOTER ***");
+        // Set subject with UTF-8 encoding for Hebrew support
+        message.setSubject(config.getSubject(), "UTF-8");
+
+        // Request read receipt if enabled
+        if (config.isReadReceipt()) {
+            String receiptTo = config.getReplyTo() != null && !config.getReplyTo().isEmpty()
+                    ? config.getReplyTo() : config.getFrom();
+            message.setHeader("Disposition-Notification-To", receiptTo);
+            message.setHeader("Return-Receipt-To", receiptTo);
+            logger.debug("Read receipt requested, will be sent to: {}", receiptTo);
+        }
+
+        // Create multipart message
+        Multipart multipart = new MimeMultipart("related");
+
+        // Create body part
+        MimeBodyPart bodyPart = new MimeBodyPart();
+        if (rendered.isHtml()) {
+            bodyPart.setContent(rendered.getContent(), "text/html; charset=UTF-8");
+        } else {
+            bodyPart.setText(rendered.getContent(), "UTF-8");
+        }
+        multipart.addBodyPart(bodyPart);
+
+        // Add embedded images referenced from the HTML
+        for (int i = 0; i < inlineParts.size(); i++) {
+            multipart.addBodyPart(await(inlineParts.get(i), "Failed to embed image"));
+            logger.debug("Added logo to email: {}", rendered.getInlineImages().get(i).getPath());
+        }
+
+        // Add attachments
+        addAttachments(config, attachmentParts, multipart);
+
+        message.setContent(multipart);
+
+        return message;
+    }
+
+    /**
+     * Render the body: apply the HTML template and placeholders when one is
+     * configured, otherwise build the HTML or plain text fallback, and always
+     * append the Misradit footer.
+     */
+    public RenderedEmail render(EmailConfig config) {
+        List<RenderedEmail.InlineImage> inlineImages = new ArrayList<>();
+
+        // Generate email body content
+        String emailBody = generateEmailBody(config, inlineImages);
+
+        // FORCE ADD MISRADIT FOOTER - ALWAYS
+        logger.debug("*** FORCING MISRADIT FOOTER ***");
+        String misraditText = "Sent with Misradit - נשלח בעזרת משרדית";
+
+        // Check if we successfully processed an HTML template
+        boolean usingTemplate = (config.getHtmlTemplate() != null &&
+                !config.getHtmlTemplate().isEmpty() &&
+                Files.exists(Paths.get(config.getHtmlTemplate())))
+                || (config.getTemplateBundle() != null && Files.exists(Paths.get(config.getTemplateBundle())));
+
+        if (usingTemplate && !emailBody.equals(config.getBody())) {
+            // Using HTML template - add footer as HTML
+            if (!emailBody.contains("Sent with Misradit")) {
+                String htmlFooter = "<div style='margin-top: 30px; font-size: 12px; color: #666;'>" + misraditText + "</div>";
+                if (emailBody.toLowerCase().contains("</body>")) {
+                    emailBody = emailBody.replace("</body>", htmlFooter + "</body>");
                 } else {
-                    // Plain text mode
-                    String plainTextBody = bodyContent + "\n\n" + misraditText;
-                    bodyPart.setText(plainTextBody, "UTF-8");
-                    logger.info("*** SET PLAIN TEXT CONTENT WITH FOOTER ***");
+                    emailBody = emailBody + htmlFooter;
                 }
+                logger.debug("*** ADDED FOOTER TO HTML TEMPLATE ***");
             }
+            logger.debug("*** SET HTML TEMPLATE CONTENT ***");
+            return new RenderedEmail(config, emailBody, true, inlineImages);
+        }
 
-            multipart.addBodyPart(bodyPart);
+        // Fallback mode - handle both HTML and plain text
+        String bodyContent = config.getBody();
+        boolean useHtml = config.isUseHtml() || config.getLogoPath() != null || config.getSignatureFile() != null;
+
+        if (useHtml) {
+            // HTML mode - create simple HTML with footer
+            String htmlBody = "<html><body style='font-family: Arial, sans-serif;'>" +
+                    convertTextToHtml(bodyContent) +
+                    "<div style='margin-top: 30px; font-size: 12px; color: #666;'>" + misraditText + "</div>" +
+                    "</body></html>";
+            logger.debug("*** SET HTML FALLBACK CONTENT WITH FOOTER ***");
+            return new RenderedEmail(config, htmlBody, true, inlineImages);
+        }
 
-            // Add attachments
-            addAttachments(config, multipart);
+        // Plain text mode
+        String plainTextBody = bodyContent + "\n\n" + misraditText;
+        logger.debug("*** SET PLAIN TEXT CONTENT WITH FOOTER ***");
+        return new RenderedEmail(config, plainTextBody, false, inlineImages);
+    }
 
-            message.setContent(multipart);
+    /**
+     * Send a fully assembled message
+     */
+    public void deliver(MimeMessage message) throws MessagingException {
+        message.saveChanges();
+        Transport transport = connect(message.getSession(), messageIdOf(message));
+        try {
+            send(message, transport);
+        } finally {
+            transport.close();
+        }
+    }
 
-            // Send message
-            Transport.send(message);
-            logger.info("Email sent successfully via SMTP");
+    /**
+     * Send a fully assembled message over an already opened connection,
+     * closing the connection afterwards
+     */
+    public void deliver(MimeMessage message, CompletableFuture<Transport> connection) throws MessagingException {
+        Transport transport;
+        try {
+            transport = connection.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw cause instanceof MessagingException
+                    ? (MessagingException) cause
+                    : new MessagingException("Could not connect to SMTP server: " + cause.getMessage());
+        }
+
+        try {
+            message.saveChanges();
+            send(message, transport);
+        } finally {
+            transport.close();
+        }
+    }
 
+    /**
+     * Queue a sent message for the config's sent-mail archive, if it has one.
+     * The message must not be changed until the returned future completes.
+     */
+    public CompletableFuture<Void> archive(EmailConfig config, MimeMessage message) {
+        if (config.getArchiveDir() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            String messageId = config.getMessageId() != null ? config.getMessageId() : messageIdOf(message);
+            return SentArchive.forDirectory(config.getArchiveDir()).append(messageId, message);
+        } catch (IOException e) {
+            logger.error("Could not open sent-mail archive {}: {}", config.getArchiveDir(), e.getMessage());
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Write a sent message exactly as it went out, with the DKIM signature it
+     * was sent with instead of a new one
+     */
+    static void writeAsSent(MimeMessage message, OutputStream os) throws IOException, MessagingException {
+        if (message instanceof OutgoingMimeMessage) {
+            ((OutgoingMimeMessage) message).writeSent(os);
+        } else {
+            message.writeTo(os);
+        }
+    }
+
+    /**
+     * The DKIM-Signature header a sent message went out with, or null
+     */
+    static byte[] sentSignature(MimeMessage message) {
+        return message instanceof OutgoingMimeMessage ? ((OutgoingMimeMessage) message).signature : null;
+    }
+
+    /**
+     * Open and authenticate the SMTP connection in the background, so the
+     * TCP and TLS handshakes overlap with reading and encoding the content.
+     * Only the server settings (host, port, user, password, cert) are used.
+     */
+    public CompletableFuture<Transport> connectAsync(EmailConfig serverSettings) {
+        Session session = createSession(serverSettings);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Transport transport = connect(session, serverSettings.getMessageId());
+                logger.debug("SMTP connection to {} ready", serverSettings.getSmtpServer());
+                return transport;
+            } catch (MessagingException e) {
+                throw new CompletionException(e);
+            }
+        }, CONNECT_EXECUTOR);
+    }
+
+    /**
+     * Open and authenticate an SMTP connection, recorded as an SmtpConnect event
+     */
+    private static Transport connect(Session session, String messageId) throws MessagingException {
+        SendEvents.SmtpConnect event = new SendEvents.SmtpConnect();
+        event.begin();
+        Transport transport = session.getTransport("smtp");
+        boolean connected = false;
+        try {
+            transport.connect();
+            connected = true;
+            return transport;
+        } finally {
+            if (event.shouldCommit()) {
+                event.messageId = messageId;
+                event.relay = session.getProperty("mail.smtp.host") + ":" + session.getProperty("mail.smtp.port");
+                event.replyCode = replyCode(transport);
+                event.succeeded = connected;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Send one message over an open connection, recorded as an SmtpData event
+     */
+    private static void send(MimeMessage message, Transport transport) throws MessagingException {
+        SendEvents.SmtpData event = new SendEvents.SmtpData();
+        event.begin();
+        Address[] recipients = message.getAllRecipients();
+        boolean sent = false;
+        try {
+            transport.sendMessage(message, recipients);
+            sent = true;
+        } finally {
+            if (event.shouldCommit()) {
+                URLName url = transport.getURLName();
+                event.messageId = messageIdOf(message);
+                event.relay = url != null ? url.getHost() + ":" + url.getPort() : null;
+                event.recipients = recipients != null ? recipients.length : 0;
+                event.replyCode = replyCode(transport);
+                event.succeeded = sent;
+                event.commit();
+            }
+        }
+    }
+
+    private static String messageIdOf(MimeMessage message) {
+        try {
+            return parseMessageId(message.getMessageID());
         } catch (MessagingException e) {
-            logger.severe("Failed to send email: " + e.getMessage());
-            throw e;
+            return null;
+        }
+    }
+
+    private static int replyCode(Transport transport) {
+        return transport instanceof SMTPTransport ? ((SMTPTransport) transport).getLastReturnCode() : -1;
+    }
+
+    /**
+     * Close a connection opened by connectAsync that will not be used
+     */
+    public static void discard(CompletableFuture<Transport> connection) {
+        connection.thenAccept(transport -> {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                // Nothing was sent over it
+            }
+        });
+    }
+
+    /**
+     * Message-ID header value for an assigned message ID
+     */
+    public static String formatMessageId(String messageId) {
+        return "<" + messageId + "@emailautomation>";
+    }
+
+    /**
+     * Message ID back from a Message-ID header value, or the header value
+     * itself when it was not assigned by us
+     */
+    public static String parseMessageId(String header) {
+        if (header != null && header.startsWith("<") && header.endsWith("@emailautomation>")) {
+            return header.substring(1, header.length() - "@emailautomation>".length());
         }
+        return header;
     }
 
-    private String generateEmailBody(EmailConfig config, Multipart multipart) throws MessagingException {
+    private String generateEmailBody(EmailConfig config, List<RenderedEmail.InlineImage> inlineImages) {
         // Check if HTML template is specified
-        if (config.getHtmlTemplate() != null && !config.getHtmlTemplate().isEmpty()) {
-            String templateResult = processHtmlTemplate(config, multipart);
+        if ((config.getHtmlTemplate() != null && !config.getHtmlTemplate().isEmpty())
+                || config.getTemplateBundle() != null) {
+            String templateResult = processHtmlTemplate(config, inlineImages);
             if (templateResult != null) {
                 return templateResult; // Successfully processed template
             }
@@ -168,38 +480,64 @@ public class EmailService {
         return config.getBody();
     }
 
-    private String processHtmlTemplate(EmailConfig config, Multipart multipart) throws MessagingException {
+    private String processHtmlTemplate(EmailConfig config, List<RenderedEmail.InlineImage> inlineImages) {
+        SendEvents.TemplateRender event = new SendEvents.TemplateRender();
+        event.begin();
+        String html = fillHtmlTemplate(config, inlineImages);
+        if (event.shouldCommit()) {
+            event.messageId = config.getMessageId();
+            event.template = config.getTemplateBundle() != null ? config.getTemplateBundle() : config.getHtmlTemplate();
+            event.outputLength = html != null ? html.length() : 0;
+            event.commit();
+        }
+        return html;
+    }
+
+    private String fillHtmlTemplate(EmailConfig config, List<RenderedEmail.InlineImage> inlineImages) {
         try {
-            // 1. Load the HTML template from the path specified in prm file
-            String templatePath = config.getHtmlTemplate();
+            String htmlTemplate;
+            if (config.getTemplateBundle() != null) {
+                // 1. Take the precompiled template, with logo and signature in place
+                TemplateBundle bundle = loadBundle(config);
+                if (bundle == null) {
+                    return null; // Signal to use fallback
+                }
+                htmlTemplate = bundle.getHtml();
+                inlineImages.addAll(bundle.getInlineImages());
+            } else {
+                // 1. Load the HTML template from the path specified in prm file
+                String templatePath = config.getHtmlTemplate();
+
+                // Check if template file exists
+                if (!Files.exists(Paths.get(templatePath))) {
+                    logger.warn("HTML template file does not exist: {}. Falling back to default HTML generation.",
+                            templatePath);
+                    return null; // Signal to use fallback
+                }
 
-            // Check if template file exists
-            if (!Files.exists(Paths.get(templatePath))) {
-                logger.warning("HTML template file does not exist: " + templatePath + ". Falling back to default HTML generation.");
-                return null; // Signal to use fallback
+                htmlTemplate = Files.readString(Paths.get(templatePath));
+                logger.debug("Loaded HTML template from: {}", templatePath);
             }
 
-            String htmlTemplate = Files.readString(Paths.get(templatePath));
-            logger.info("Loaded HTML template from: " + templatePath);
-
             // 2. Replace {USER_MESSAGE} with content from .txt file (body from config)
             String userMessage = config.getBody();
             userMessage = convertTextToHtml(userMessage); // Convert to HTML format
             htmlTemplate = htmlTemplate.replace("{USER_MESSAGE}", userMessage);
-            logger.info("Replaced {USER_MESSAGE} with properly formatted HTML content");
+            logger.debug("Replaced {USER_MESSAGE} with properly formatted HTML content");
 
             // 3. Replace other placeholders with values from prm file
-            htmlTemplate = replacePlaceholders(htmlTemplate, config, multipart);
+            htmlTemplate = replacePlaceholders(htmlTemplate, config, inlineImages);
 
             return htmlTemplate;
 
         } catch (IOException e) {
-            logger.warning("Failed to load HTML template: " + e.getMessage() + ". Falling back to default HTML generation.");
+            logger.warn("Failed to load HTML template: {}. Falling back to default HTML generation.",
+                    e.getMessage());
             return null; // Signal to use fallback
         }
     }
 
-    private String replacePlaceholders(String htmlTemplate, EmailConfig config, Multipart multipart) throws MessagingException {
+    private String replacePlaceholders(String htmlTemplate, EmailConfig config, List<RenderedEmail.InlineImage> inlineImages) {
         // Convert plain text body to HTML-friendly format for {USER_MESSAGE}
         String userMessage = config.getBody();
         userMessage = convertTextToHtml(userMessage);
@@ -223,14 +561,42 @@ public class EmailService {
         // Subject
         htmlTemplate = htmlTemplate.replace("{SUBJECT}", config.getSubject());
 
+        // Logo and signature (a bundle's HTML has them already)
+        if (config.getTemplateBundle() == null) {
+            htmlTemplate = addBranding(htmlTemplate, config, inlineImages);
+        }
+
+        // Additional common placeholders
+        htmlTemplate = htmlTemplate.replace("{USER_EMAIL}", config.getUser());
+        htmlTemplate = htmlTemplate.replace("{SMTP_SERVER}", config.getSmtpServer());
+
+        // Date placeholders
+        java.time.LocalDateTime now = java.time.LocalDateTime.now();
+        htmlTemplate = htmlTemplate.replace("{DATE}", now.format(java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy")));
+        htmlTemplate = htmlTemplate.replace("{TIME}", now.format(java.time.format.DateTimeFormatter.ofPattern("HH:mm")));
+        htmlTemplate = htmlTemplate.replace("{DATETIME}", now.format(java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm")));
+
+        // Attachment info
+        if (config.getAttachmentName() != null) {
+            htmlTemplate = htmlTemplate.replace("{ATTACHMENT_NAME}", config.getAttachmentName());
+        } else {
+            htmlTemplate = htmlTemplate.replace("{ATTACHMENT_NAME}", "");
+        }
+
+        logger.debug("Replaced all placeholders in HTML template");
+        return htmlTemplate;
+    }
+
+    private String addBranding(String htmlTemplate, EmailConfig config, List<RenderedEmail.InlineImage> inlineImages) {
         // Handle logo if specified
         if (config.getLogoPath() != null && !config.getLogoPath().isEmpty()) {
-            String logoContentId = "logo_" + System.currentTimeMillis() + "@emailautomation";
+            // Same Content-ID for the same logo in every message, so clients can cache it
+            String logoContentId = "logo_" + Integer.toHexString(Paths.get(config.getLogoPath()).toAbsolutePath().hashCode())
+                    + "@emailautomation";
             htmlTemplate = htmlTemplate.replace("{LOGO}", "cid:" + logoContentId);
 
-            // Add logo as embedded image to multipart
-            addLogoToMultipart(config.getLogoPath(), logoContentId, multipart);
-            logger.info("Added logo to email: " + config.getLogoPath());
+            // Logo is embedded as an inline image when the message is assembled
+            inlineImages.add(new RenderedEmail.InlineImage(config.getLogoPath(), logoContentId));
         } else {
             // Remove logo placeholder if no logo specified
             htmlTemplate = htmlTemplate.replace("{LOGO}", "");
@@ -241,34 +607,31 @@ public class EmailService {
             try {
                 String signatureContent = Files.readString(Paths.get(config.getSignatureFile()));
                 htmlTemplate = htmlTemplate.replace("{SIGNATURE}", signatureContent);
-                logger.info("Added signature from: " + config.getSignatureFile());
+                logger.debug("Added signature from: {}", config.getSignatureFile());
             } catch (IOException e) {
-                logger.warning("Failed to load signature file: " + e.getMessage());
+                logger.warn("Failed to load signature file: {}", e.getMessage());
                 htmlTemplate = htmlTemplate.replace("{SIGNATURE}", "");
             }
         } else {
             htmlTemplate = htmlTemplate.replace("{SIGNATURE}", "");
         }
+        return htmlTemplate;
+    }
 
-        // Additional common placeholders
-        htmlTemplate = htmlTemplate.replace("{USER_EMAIL}", config.getUser());
-        htmlTemplate = htmlTemplate.replace("{SMTP_SERVER}", config.getSmtpServer());
-
-        // Date placeholders
-        java.time.LocalDateTime now = java.time.LocalDateTime.now();
-        htmlTemplate = htmlTemplate.replace("{DATE}", now.format(java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy")));
-        htmlTemplate = htmlTemplate.replace("{TIME}", now.format(java.time.format.DateTimeFormatter.ofPattern("HH:mm")));
-        htmlTemplate = htmlTemplate.replace("{DATETIME}", now.format(java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm")));
-
-        // Attachment info
-        if (config.getAttachmentName() != null) {
-            htmlTemplate = htmlTemplate.replace("{ATTACHMENT_NAME}", config.getAttachmentName());
-        } else {
-            htmlTemplate = htmlTemplate.replace("{ATTACHMENT_NAME}", "");
+    /**
+     * The config's template bundle, or null when it has none or it cannot be read
+     */
+    private static TemplateBundle loadBundle(EmailConfig config) {
+        if (config.getTemplateBundle() == null) {
+            return null;
+        }
+        try {
+            return TemplateBundle.load(config.getTemplateBundle());
+        } catch (IOException e) {
+            logger.warn("Failed to load template bundle: {}. Falling back to default HTML generation.",
+                    e.getMessage());
+            return null;
         }
-
-        logger.info("Replaced all placeholders in HTML template");
-        return htmlTemplate;
     }
 
     private String convertTextToHtml(String text) {
@@ -287,43 +650,99 @@ public class EmailService {
                 .replace("\r", "<br>");   // Old Mac line endings
     }
 
-    private void addLogoToMultipart(String logoPath, String logoContentId, Multipart multipart) throws MessagingException {
-        MimeBodyPart logoPart = new MimeBodyPart();
-        DataSource logoSource = new FileDataSource(logoPath);
-        logoPart.setDataHandler(new DataHandler(logoSource));
-        logoPart.setHeader("Content-ID", "<" + logoContentId + ">");
-        logoPart.setDisposition(MimeBodyPart.INLINE);
-        multipart.addBodyPart(logoPart);
+    /**
+     * Start encoding every attachment of the message in parallel
+     */
+    private List<CompletableFuture<MimeBodyPart>> startAttachments(EmailConfig config) {
+        List<CompletableFuture<MimeBodyPart>> parts = new ArrayList<>();
+        for (String attachmentPath : config.getAllAttachmentPaths()) {
+            parts.add(attachmentEncoder.attachment(attachmentPath, config.getCompressOverKb() * 1024L));
+        }
+        return parts;
+    }
+
+    private void addAttachments(EmailConfig config, List<CompletableFuture<MimeBodyPart>> attachmentParts,
+                                Multipart multipart) throws MessagingException {
+        SendEvents.Attachments event = new SendEvents.Attachments();
+        event.begin();
+        for (CompletableFuture<MimeBodyPart> future : attachmentParts) {
+            MimeBodyPart attachmentPart = await(future, "Failed to attach file");
+            multipart.addBodyPart(attachmentPart);
+            logger.debug("Added attachment: {}", attachmentPart.getFileName());
+        }
+        if (event.shouldCommit()) {
+            event.messageId = config.getMessageId();
+            event.count = attachmentParts.size();
+            for (String path : config.getAllAttachmentPaths()) {
+                event.bytes += new File(path).length();
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * Wait for a part prepared on the fork-join pool, surfacing its failure
+     * as a MessagingException like the rest of the send path
+     */
+    private static MimeBodyPart await(CompletableFuture<MimeBodyPart> future, String what) throws MessagingException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof MessagingException) {
+                throw (MessagingException) cause;
+            }
+            throw new MessagingException(what + ": " + cause.getMessage(), cause instanceof Exception ? (Exception) cause : null);
+        }
     }
 
-    private void addAttachments(EmailConfig config, Multipart multipart) {
-        List<String> allAttachments = new ArrayList<>();
+    /**
+     * MimeMessage that keeps a preassigned Message-ID instead of generating
+     * a new one in saveChanges(), so replies and bounces can be correlated,
+     * and that adds a DKIM-Signature header when it is written out.
+     */
+    private static class OutgoingMimeMessage extends MimeMessage {
+        private final String messageId;
+        private final DkimSigner signer;
+        private byte[] signature;  // header from the last signed write
+
+        OutgoingMimeMessage(Session session, String messageId, DkimSigner signer) {
+            super(session);
+            this.messageId = messageId;
+            this.signer = signer;
+        }
 
-        // If we have multiple attachments from .list file, use those
-        if (!config.getAttachmentPaths().isEmpty()) {
-            allAttachments.addAll(config.getAttachmentPaths());
+        @Override
+        protected void updateMessageID() throws MessagingException {
+            if (messageId != null) {
+                setHeader("Message-ID", messageId);
+            } else {
+                super.updateMessageID();
+            }
         }
-        // Otherwise, use single attachment from config if present
-        else if (config.getAttachmentPath() != null && !config.getAttachmentPath().isEmpty()) {
-            allAttachments.add(config.getAttachmentPath());
+
+        /**
+         * Serialize once into the signing stream, which hashes the body as it
+         * goes, then send the signature header followed by the buffered message
+         */
+        @Override
+        public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+            if (signer == null) {
+                super.writeTo(os, ignoreList);
+                return;
+            }
+            DkimSigner.SigningStream signing = signer.newStream();
+            super.writeTo(signing, ignoreList);
+            signature = signer.sign(signing);
+            os.write(signature);
+            signing.writeTo(os);
         }
 
-        // Add all attachments to the email
-        for (String attachmentPath : allAttachments) {
-            try {
-                MimeBodyPart attachmentPart = new MimeBodyPart();
-                DataSource source = new FileDataSource(attachmentPath);
-                attachmentPart.setDataHandler(new DataHandler(source));
-
-                // Extract filename from path
-                String filename = new File(attachmentPath).getName();
-                attachmentPart.setFileName(filename);
-
-                multipart.addBodyPart(attachmentPart);
-                logger.info("Added attachment: " + filename);
-            } catch (Exception e) {
-                logger.warning("Failed to attach file: " + attachmentPath + " - " + e.getMessage());
+        void writeSent(OutputStream os) throws IOException, MessagingException {
+            if (signature != null) {
+                os.write(signature);
             }
+            super.writeTo(os, null);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,127 @@
+package com.emailautomation.services;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded input queue of a pipeline stage with a high and a normal priority
+ * lane. Each lane has its own capacity, so a full bulk lane never blocks
+ * a transactional message from being queued. Takers are served by weighted
+ * round robin: while both lanes hold work, HIGH_WEIGHT high jobs are taken
+ * for every normal one, so a steady stream of high priority mail cannot
+ * starve a campaign either.
+ */
+class LaneQueue {
+    // High priority jobs taken per normal job while both lanes are busy
+    private static final int HIGH_WEIGHT = 8;
+
+    private final int laneCapacity;
+    private final SendJob stopMarker;
+    private final ArrayDeque<SendJob> high;
+    private final ArrayDeque<SendJob> normal;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition highNotEmpty = lock.newCondition();
+    private final Condition anyNotEmpty = lock.newCondition();
+    private final Condition highNotFull = lock.newCondition();
+    private final Condition normalNotFull = lock.newCondition();
+    private int highStreak;
+
+    LaneQueue(int laneCapacity, SendJob stopMarker) {
+        this.laneCapacity = laneCapacity;
+        this.stopMarker = stopMarker;
+        this.high = new ArrayDeque<>(laneCapacity);
+        this.normal = new ArrayDeque<>(laneCapacity);
+    }
+
+    void put(SendJob job, boolean highPriority) throws InterruptedException {
+        ArrayDeque<SendJob> lane = highPriority ? high : normal;
+        Condition notFull = highPriority ? highNotFull : normalNotFull;
+        lock.lockInterruptibly();
+        try {
+            while (lane.size() >= laneCapacity) {
+                notFull.await();
+            }
+            lane.add(job);
+            if (highPriority) {
+                highNotEmpty.signal();
+            }
+            anyNotEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Next job from either lane, by weighted round robin
+     */
+    SendJob take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (high.isEmpty() && normal.isEmpty()) {
+                anyNotEmpty.await();
+            }
+            // A stop marker in the normal lane waits until the high lane is drained
+            boolean takeHigh = !high.isEmpty()
+                    && (normal.isEmpty() || highStreak < HIGH_WEIGHT || normal.peek() == stopMarker);
+            if (takeHigh) {
+                highStreak++;
+                return removeFrom(high, highNotFull);
+            }
+            highStreak = 0;
+            return removeFrom(normal, normalNotFull);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Next high priority job, for workers reserved to the high lane
+     */
+    SendJob takeHigh() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (high.isEmpty()) {
+                highNotEmpty.await();
+            }
+            return removeFrom(high, highNotFull);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private SendJob removeFrom(ArrayDeque<SendJob> lane, Condition notFull) {
+        SendJob job = lane.poll();
+        notFull.signal();
+        // Another taker may be able to proceed as well
+        if (!high.isEmpty()) {
+            highNotEmpty.signal();
+        }
+        if (!high.isEmpty() || !normal.isEmpty()) {
+            anyNotEmpty.signal();
+        }
+        return job;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return high.size() + normal.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int highSize() {
+        lock.lock();
+        try {
+            return high.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int capacity() {
+        return 2 * laneCapacity;
+    }
+}
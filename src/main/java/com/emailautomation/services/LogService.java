@@ -1,14 +1,17 @@
 package com.emailautomation.services;
 
 import com.emailautomation.models.EmailConfig;
+import com.emailautomation.tracing.SendEvents;
 import java.io.*;
 import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.logging.Logger;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class LogService {
-    private static final Logger logger = Logger.getLogger(LogService.class.getName());
+    private static final Logger logger = LoggerFactory.getLogger(LogService.class);
     private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss");
 
     public void logSuccess(String logFile, String message, EmailConfig config) {
@@ -19,17 +22,85 @@ public class LogService {
         log(logFile, "ERROR", message, config);
     }
 
-    private void log(String logFile, String status, String message, EmailConfig config) {
-        String logEntry = String.format("%s\t%s\t%s\t%s\t%s\t%s\t%s%n",
+    /**
+     * Remember where a sent message with a message ID was logged, so later
+     * bounces and read receipts can be added to the same filesendlist.log.
+     * Nothing is kept unless the config names a sent index.
+     */
+    public void recordSent(EmailConfig config) {
+        if (config.getMessageId() == null || config.getSentIndex() == null) {
+            return;
+        }
+        try {
+            SentIndex.forFile(config.getSentIndex()).record(config.getMessageId(), resolveLogPath("filesendlist.log", config),
+                    config.getAttachmentName(), config.getAttachmentPath());
+        } catch (IOException e) {
+            logger.error("Failed to write to sent index: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * One log line in the filesendlist.log / sentlast.log format
+     */
+    public static String formatEntry(String status, String attachmentName, String attachmentPath,
+                                     String to, String bcc, String message) {
+        return String.format("%s\t%s\t%s\t%s\t%s\t%s\t%s%n",
                 LocalDateTime.now().format(DATE_FORMAT),
                 status,
-                config.getAttachmentName() != null ? config.getAttachmentName() : "N/A",
-                config.getAttachmentPath() != null ? config.getAttachmentPath() : "N/A",
-                String.join(",", config.getTo()),
-                String.join(",", config.getBcc()),
+                attachmentName != null ? attachmentName : "N/A",
+                attachmentPath != null ? attachmentPath : "N/A",
+                to,
+                bcc,
                 message
         );
+    }
+
+    /**
+     * Append already formatted entries to a log file in a single write.
+     * Failures are thrown rather than logged, so callers can retry the
+     * entries later.
+     */
+    public void appendEntries(Path logPath, List<String> entries) throws IOException {
+        Files.write(logPath, String.join("", entries).getBytes(),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        logger.debug("{} entries written to: {}", entries.size(), logPath);
+    }
+
+    private void log(String logFile, String status, String message, EmailConfig config) {
+        SendEvents.LogWrite event = new SendEvents.LogWrite();
+        event.begin();
+
+        String logEntry = formatEntry(status, config.getAttachmentName(), config.getAttachmentPath(),
+                String.join(",", config.getTo()), String.join(",", config.getBcc()), message);
+        Path logPath = resolveLogPath(logFile, config);
+
+        // Decide whether to append or overwrite
+        boolean isSentLast = "sentlast.log".equalsIgnoreCase(logFile);
+        OpenOption[] options = isSentLast
+                ? new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING }
+                : new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.APPEND };
+
+        byte[] bytes = logEntry.getBytes();
+        try {
+            Files.write(logPath, bytes, options);
+            logger.debug("Log written to: {}", logPath);
+        } catch (IOException e) {
+            logger.error("Failed to write to log file: {}", e.getMessage());
+        }
 
+        if (event.shouldCommit()) {
+            event.messageId = config.getMessageId();
+            event.logFile = logPath.toString();
+            event.status = status;
+            event.bytes = bytes.length;
+            event.commit();
+        }
+    }
+
+    /**
+     * Log files go next to the (first) attachment, or the current directory
+     */
+    private static Path resolveLogPath(String logFile, EmailConfig config) {
         // Determine log directory from attachment path or use current directory
         Path logPath;
         if (config.getAttachmentPath() != null && !config.getAttachmentPath().isEmpty()) {
@@ -54,18 +125,6 @@ public class LogService {
             // No attachment, use current directory
             logPath = Paths.get(logFile);
         }
-
-        // Decide whether to append or overwrite
-        boolean isSentLast = "sentlast.log".equalsIgnoreCase(logFile);
-        OpenOption[] options = isSentLast
-                ? new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING }
-                : new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.APPEND };
-
-        try {
-            Files.write(logPath, logEntry.getBytes(), options);
-            logger.info("Log written to: " + logPath);
-        } catch (IOException e) {
-            logger.severe("Failed to write to log file: " + e.getMessage());
-        }
+        return logPath;
     }
 }
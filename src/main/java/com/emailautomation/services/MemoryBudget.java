@@ -0,0 +1,126 @@
+package com.emailautomation.services;
+
+import com.emailautomation.models.EmailConfig;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Byte-based admission control for messages in flight. Each message's heap
+ * footprint is estimated from its body, template and attachment sizes before
+ * it is built, and new messages wait while the total would exceed the
+ * budget. Large campaigns then slow down instead of running out of memory.
+ * Part of the budget is held back for high priority messages, so a campaign
+ * that uses up its share does not make transactional mail wait.
+ */
+public class MemoryBudget {
+    private static final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+    // Headers, MimeMessage/Multipart objects, logo and other per-message overhead
+    private static final long MESSAGE_OVERHEAD = 64 * 1024;
+
+    // Share of the budget that only high priority messages may use
+    private static final double HIGH_PRIORITY_RESERVE = 0.2;
+
+    private final long budgetBytes;
+    private long reservedBytes = 0;
+
+    public MemoryBudget(long budgetBytes) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive");
+        }
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Budget of a fraction of the maximum heap
+     */
+    public static MemoryBudget ofHeapFraction(double fraction) {
+        return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * fraction));
+    }
+
+    /**
+     * Estimate how much heap building and sending a message will hold
+     */
+    public static long estimate(EmailConfig config) {
+        long bytes = MESSAGE_OVERHEAD;
+
+        // The rendered body is kept as a String and again as the text part
+        if (config.getBody() != null) {
+            bytes += 4L * config.getBody().length();
+        }
+        bytes += 4 * sizeOf(config.getHtmlTemplate());
+
+        for (String attachment : config.getAllAttachmentPaths()) {
+            long size = sizeOf(attachment);
+            bytes += AttachmentEncoder.footprint(size);
+            // DKIM signing holds the serialized message until the signature is known
+            if (config.isDkimEnabled()) {
+                bytes += size * 4 / 3 + size / 38;
+            }
+        }
+        return bytes;
+    }
+
+    private static long sizeOf(String path) {
+        if (path == null || path.isEmpty()) {
+            return 0;
+        }
+        try {
+            Path file = Paths.get(path);
+            return Files.isRegularFile(file) ? Files.size(file) : 0;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reserve {@code bytes}, waiting while other messages hold too much of the
+     * budget. A message larger than the whole budget is let through on its
+     * own once everything else has finished.
+     *
+     * @return the amount actually reserved, to hand back to release()
+     */
+    public long acquire(long bytes) throws InterruptedException {
+        return acquire(bytes, false);
+    }
+
+    /**
+     * Reserve {@code bytes} as above; normal priority messages are limited to
+     * the part of the budget not held back for high priority ones
+     */
+    public synchronized long acquire(long bytes, boolean highPriority) throws InterruptedException {
+        long limit = highPriority ? budgetBytes : budgetBytes - (long) (budgetBytes * HIGH_PRIORITY_RESERVE);
+        long needed = Math.min(bytes, limit);
+        boolean waited = false;
+        while (reservedBytes + needed > limit) {
+            if (!waited) {
+                logger.info("Memory budget full ({} of {} KB in flight), waiting to admit {} KB",
+                        reservedBytes / 1024, budgetBytes / 1024, bytes / 1024);
+                waited = true;
+            }
+            wait();
+        }
+        reservedBytes += needed;
+        return needed;
+    }
+
+    public synchronized void release(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        reservedBytes -= bytes;
+        notifyAll();
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+}
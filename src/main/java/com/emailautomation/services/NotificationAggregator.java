@@ -0,0 +1,97 @@
+package com.emailautomation.services;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces per-email notifications for batch and daemon runs.
+ *
+ * Sender threads only bump counters, which never blocks and never touches
+ * the EDT. A single background thread posts at most one summary per flush
+ * interval (e.g. "412 sent, 3 failed in last 30s"), so the cost of
+ * notifications stays constant no matter how many messages go out.
+ */
+public class NotificationAggregator implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationAggregator.class);
+
+    private final NotificationService notificationService;
+    private final Duration interval;
+    private final ScheduledExecutorService flusher;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicReference<String> lastError = new AtomicReference<>();
+
+    private long totalSent = 0;
+    private long totalFailed = 0;
+
+    public NotificationAggregator(NotificationService notificationService, Duration interval) {
+        this.notificationService = notificationService;
+        this.interval = interval;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "notification-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long millis = interval.toMillis();
+        flusher.scheduleAtFixedRate(this::flush, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void recordSuccess() {
+        sent.increment();
+    }
+
+    public void recordFailure(String reason) {
+        failed.increment();
+        lastError.set(reason);
+    }
+
+    public synchronized long getTotalSent() {
+        return totalSent + sent.sum();
+    }
+
+    public synchronized long getTotalFailed() {
+        return totalFailed + failed.sum();
+    }
+
+    private synchronized void flush() {
+        long sentNow = sent.sumThenReset();
+        long failedNow = failed.sumThenReset();
+        if (sentNow == 0 && failedNow == 0) {
+            return;
+        }
+        totalSent += sentNow;
+        totalFailed += failedNow;
+
+        String summary = sentNow + " sent, " + failedNow + " failed in last " + formatInterval();
+        try {
+            if (failedNow > 0) {
+                notificationService.showError(summary + " (last error: " + lastError.getAndSet(null) + ")");
+            } else {
+                notificationService.showSuccess(summary);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to post notification summary: {}", e.getMessage());
+        }
+    }
+
+    private String formatInterval() {
+        long seconds = interval.getSeconds();
+        return seconds >= 60 && seconds % 60 == 0 ? (seconds / 60) + "m" : seconds + "s";
+    }
+
+    /**
+     * Stop the periodic flush and post whatever is still buffered.
+     */
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        flush();
+    }
+}
@@ -1,151 +1,99 @@
 package com.emailautomation.services;
 
-import java.awt.*;
-import java.awt.TrayIcon.MessageType;
-import java.awt.image.BufferedImage;
-import javax.swing.JOptionPane;
-import javax.swing.SwingUtilities;
-import java.util.logging.Logger;
-import java.net.URL;
-
+import java.lang.reflect.InvocationTargetException;
+import java.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Console, tray and dialog notifications.
+ *
+ * Nothing from AWT is touched until the first notification that actually
+ * needs a GUI, so headless and single-shot runs never pay for the toolkit,
+ * the system tray or the icon. The GUI side lives in DesktopNotifier and is
+ * loaded by name, which keeps AWT out of the headless native image.
+ */
 public class NotificationService {
-    private static final Logger logger = Logger.getLogger(NotificationService.class.getName());
-    private SystemTray tray;
-    private TrayIcon trayIcon;
-    private boolean systemTrayAvailable = false;
-
-    public NotificationService() {
-        initializeSystemTray();
-    }
-
-    private void initializeSystemTray() {
-        // Check if system tray is supported
-        if (!SystemTray.isSupported()) {
-            logger.warning("System tray is not supported on this platform");
-            return;
-        }
-
-        try {
-            tray = SystemTray.getSystemTray();
-
-            // Try to load icon from resources first, then file system
-            Image image = loadIcon();
-            if (image == null) {
-                logger.warning("Could not load tray icon, using default image");
-                // Create a simple default icon
-                image = createDefaultIcon();
-            }
-
-            trayIcon = new TrayIcon(image, "Email Automation");
-            trayIcon.setImageAutoSize(true);
-
-            // Add the tray icon
-            assert tray != null;
-            tray.add(trayIcon);
-            systemTrayAvailable = true;
-            logger.info("System tray initialized successfully");
-
-        } catch (AWTException e) {
-            logger.severe("Failed to add tray icon: " + e.getMessage());
-            trayIcon = null;
-            systemTrayAvailable = false;
-        } catch (Exception e) {
-            logger.severe("Unexpected error initializing system tray: " + e.getMessage());
-            trayIcon = null;
-            systemTrayAvailable = false;
-        }
-    }
-
-    private Image loadIcon() {
-        // Try loading from resources
-        URL iconURL = getClass().getResource("/icon.png");
-        if (iconURL != null) {
-            return Toolkit.getDefaultToolkit().getImage(iconURL);
-        }
-
-        // Try loading from file system
-        try {
-            return Toolkit.getDefaultToolkit().getImage("icon.png");
-        } catch (Exception e) {
-            return null;
-        }
-    }
+    private static final Logger logger = LoggerFactory.getLogger(NotificationService.class);
+    private static final String DESKTOP_NOTIFIER = "com.emailautomation.services.DesktopNotifier";
 
-    private Image createDefaultIcon() {
-        // Create a simple 16x16 default icon
-        Image image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2d = (Graphics2D) image.getGraphics();
-        g2d.setColor(Color.BLUE);
-        g2d.fillOval(2, 2, 12, 12);
-        g2d.dispose();
-        return image;
-    }
+    private boolean desktopInitialized = false;
+    private DesktopNotifier desktop;
 
     public void showSuccess(String message) {
-        showNotification("Success", message, MessageType.INFO);
+        showNotification("Success", message, false);
     }
 
     public void showError(String message) {
-        showNotification("Error", message, MessageType.ERROR);
+        showNotification("Error", message, true);
     }
 
     public void showError(String message, int durationSeconds) {
-        showNotification("Error", message, MessageType.ERROR);
+        showNotification("Error", message, true);
     }
 
-    private void showNotification(String title, String message, MessageType type) {
-        logger.info(title + ": " + message);
+    private void showNotification(String title, String message, boolean error) {
+        logger.info("{}: {}", title, message);
 
         // Always show console output
-        if (type == MessageType.ERROR) {
+        if (error) {
             System.err.println("\n[ERROR] " + message);
         } else {
             System.out.println("\n[" + title.toUpperCase() + "] " + message);
         }
 
-        // Check if running in headless mode
-        if (GraphicsEnvironment.isHeadless()) {
+        DesktopNotifier notifier = getDesktop();
+        if (notifier != null) {
+            notifier.show(title, message, error);
+        }
+    }
+
+    /**
+     * Create the desktop notifier on first use. The headless system property
+     * is checked first so that explicitly headless runs never load AWT at all.
+     */
+    private synchronized DesktopNotifier getDesktop() {
+        if (desktopInitialized) {
+            return desktop;
+        }
+        desktopInitialized = true;
+
+        if (Boolean.getBoolean("java.awt.headless")) {
             logger.info("Running in headless mode - GUI notifications disabled");
-            return;
+            return null;
         }
 
-        // Try system tray notification first
-        if (systemTrayAvailable && trayIcon != null) {
-            try {
-                trayIcon.displayMessage(title, message, type);
-                logger.info("System tray notification displayed");
-            } catch (Exception e) {
-                logger.warning("Failed to display tray notification: " + e.getMessage());
-                showDialogNotification(title, message, type);
-            }
-        } else {
-            // Fall back to dialog
-            showDialogNotification(title, message, type);
+        try {
+            desktop = (DesktopNotifier) Class.forName(DESKTOP_NOTIFIER).getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException e) {
+            // DesktopNotifier refuses to start without a display
+            logger.info("Running in headless mode - GUI notifications disabled");
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Native images are built without AWT; treat that as headless
+            logger.info("GUI notifications unavailable: {}", e.toString());
         }
+        return desktop;
     }
 
-    private void showDialogNotification(String title, String message, MessageType type) {
-        // Use SwingUtilities to ensure thread safety
-        SwingUtilities.invokeLater(() -> {
-            try {
-                int optionType = type == MessageType.ERROR ?
-                        JOptionPane.ERROR_MESSAGE : JOptionPane.INFORMATION_MESSAGE;
-                JOptionPane.showMessageDialog(null, message, title, optionType);
-                logger.info("Dialog notification displayed");
-            } catch (Exception e) {
-                logger.severe("Failed to show dialog: " + e.getMessage());
-            }
-        });
+    /**
+     * Block until every notification shown so far has been delivered: dialogs
+     * once dismissed, tray balloons once clicked or past their display time.
+     * Returns immediately when nothing is outstanding, which is always the
+     * case when headless.
+     */
+    public void awaitDelivery(Duration maxWait) {
+        DesktopNotifier notifier;
+        synchronized (this) {
+            notifier = desktop;
+        }
+        if (notifier != null) {
+            notifier.awaitDelivery(maxWait);
+        }
     }
 
-    public void cleanup() {
-        if (tray != null && trayIcon != null) {
-            try {
-                tray.remove(trayIcon);
-                logger.info("System tray cleaned up");
-            } catch (Exception e) {
-                logger.warning("Error during cleanup: " + e.getMessage());
-            }
+    public synchronized void cleanup() {
+        if (desktop != null) {
+            desktop.cleanup();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,152 @@
+package com.emailautomation.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One stage of the send pipeline: a bounded input queue drained by its own
+ * worker threads. Workers hand finished jobs to the next stage with a
+ * blocking put, so a slow stage fills the queues in front of it and
+ * eventually blocks intake (backpressure) instead of buffering without limit.
+ * <p>
+ * The queue has a high and a normal priority lane (see LaneQueue). Reserved
+ * workers take only high priority jobs, so transactional mail keeps moving
+ * even while every shared worker is busy with a campaign.
+ */
+class PipelineStage {
+    private static final Logger logger = LoggerFactory.getLogger(PipelineStage.class);
+
+    interface Task {
+        void process(SendJob job) throws Exception;
+    }
+
+    // Marker that tells one worker to exit
+    private static final SendJob POISON = new SendJob(null, null, null, null, null);
+
+    private final String name;
+    private final Task task;
+    private final LaneQueue queue;
+    private final List<Thread> workers = new ArrayList<>();
+    private final List<Thread> reservedWorkers = new ArrayList<>();
+    private PipelineStage next;
+    private PipelineStage exitStage;
+
+    PipelineStage(String name, int workerCount, int capacity, Task task) {
+        this(name, workerCount, 0, capacity, task);
+    }
+
+    /**
+     * @param reservedCount extra workers that only take high priority jobs
+     * @param capacity      queue capacity of each lane
+     */
+    PipelineStage(String name, int workerCount, int reservedCount, int capacity, Task task) {
+        this.name = name;
+        this.task = task;
+        this.queue = new LaneQueue(capacity, POISON);
+        for (int i = 1; i <= workerCount; i++) {
+            Thread worker = new Thread(() -> runWorker(false), "pipeline-" + name + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        for (int i = 1; i <= reservedCount; i++) {
+            Thread worker = new Thread(() -> runWorker(true), "pipeline-" + name + "-high-" + i);
+            worker.setDaemon(true);
+            reservedWorkers.add(worker);
+        }
+    }
+
+    /**
+     * Wire processed jobs to {@code next} and short-circuited ones to {@code exitStage}
+     */
+    void connect(PipelineStage next, PipelineStage exitStage) {
+        this.next = next;
+        this.exitStage = exitStage;
+    }
+
+    void start() {
+        workers.forEach(Thread::start);
+        reservedWorkers.forEach(Thread::start);
+    }
+
+    void put(SendJob job) throws InterruptedException {
+        queue.put(job, job.isHighPriority());
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    int highDepth() {
+        return queue.highSize();
+    }
+
+    int capacity() {
+        return queue.capacity();
+    }
+
+    private void runWorker(boolean highOnly) {
+        try {
+            while (true) {
+                SendJob job = highOnly ? queue.takeHigh() : queue.take();
+                if (job == POISON) {
+                    return;
+                }
+                // The terminal stage sees every job, including failed and deferred ones
+                if (!job.isShortCircuited() || next == null) {
+                    try {
+                        task.process(job);
+                    } catch (Exception e) {
+                        job.failure = e;
+                    } catch (Error e) {
+                        job.failure = new RuntimeException(e);
+                    }
+                }
+                PipelineStage target = job.isShortCircuited() && exitStage != null ? exitStage : next;
+                if (target != null) {
+                    target.put(job);
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Pipeline stage {} interrupted", name);
+        }
+    }
+
+    /**
+     * Let the workers finish everything already queued, then stop them.
+     * Returns false if they were still busy at the deadline.
+     */
+    boolean drainAndStop(long deadlineNanos) throws InterruptedException {
+        // Shared workers leave only once the high lane is empty; the reserved
+        // ones are stopped after them so no shared worker takes their marker
+        for (int i = 0; i < workers.size(); i++) {
+            queue.put(POISON, false);
+        }
+        if (!join(workers, deadlineNanos)) {
+            return false;
+        }
+        for (int i = 0; i < reservedWorkers.size(); i++) {
+            queue.put(POISON, true);
+        }
+        return join(reservedWorkers, deadlineNanos);
+    }
+
+    private static boolean join(List<Thread> threads, long deadlineNanos) throws InterruptedException {
+        for (Thread worker : threads) {
+            long remainingMillis = (deadlineNanos - System.nanoTime()) / 1_000_000;
+            if (remainingMillis <= 0) {
+                return false;
+            }
+            worker.join(remainingMillis);
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,140 @@
+package com.emailautomation.services;
+
+import com.emailautomation.models.DeliveryReport;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.InternetHeaders;
+
+/**
+ * Extracts delivery reports from multipart/report messages: DSNs
+ * (message/delivery-status) and MDNs (message/disposition-notification).
+ * <p>
+ * Only header blocks are read. The status part is a sequence of header
+ * blocks, and of the returned original message only the header block is
+ * needed for its Message-ID, so large bounced bodies and attachments are
+ * never loaded. Other mail in the mailbox yields no reports.
+ */
+class ReportParser {
+
+    private ReportParser() {
+    }
+
+    static List<DeliveryReport> parse(Part message) throws MessagingException, IOException {
+        if (!message.isMimeType("multipart/report")) {
+            return List.of();
+        }
+        Object content = message.getContent();
+        if (!(content instanceof Multipart)) {
+            return List.of();
+        }
+        Multipart report = (Multipart) content;
+
+        String originalMessageId = null;
+        List<InternetHeaders> recipientBlocks = null;
+        InternetHeaders disposition = null;
+
+        for (int i = 0; i < report.getCount(); i++) {
+            BodyPart part = report.getBodyPart(i);
+            if (part.isMimeType("message/delivery-status")) {
+                recipientBlocks = readDeliveryStatus(part);
+            } else if (part.isMimeType("message/disposition-notification")) {
+                disposition = readHeaderBlock(part);
+            } else if (part.isMimeType("message/rfc822") || part.isMimeType("text/rfc822-headers")) {
+                InternetHeaders original = readHeaderBlock(part);
+                originalMessageId = original.getHeader("Message-ID", null);
+            }
+        }
+
+        List<DeliveryReport> reports = new ArrayList<>();
+        if (recipientBlocks != null) {
+            String messageId = EmailService.parseMessageId(trim(originalMessageId));
+            for (InternetHeaders block : recipientBlocks) {
+                DeliveryReport.Kind kind = dsnKind(block.getHeader("Action", null), block.getHeader("Status", null));
+                String recipient = address(block.getHeader("Final-Recipient", null));
+                if (kind != null && recipient != null) {
+                    reports.add(new DeliveryReport(messageId, recipient, kind,
+                            trim(block.getHeader("Status", null)), trim(block.getHeader("Diagnostic-Code", null))));
+                }
+            }
+        } else if (disposition != null) {
+            String mdnMessageId = disposition.getHeader("Original-Message-ID", null);
+            String messageId = EmailService.parseMessageId(trim(mdnMessageId != null ? mdnMessageId : originalMessageId));
+            String recipient = address(disposition.getHeader("Final-Recipient", null));
+            String value = trim(disposition.getHeader("Disposition", null));
+            if (recipient != null && value != null && value.toLowerCase(Locale.ROOT).contains("displayed")) {
+                reports.add(new DeliveryReport(messageId, recipient, DeliveryReport.Kind.READ, value, null));
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * A delivery-status body is one per-message header block followed by one
+     * block per recipient
+     */
+    private static List<InternetHeaders> readDeliveryStatus(Part part) throws MessagingException, IOException {
+        List<InternetHeaders> recipients = new ArrayList<>();
+        try (InputStream in = part.getInputStream()) {
+            new InternetHeaders(in);  // per-message fields (Reporting-MTA, Arrival-Date, ...)
+            while (true) {
+                InternetHeaders block = new InternetHeaders(in);
+                if (!block.getAllHeaders().hasMoreElements()) {
+                    break;
+                }
+                recipients.add(block);
+            }
+        }
+        return recipients;
+    }
+
+    private static InternetHeaders readHeaderBlock(Part part) throws MessagingException, IOException {
+        try (InputStream in = part.getInputStream()) {
+            return new InternetHeaders(in);
+        }
+    }
+
+    private static DeliveryReport.Kind dsnKind(String action, String status) {
+        if (action == null) {
+            return null;
+        }
+        switch (action.trim().toLowerCase(Locale.ROOT)) {
+            case "failed":
+                return status != null && status.trim().startsWith("5")
+                        ? DeliveryReport.Kind.HARD_BOUNCE : DeliveryReport.Kind.SOFT_BOUNCE;
+            case "delayed":
+                return DeliveryReport.Kind.DELAYED;
+            case "delivered":
+            case "relayed":
+            case "expanded":
+                return DeliveryReport.Kind.DELIVERED;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Address from a recipient field such as "rfc822; user@example.com"
+     */
+    private static String address(String field) {
+        if (field == null) {
+            return null;
+        }
+        int semicolon = field.indexOf(';');
+        String address = (semicolon >= 0 ? field.substring(semicolon + 1) : field).trim();
+        if (address.startsWith("<") && address.endsWith(">")) {
+            address = address.substring(1, address.length() - 1);
+        }
+        return address.isEmpty() ? null : address.toLowerCase(Locale.ROOT);
+    }
+
+    private static String trim(String value) {
+        return value != null ? value.trim() : null;
+    }
+}
@@ -0,0 +1,149 @@
+package com.emailautomation.services;
+
+import com.emailautomation.models.EmailConfig;
+import com.emailautomation.utils.EmailConfigCodec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of scheduled messages, so pending sends survive a
+ * restart. Each record is an op byte, a length and a payload: ADD carries
+ * the encoded config, DONE only the message ID. Every record is forced to
+ * disk before add or markDone returns. The file is compacted to the live
+ * entries when finished records dominate.
+ * <p>
+ * SMTP credentials are left out of the file and taken from the defaults
+ * when the journal is replayed.
+ */
+public class ScheduleJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ScheduleJournal.class);
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_DONE = 2;
+    private static final int COMPACT_THRESHOLD = 1024;
+
+    private final Path path;
+    private final EmailConfig defaults;
+    private final Map<String, EmailConfig> live = new LinkedHashMap<>();
+    private FileChannel out;
+    private int doneRecords = 0;
+
+    /**
+     * @param defaults supplies the SMTP user and password of replayed messages
+     */
+    public ScheduleJournal(Path path, EmailConfig defaults) throws IOException {
+        this.path = path;
+        this.defaults = defaults;
+        replay();
+        // Rewrite on open so a torn tail from a crash is dropped
+        compact();
+    }
+
+    /**
+     * Messages that were scheduled but not yet sent when the journal was opened
+     */
+    public synchronized List<EmailConfig> pending() {
+        return new ArrayList<>(live.values());
+    }
+
+    public synchronized void add(EmailConfig config) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        EmailConfigCodec.write(new DataOutputStream(buffer), config);
+        writeRecord(OP_ADD, buffer.toByteArray());
+        live.put(config.getMessageId(), config);
+    }
+
+    public synchronized void markDone(String messageId) throws IOException {
+        if (live.remove(messageId) == null) {
+            return;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        new DataOutputStream(buffer).writeUTF(messageId);
+        writeRecord(OP_DONE, buffer.toByteArray());
+        doneRecords++;
+
+        if (doneRecords >= COMPACT_THRESHOLD && doneRecords > live.size()) {
+            compact();
+        }
+    }
+
+    private void writeRecord(byte op, byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(5 + payload.length);
+        record.put(op).putInt(payload.length).put(payload).flip();
+        while (record.hasRemaining()) {
+            out.write(record);
+        }
+        out.force(false);
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                int op = in.read();
+                if (op < 0) {
+                    break;
+                }
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                if (op == OP_ADD) {
+                    EmailConfig config = EmailConfigCodec.read(record).toBuilder()
+                            .user(defaults.getUser())
+                            .password(defaults.getPassword())
+                            .build();
+                    live.put(config.getMessageId(), config);
+                } else if (op == OP_DONE) {
+                    live.remove(record.readUTF());
+                } else {
+                    throw new IOException("Unknown journal record type " + op);
+                }
+            }
+        } catch (EOFException e) {
+            logger.warn("Schedule journal {} ends with a partial record, ignoring it", path);
+        }
+        logger.info("Schedule journal {} has {} pending messages", path, live.size());
+    }
+
+    private void compact() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(file))) {
+            for (EmailConfig config : live.values()) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+                EmailConfigCodec.write(new DataOutputStream(buffer), config);
+                compacted.writeByte(OP_ADD);
+                compacted.writeInt(buffer.size());
+                buffer.writeTo(compacted);
+            }
+            compacted.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        doneRecords = 0;
+        out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.emailautomation.services;
+
+import com.emailautomation.models.EmailConfig;
+import com.emailautomation.models.RenderedEmail;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * One message travelling through the send pipeline. Each stage fills in
+ * the next field; a failure or a future send_at short-circuits the job to the
+ * logging stage.
+ */
+class SendJob {
+    final String paramFile;          // source param file, null for API submissions
+    final Consumer<EmailConfig> onSent;
+    final Consumer<EmailConfig> onDeferred;
+    final Runnable onFinished;
+
+    String messageId;
+    EmailConfig config;
+    RenderedEmail rendered;
+    MimeMessage message;
+    Exception failure;
+    boolean invalidConfig;
+    boolean deferred;
+    long reservedBytes;              // share of the memory budget held until finished
+    CompletableFuture<Void> archived;  // completes once the sent message is archived
+
+    SendJob(String paramFile, EmailConfig config, Consumer<EmailConfig> onSent,
+            Consumer<EmailConfig> onDeferred, Runnable onFinished) {
+        this.paramFile = paramFile;
+        this.config = config;
+        this.messageId = config != null ? config.getMessageId() : null;
+        this.onSent = onSent;
+        this.onDeferred = onDeferred;
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Whether the job travels in the high priority lane. Param files count
+     * as normal until they are loaded.
+     */
+    boolean isHighPriority() {
+        return config != null && config.getPriority() == EmailConfig.Priority.HIGH;
+    }
+
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Failed or deferred jobs skip the remaining work and go straight to logging
+     */
+    boolean isShortCircuited() {
+        return failure != null || deferred;
+    }
+
+    String describe() {
+        return paramFile != null ? paramFile : messageId;
+    }
+}
@@ -0,0 +1,80 @@
+package com.emailautomation.services;
+
+import com.emailautomation.models.EmailConfig;
+import com.emailautomation.utils.TimingWheel;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds messages with a future send_at in a timing wheel and hands them to
+ * the send pipeline when they fall due. Every scheduled message is written
+ * to a journal first and marked done only after the send attempt, so a
+ * restart reloads whatever was still pending.
+ */
+public class SendScheduler implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SendScheduler.class);
+
+    private static final long TICK_MILLIS = 100;
+
+    private final ScheduleJournal journal;
+    private final TimingWheel<EmailConfig> wheel;
+    private final BiConsumer<EmailConfig, Runnable> release;
+
+    /**
+     * @param journalPath where pending messages are persisted
+     * @param defaults    supplies the SMTP credentials, which the journal does not store
+     * @param release     receives each message when it is due, together with a
+     *                    callback to run once the send attempt is over
+     */
+    public SendScheduler(Path journalPath, EmailConfig defaults, BiConsumer<EmailConfig, Runnable> release)
+            throws IOException {
+        this.release = release;
+        this.journal = new ScheduleJournal(journalPath, defaults);
+        this.wheel = new TimingWheel<>(TICK_MILLIS, this::onDue);
+
+        for (EmailConfig config : journal.pending()) {
+            wheel.schedule(config.getSendAt() != null ? config.getSendAt().toEpochMilli() : 0, config);
+        }
+    }
+
+    /**
+     * Persist and schedule a message. It must carry a message ID.
+     */
+    public void schedule(EmailConfig config) throws IOException {
+        if (config.getMessageId() == null) {
+            throw new IllegalArgumentException("Message ID is missing");
+        }
+        journal.add(config);
+        wheel.schedule(config.getSendAt() != null ? config.getSendAt().toEpochMilli() : 0, config);
+        logger.info("Message {} scheduled for {}", config.getMessageId(), config.getSendAt());
+    }
+
+    private void markDone(String messageId) {
+        try {
+            journal.markDone(messageId);
+        } catch (IOException e) {
+            logger.error("Could not journal completion of {}: {}", messageId, e.getMessage());
+        }
+    }
+
+    /**
+     * Number of messages still waiting for their send time
+     */
+    public int pendingCount() {
+        return wheel.size();
+    }
+
+    private void onDue(EmailConfig config) {
+        logger.info("Releasing scheduled message {}", config.getMessageId());
+        release.accept(config, () -> markDone(config.getMessageId()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        wheel.close();
+        journal.close();
+    }
+}
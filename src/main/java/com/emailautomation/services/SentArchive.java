@@ -0,0 +1,548 @@
+package com.emailautomation.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Enumeration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content-addressed archive of sent messages. Attachments and inline images
+ * are stored once per distinct content (SHA-256 of the serialized part), and
+ * each message is stored as its remaining bytes (headers, text, boundaries)
+ * plus the offsets where the shared parts go back in. A campaign that sends
+ * the same report to thousands of recipients stores the report once.
+ * <p>
+ * Records are appended to segment files ({@code segment-000001.pack}, ...)
+ * and located through {@code index}, a list of fixed-size entries (kind,
+ * key, segment, offset, length) loaded into memory on open. Entries are
+ * written after their record, so a crash leaves at worst an unindexed
+ * record; a missing index is rebuilt by scanning the segments. Reading a
+ * message back is one lookup and seek for the message and one per shared part.
+ * <p>
+ * Messages are archived by one background thread per archive, after they
+ * have been sent, so sending never waits for the disk. The queue is not
+ * bounded here; callers that budget memory keep a message's share reserved
+ * until its archive write has completed.
+ */
+public class SentArchive {
+    private static final Logger logger = LoggerFactory.getLogger(SentArchive.class);
+
+    private static final long SEGMENT_BYTES = 1L << 30;
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final byte KIND_BLOB = 'B';
+    private static final byte KIND_MESSAGE = 'M';
+    private static final int KEY_BYTES = 32;
+    private static final int RECORD_HEADER_BYTES = 1 + KEY_BYTES + 8;
+    private static final int INDEX_ENTRY_BYTES = 1 + KEY_BYTES + 4 + 8 + 8;
+
+    private static final Map<Path, SentArchive> OPEN = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> OPEN.values().forEach(SentArchive::close),
+                "archive-shutdown"));
+    }
+
+    private final Path dir;
+    private final Map<Key, Location> index = new ConcurrentHashMap<>();
+    private final ExecutorService writer;
+    private DataOutputStream indexOut;
+    private FileChannel segment;
+    private int segmentNumber;
+
+    private SentArchive(Path dir, boolean writable) throws IOException {
+        this.dir = writable ? Files.createDirectories(dir) : dir;
+        Path indexFile = dir.resolve("index");
+        if (!writable) {
+            if (!Files.exists(indexFile)) {
+                throw new IOException("No sent-mail archive in " + dir);
+            }
+            readIndex(indexFile);
+            this.writer = null;
+            return;
+        }
+        if (Files.exists(indexFile)) {
+            loadIndex(indexFile);
+        } else {
+            rebuildIndex(indexFile);
+        }
+
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "archive-" + dir.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The archive in {@code dir}, opened on first use and shared by all senders in this process
+     */
+    public static SentArchive forDirectory(String dir) throws IOException {
+        Path path = Paths.get(dir).toAbsolutePath().normalize();
+        try {
+            return OPEN.computeIfAbsent(path, p -> {
+                try {
+                    return new SentArchive(p, true);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The archive in {@code dir} for reading only, e.g. while another process
+     * is writing to it
+     */
+    public static SentArchive openForReading(String dir) throws IOException {
+        return new SentArchive(Paths.get(dir).toAbsolutePath().normalize(), false);
+    }
+
+    /**
+     * Queue a sent message for archiving under {@code messageId}. The message
+     * is only read, but must not be changed until the returned future
+     * completes, which it does whether or not the message could be stored.
+     */
+    public CompletableFuture<Void> append(String messageId, MimeMessage message) {
+        try {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    store(messageId, message);
+                } catch (IOException | MessagingException | RuntimeException e) {
+                    logger.error("Could not archive message {}: {}", messageId, e.getMessage());
+                }
+            }, writer);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Sent-mail archive {} is closed, message {} not archived", dir, messageId);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Write the archived message to {@code out} as it was sent
+     *
+     * @return false when no message with that ID is archived
+     */
+    public boolean retrieve(String messageId, OutputStream out) throws IOException {
+        Location location = index.get(new Key(KIND_MESSAGE, hash(messageId.getBytes(StandardCharsets.UTF_8))));
+        if (location == null) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(segmentPath(location.segment), StandardOpenOption.READ)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(location.offset))));
+            int refs = in.readInt();
+            long[] offsets = new long[refs];
+            byte[][] blobs = new byte[refs][];
+            for (int i = 0; i < refs; i++) {
+                offsets[i] = in.readLong();
+                blobs[i] = new byte[KEY_BYTES];
+                in.readFully(blobs[i]);
+            }
+
+            long written = 0;
+            for (int i = 0; i < refs; i++) {
+                copy(in, out, offsets[i] - written);
+                written = offsets[i];
+                Location blob = index.get(new Key(KIND_BLOB, blobs[i]));
+                if (blob == null) {
+                    throw new IOException("Archived part missing for message " + messageId);
+                }
+                try (FileChannel blobChannel = FileChannel.open(segmentPath(blob.segment), StandardOpenOption.READ)) {
+                    copy(Channels.newInputStream(blobChannel.position(blob.offset)), out, blob.length);
+                }
+            }
+            long skeletonLength = location.length - 4 - (long) refs * (8 + KEY_BYTES);
+            copy(in, out, skeletonLength - written);
+        }
+        return true;
+    }
+
+    private void store(String messageId, MimeMessage message) throws IOException, MessagingException {
+        // Write the message as javax.mail does, but put a reference in place
+        // of every attachment and inline part, storing its content unless an
+        // identical part is archived already
+        SkeletonStream skeleton = new SkeletonStream();
+        Object content = message.getContent();
+        if (content instanceof MimeMultipart && isUnencoded(message)) {
+            byte[] signature = EmailService.sentSignature(message);
+            if (signature != null) {
+                skeleton.write(signature);
+            }
+            writeHeaders(message.getAllHeaderLines(), skeleton);
+            writeMultipart((MimeMultipart) content, skeleton);
+        } else {
+            EmailService.writeAsSent(message, skeleton);
+        }
+
+        ByteBuffer refs = ByteBuffer.allocate(4 + skeleton.refs.size() * (8 + KEY_BYTES));
+        refs.putInt(skeleton.refs.size());
+        for (Map.Entry<Long, byte[]> ref : skeleton.refs.entrySet()) {
+            refs.putLong(ref.getKey()).put(ref.getValue());
+        }
+        refs.flip();
+
+        byte[] key = hash(messageId.getBytes(StandardCharsets.UTF_8));
+        long length = refs.remaining() + skeleton.bytes.size();
+        Location location = beginRecord(KIND_MESSAGE, key, length);
+        OutputStream out = Channels.newOutputStream(segment);
+        out.write(refs.array(), 0, refs.limit());
+        skeleton.bytes.writeTo(out);
+        endRecord(KIND_MESSAGE, key, location);
+        logger.debug("Archived message {} ({} bytes, {} shared parts)", messageId, length, skeleton.refs.size());
+    }
+
+    /**
+     * Same output as MimeMultipart.writeTo, without the shared parts
+     */
+    private void writeMultipart(MimeMultipart multipart, SkeletonStream skeleton)
+            throws IOException, MessagingException {
+        String boundary = "--" + new ContentType(multipart.getContentType()).getParameter("boundary");
+        String preamble = multipart.getPreamble();
+        if (preamble != null) {
+            byte[] bytes = preamble.getBytes(StandardCharsets.ISO_8859_1);
+            skeleton.write(bytes);
+            if (bytes.length > 0 && bytes[bytes.length - 1] != '\r' && bytes[bytes.length - 1] != '\n') {
+                skeleton.write(CRLF);
+            }
+        }
+        for (int i = 0; i < multipart.getCount(); i++) {
+            writeLine(boundary, skeleton);
+            BodyPart part = multipart.getBodyPart(i);
+            Object content = part.isMimeType("multipart/*") ? part.getContent() : null;
+            if (content instanceof MimeMultipart && part instanceof MimeBodyPart && isUnencoded(part)) {
+                writeHeaders(((MimeBodyPart) part).getAllHeaderLines(), skeleton);
+                writeMultipart((MimeMultipart) content, skeleton);
+            } else if (part instanceof MimeBodyPart && (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())
+                    || Part.INLINE.equalsIgnoreCase(part.getDisposition()))) {
+                skeleton.refs.put((long) skeleton.bytes.size(), storeBlob((MimeBodyPart) part));
+            } else {
+                part.writeTo(skeleton);
+            }
+            skeleton.write(CRLF);
+        }
+        writeLine(boundary + "--", skeleton);
+    }
+
+    /**
+     * Whether javax.mail writes the part's content without a transfer
+     * encoding, as it does for every multipart
+     */
+    private static boolean isUnencoded(Part part) throws MessagingException {
+        String[] encoding = part.getHeader("Content-Transfer-Encoding");
+        if (encoding == null) {
+            return true;
+        }
+        String value = encoding[0].trim();
+        return value.equalsIgnoreCase("7bit") || value.equalsIgnoreCase("8bit") || value.equalsIgnoreCase("binary");
+    }
+
+    private static void writeHeaders(Enumeration<String> lines, OutputStream out) throws IOException {
+        while (lines.hasMoreElements()) {
+            writeLine(lines.nextElement(), out);
+        }
+        out.write(CRLF);
+    }
+
+    private static void writeLine(String line, OutputStream out) throws IOException {
+        out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+    }
+
+    /**
+     * Store a part's serialized form unless the same bytes are archived already
+     *
+     * @return its content hash
+     */
+    private byte[] storeBlob(MimeBodyPart part) throws IOException, MessagingException {
+        // Hash first, so a part already archived is never written or buffered
+        MessageDigest digest = newDigest();
+        CountingStream counter = new CountingStream();
+        try (DigestOutputStream hashing = new DigestOutputStream(counter, digest)) {
+            part.writeTo(hashing);
+        }
+        byte[] key = digest.digest();
+        if (index.containsKey(new Key(KIND_BLOB, key))) {
+            return key;
+        }
+
+        Location location = beginRecord(KIND_BLOB, key, counter.count);
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(segment), 64 * 1024);
+        part.writeTo(out);
+        out.flush();
+        endRecord(KIND_BLOB, key, location);
+        return key;
+    }
+
+    private Location beginRecord(byte kind, byte[] key, long length) throws IOException {
+        if (segment == null || segment.size() + RECORD_HEADER_BYTES + length > SEGMENT_BYTES && segment.size() > 0) {
+            openSegment(segment == null ? Math.max(segmentNumber, 1) : segmentNumber + 1);
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        header.put(kind).put(key).putLong(length).flip();
+        while (header.hasRemaining()) {
+            segment.write(header);
+        }
+        return new Location(segmentNumber, segment.position(), length);
+    }
+
+    private void endRecord(byte kind, byte[] key, Location location) throws IOException {
+        long written = segment.position() - location.offset;
+        if (written != location.length) {
+            throw new IOException("Archive record is " + written + " bytes, expected " + location.length);
+        }
+        indexOut.writeByte(kind);
+        indexOut.write(key);
+        indexOut.writeInt(location.segment);
+        indexOut.writeLong(location.offset);
+        indexOut.writeLong(location.length);
+        indexOut.flush();
+        index.put(new Key(kind, key), location);
+    }
+
+    private void openSegment(int number) throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+        segmentNumber = number;
+        segment = FileChannel.open(segmentPath(number),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path segmentPath(int number) {
+        return dir.resolve(String.format("segment-%06d.pack", number));
+    }
+
+    private void loadIndex(Path indexFile) throws IOException {
+        long complete = readIndex(indexFile);
+        if (complete != Files.size(indexFile)) {
+            // Torn last entry from a crash; its record is simply written again later
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+                channel.truncate(complete);
+            }
+        }
+        this.indexOut = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(indexFile, StandardOpenOption.APPEND)));
+        logger.info("Opened sent-mail archive {} with {} entries", dir, index.size());
+    }
+
+    /**
+     * Load every complete index entry
+     *
+     * @return the length of the complete entries
+     */
+    private long readIndex(Path indexFile) throws IOException {
+        long complete = Files.size(indexFile) / INDEX_ENTRY_BYTES * INDEX_ENTRY_BYTES;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            for (long read = 0; read < complete; read += INDEX_ENTRY_BYTES) {
+                byte kind = in.readByte();
+                byte[] key = new byte[KEY_BYTES];
+                in.readFully(key);
+                Location location = new Location(in.readInt(), in.readLong(), in.readLong());
+                index.put(new Key(kind, key), location);
+                segmentNumber = Math.max(segmentNumber, location.segment);
+            }
+        }
+        return complete;
+    }
+
+    private void rebuildIndex(Path indexFile) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*.pack")) {
+            files.forEach(segments::add);
+        }
+        segments.sort(null);
+
+        this.indexOut = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(indexFile, StandardOpenOption.CREATE_NEW)));
+        for (Path file : segments) {
+            String name = file.getFileName().toString();
+            int number = Integer.parseInt(name.substring("segment-".length(), name.length() - ".pack".length()));
+            segmentNumber = Math.max(segmentNumber, number);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                long offset = 0;
+                long size = Files.size(file);
+                while (offset + RECORD_HEADER_BYTES <= size) {
+                    byte kind = in.readByte();
+                    byte[] key = new byte[KEY_BYTES];
+                    in.readFully(key);
+                    long length = in.readLong();
+                    offset += RECORD_HEADER_BYTES;
+                    if (offset + length > size) {
+                        break;  // torn record at the end
+                    }
+                    in.skipNBytes(length);
+                    Location location = new Location(number, offset, length);
+                    indexOut.writeByte(kind);
+                    indexOut.write(key);
+                    indexOut.writeInt(number);
+                    indexOut.writeLong(offset);
+                    indexOut.writeLong(length);
+                    index.put(new Key(kind, key), location);
+                    offset += length;
+                }
+            } catch (EOFException e) {
+                logger.warn("Archive segment {} ends in a partial record", file);
+            }
+        }
+        indexOut.flush();
+        if (!segments.isEmpty()) {
+            logger.info("Rebuilt archive index of {} from {} segments", dir, segments.size());
+        }
+    }
+
+    /**
+     * Finish queued messages and close the files
+     */
+    private void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warn("Sent-mail archive {} did not finish writing", dir);
+            }
+            if (segment != null) {
+                segment.force(false);
+                segment.close();
+            }
+            indexOut.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.warn("Could not close sent-mail archive {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        while (length > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n < 0) {
+                throw new EOFException("Archive record is truncated");
+            }
+            out.write(buffer, 0, n);
+            length -= n;
+        }
+    }
+
+    private static byte[] hash(byte[] bytes) {
+        return newDigest().digest(bytes);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Key {
+        private final byte kind;
+        private final byte[] hash;
+
+        Key(byte kind, byte[] hash) {
+            this.kind = kind;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).kind == kind
+                    && Arrays.equals(((Key) other).hash, hash);
+        }
+
+        @Override
+        public int hashCode() {
+            // Already a cryptographic hash
+            return (hash[0] << 24 | (hash[1] & 0xff) << 16 | (hash[2] & 0xff) << 8 | (hash[3] & 0xff)) ^ kind;
+        }
+    }
+
+    private static final class Location {
+        final int segment;
+        final long offset;
+        final long length;
+
+        Location(int segment, long offset, long length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+
+    /**
+     * Collects the message bytes without its shared parts, and where each one goes
+     */
+    private static class SkeletonStream extends OutputStream {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        final Map<Long, byte[]> refs = new TreeMap<>();
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            bytes.write(data, offset, length);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.emailautomation.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only index of sent messages by Message-ID, so bounces and read
+ * receipts that arrive later can be traced back to the filesendlist.log
+ * the message was logged to. One tab separated line per message:
+ * message ID, log file, attachment name, attachment path.
+ * <p>
+ * Only kept for messages whose param file sets sent_index. Once the file
+ * reaches MAX_BYTES it is renamed to the .1 generation, replacing the one
+ * before, so the index holds roughly the latest two generations of sends
+ * and reading it stays bounded.
+ */
+public class SentIndex {
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final Map<Path, SentIndex> OPEN = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final Path previous;
+    private final long maxBytes;
+
+    public SentIndex(Path path) {
+        this(path, MAX_BYTES);
+    }
+
+    SentIndex(Path path, long maxBytes) {
+        this.path = path;
+        this.previous = path.resolveSibling(path.getFileName() + ".1");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The index in {@code file}, shared by all senders in this process
+     */
+    public static SentIndex forFile(String file) {
+        return OPEN.computeIfAbsent(Paths.get(file).toAbsolutePath().normalize(), SentIndex::new);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public synchronized void record(String messageId, Path logPath, String attachmentName, String attachmentPath)
+            throws IOException {
+        String line = String.join("\t", messageId, logPath.toAbsolutePath().toString(),
+                orNa(attachmentName), orNa(attachmentPath)) + System.lineSeparator();
+        if (Files.exists(path) && Files.size(path) >= maxBytes) {
+            Files.move(path, previous, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.writeString(path, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Read the index, previous generation first. Later entries for the same ID win.
+     */
+    public Map<String, Entry> load() throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        load(previous, entries);
+        load(path, entries);
+        return entries;
+    }
+
+    private static void load(Path file, Map<String, Entry> entries) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 4) {
+                    entries.put(fields[0], new Entry(Paths.get(fields[1]), fields[2], fields[3]));
+                }
+            }
+        }
+    }
+
+    private static String orNa(String value) {
+        return value != null && !value.isEmpty() ? value : "N/A";
+    }
+
+    /**
+     * Where a sent message was logged
+     */
+    public static class Entry {
+        private final Path logPath;
+        private final String attachmentName;
+        private final String attachmentPath;
+
+        Entry(Path logPath, String attachmentName, String attachmentPath) {
+            this.logPath = logPath;
+            this.attachmentName = attachmentName;
+            this.attachmentPath = attachmentPath;
+        }
+
+        public Path getLogPath() { return logPath; }
+        public String getAttachmentName() { return attachmentName; }
+        public String getAttachmentPath() { return attachmentPath; }
+    }
+}
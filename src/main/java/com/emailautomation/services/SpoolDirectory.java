@@ -0,0 +1,382 @@
+package com.emailautomation.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A spool directory shared by several sender nodes (e.g. over NFS or SMB).
+ * Writers drop the .txt, .md, .html and .list files first and the .prm
+ * param file last. Nodes claim work without locks:
+ * <ul>
+ *   <li>a node claims a message by renaming its param file into
+ *       {@code .inprogress/<node>/}; the rename succeeds on exactly one node,
+ *       which then moves the sibling files after it</li>
+ *   <li>each node rewrites {@code .inprogress/<node>.lease} with a rising
+ *       heartbeat number; a node whose number stops changing for the lease
+ *       timeout is dead, and the others claim its files with the same
+ *       rename protocol</li>
+ *   <li>a sent message's param file is first renamed to {@code .prm.sent},
+ *       then the siblings and the marker are deleted, so a crash halfway
+ *       through never makes another node send it again</li>
+ * </ul>
+ * Heartbeats are compared by value on the observing node's own clock, so
+ * clock skew between nodes and file servers does not matter.
+ */
+public class SpoolDirectory implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SpoolDirectory.class);
+
+    public static final String PARAM_EXTENSION = ".prm";
+    private static final String[] SIBLING_EXTENSIONS = { ".txt", ".md", ".html", ".list" };
+    private static final String SENT_MARKER = ".sent";
+
+    private final Path spool;
+    private final Path inProgress;
+    private final Path ownDir;
+    private final Path lease;
+    private final Path failedDir;
+    private final Path keptDir;
+    private final String nodeId;
+    private final long leaseTimeoutNanos;
+    private final ScheduledExecutorService heartbeat;
+
+    // Claimed files waiting to be handed out, e.g. taken over from a dead node
+    private final Deque<Path> pending = new ArrayDeque<>();
+
+    private final Map<String, Long> lastBeats = new HashMap<>();
+    private final Map<String, Long> lastBeatSeen = new HashMap<>();
+    private long beat;
+
+    /**
+     * @param leaseTimeout how long another node's heartbeat may stand still
+     *                     before its work is taken over
+     */
+    public SpoolDirectory(Path spool, String nodeId, Duration leaseTimeout) throws IOException {
+        if (nodeId.contains("/") || nodeId.contains("\\") || nodeId.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid node id: " + nodeId);
+        }
+        this.spool = spool;
+        this.nodeId = nodeId;
+        this.inProgress = Files.createDirectories(spool.resolve(".inprogress"));
+        this.ownDir = inProgress.resolve(nodeId);
+        this.lease = inProgress.resolve(nodeId + ".lease");
+        this.failedDir = Files.createDirectories(spool.resolve(".failed"));
+        this.keptDir = Files.createDirectories(spool.resolve(".kept"));
+        this.leaseTimeoutNanos = leaseTimeout.toNanos();
+
+        // The lease goes first, so a node directory without one is always abandoned
+        renewLease();
+        Files.createDirectories(ownDir);
+        // Work left behind by an earlier run of this node
+        adopt(ownDir);
+
+        long interval = Math.max(1, leaseTimeout.toMillis() / 4);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "spool-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Claim up to {@code max} param files. The returned paths point into
+     * this node's in-progress directory, with their sibling files next to them.
+     */
+    public synchronized List<String> claim(int max) throws IOException {
+        List<String> claimed = new ArrayList<>();
+        while (claimed.size() < max && !pending.isEmpty()) {
+            claimed.add(pending.poll().toString());
+        }
+        if (claimed.size() >= max) {
+            return claimed;
+        }
+
+        List<Path> candidates = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spool, "*" + PARAM_EXTENSION)) {
+            for (Path file : files) {
+                candidates.add(file);
+            }
+        }
+        // Nodes listing the same directory would otherwise all race for the same first files
+        Collections.shuffle(candidates);
+
+        for (Path file : candidates) {
+            if (claimed.size() >= max) {
+                break;
+            }
+            Path target = claimGroup(file, ownDir);
+            if (target != null) {
+                claimed.add(target.toString());
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Remove a sent message's files, exactly once
+     */
+    public void complete(String paramFile) {
+        remove(paramFile);
+    }
+
+    /**
+     * Move a message that failed to send to {@code .failed/} for inspection
+     */
+    public void fail(String paramFile) {
+        moveGroup(Paths.get(paramFile), failedDir);
+    }
+
+    /**
+     * Move a sent message that should be kept (debug mode) to {@code .kept/}
+     */
+    public void keep(String paramFile) {
+        moveGroup(Paths.get(paramFile), keptDir);
+    }
+
+    /**
+     * Delete a sent param file and its sibling files. The param file is
+     * renamed to a marker first, so when several cleanups race (or one is
+     * interrupted and repeated) the files are removed exactly once.
+     */
+    public static void remove(String paramFile) {
+        Path param = Paths.get(paramFile);
+        Path marker = param.resolveSibling(param.getFileName() + SENT_MARKER);
+        try {
+            Files.move(param, marker, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            if (!Files.exists(marker)) {
+                return;  // already cleaned up
+            }
+        } catch (IOException e) {
+            logger.warn("Could not delete {}: {}", paramFile, e.getMessage());
+            return;
+        }
+        finishRemove(marker);
+    }
+
+    private static void finishRemove(Path marker) {
+        String name = marker.getFileName().toString();
+        Path param = marker.resolveSibling(name.substring(0, name.length() - SENT_MARKER.length()));
+        try {
+            for (Path sibling : siblings(param)) {
+                if (Files.deleteIfExists(sibling)) {
+                    logger.info("Deleted: {}", sibling);
+                }
+            }
+            Files.deleteIfExists(marker);
+            logger.info("Deleted: {}", param);
+        } catch (IOException e) {
+            logger.warn("Could not delete {}: {}", param, e.getMessage());
+        }
+    }
+
+    private static List<Path> siblings(Path param) {
+        String base = param.getFileName().toString().replaceAll("\\.[^.]+$", "");
+        List<Path> siblings = new ArrayList<>(SIBLING_EXTENSIONS.length);
+        for (String extension : SIBLING_EXTENSIONS) {
+            siblings.add(param.resolveSibling(base + extension));
+        }
+        return siblings;
+    }
+
+    /**
+     * Rename {@code param} into {@code dir}, then its siblings.
+     *
+     * @return the claimed param file, or null if another node got it first
+     */
+    private static Path claimGroup(Path param, Path dir) throws IOException {
+        Path target = dir.resolve(param.getFileName());
+        try {
+            Files.move(param, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        for (Path sibling : siblings(param)) {
+            try {
+                Files.move(sibling, dir.resolve(sibling.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                // this message has no such file
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Move a claimed message elsewhere: siblings first and the param file
+     * last, so no node can claim it before it is complete
+     */
+    private static void moveGroup(Path param, Path dir) {
+        try {
+            for (Path sibling : siblings(param)) {
+                try {
+                    Files.move(sibling, dir.resolve(sibling.getFileName()),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException e) {
+                    // this message has no such file
+                }
+            }
+            Files.move(param, dir.resolve(param.getFileName()),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not move {} to {}: {}", param, dir, e.getMessage());
+        }
+    }
+
+    /**
+     * Take over every message in {@code dir}: finish interrupted cleanups
+     * and queue the rest for sending from this node
+     */
+    private synchronized int adopt(Path dir) throws IOException {
+        List<Path> markers = new ArrayList<>();
+        List<Path> params = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(PARAM_EXTENSION + SENT_MARKER)) {
+                    markers.add(file);
+                } else if (name.endsWith(PARAM_EXTENSION)) {
+                    params.add(file);
+                }
+            }
+        }
+
+        for (Path marker : markers) {
+            finishRemove(marker);
+        }
+        int adopted = 0;
+        for (Path param : params) {
+            Path target = dir.equals(ownDir) ? param : claimGroup(param, ownDir);
+            if (target != null) {
+                pending.add(target);
+                adopted++;
+            }
+        }
+        if (adopted > 0) {
+            logger.info("Node {} took over {} messages from {}", nodeId, adopted, dir.getFileName());
+        }
+        return adopted;
+    }
+
+    private void renewLease() throws IOException {
+        beat++;
+        Path temp = Files.createTempFile(inProgress, "." + nodeId, ".tmp");
+        Files.write(temp, Long.toString(beat).getBytes(StandardCharsets.US_ASCII));
+        Files.move(temp, lease, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void tick() {
+        try {
+            boolean lost = !Files.exists(lease);
+            renewLease();
+            if (lost) {
+                logger.error("Lease of node {} was taken over; messages in flight may be sent twice", nodeId);
+                Files.createDirectories(ownDir);
+            }
+            reclaimDeadNodes();
+        } catch (Exception e) {
+            logger.warn("Spool heartbeat failed for node {}: {}", nodeId, e.getMessage());
+        }
+    }
+
+    private void reclaimDeadNodes() throws IOException {
+        long now = System.nanoTime();
+        List<Path> nodeDirs = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(inProgress)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry) && !entry.equals(ownDir)) {
+                    nodeDirs.add(entry);
+                }
+            }
+        }
+
+        for (Path dir : nodeDirs) {
+            String node = dir.getFileName().toString();
+            Path nodeLease = inProgress.resolve(node + ".lease");
+            Long current = readBeat(nodeLease);
+            if (current != null && !current.equals(lastBeats.get(node))) {
+                lastBeats.put(node, current);
+                lastBeatSeen.put(node, now);
+                continue;
+            }
+            Long seen = lastBeatSeen.get(node);
+            if (current != null && (seen == null || now - seen < leaseTimeoutNanos)) {
+                continue;
+            }
+
+            logger.warn("Node {} stopped renewing its lease, taking over its messages", node);
+            adopt(dir);
+            try {
+                Files.deleteIfExists(dir);
+                Files.deleteIfExists(nodeLease);
+            } catch (DirectoryNotEmptyException e) {
+                continue;  // another node is still moving files out; it removes the directory
+            }
+            lastBeats.remove(node);
+            lastBeatSeen.remove(node);
+        }
+    }
+
+    private static Long readBeat(Path lease) {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(lease), StandardCharsets.US_ASCII).trim());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | NumberFormatException e) {
+            // Being replaced right now; count it as alive
+            return -1L;
+        }
+    }
+
+    /**
+     * Stop heartbeating and put unfinished messages back in the spool for
+     * other nodes. Call after the dispatcher has finished with its messages.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        heartbeat.shutdownNow();
+        pending.clear();
+        List<Path> params = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(ownDir, "*" + PARAM_EXTENSION)) {
+            for (Path file : files) {
+                params.add(file);
+            }
+        }
+        for (Path param : params) {
+            moveGroup(param, spool);
+        }
+        if (!params.isEmpty()) {
+            logger.info("Node {} returned {} unsent messages to the spool", nodeId, params.size());
+        }
+        try {
+            Files.deleteIfExists(ownDir);
+        } catch (DirectoryNotEmptyException e) {
+            logger.warn("Leaving {} in place, it still holds files", ownDir);
+        }
+        Files.deleteIfExists(lease);
+    }
+}
@@ -0,0 +1,61 @@
+package com.emailautomation.services;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Addresses that must not be mailed again, one per line in a plain text
+ * file. New addresses are appended in one write per batch.
+ */
+public class SuppressionList {
+    private final Path path;
+    private final Set<String> addresses = new HashSet<>();
+
+    public SuppressionList(Path path) throws IOException {
+        this.path = path;
+        if (Files.exists(path)) {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                String address = line.trim();
+                if (!address.isEmpty() && !address.startsWith("#")) {
+                    addresses.add(address.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+    }
+
+    public synchronized boolean contains(String address) {
+        return addresses.contains(address.trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Add addresses that are not on the list yet
+     *
+     * @return how many were new
+     */
+    public synchronized int addAll(Collection<String> candidates) throws IOException {
+        List<String> added = new ArrayList<>();
+        for (String candidate : candidates) {
+            String address = candidate.trim().toLowerCase(Locale.ROOT);
+            if (!address.isEmpty() && addresses.add(address)) {
+                added.add(address);
+            }
+        }
+        if (!added.isEmpty()) {
+            Files.write(path, added, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        return added.size();
+    }
+
+    public synchronized int size() {
+        return addresses.size();
+    }
+}
@@ -0,0 +1,344 @@
+package com.emailautomation.services;
+
+import com.emailautomation.models.EmailConfig;
+import com.emailautomation.models.RenderedEmail;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Precompiled branding: the HTML template with the signature already in
+ * place and every inline image (the logo and any local {@code <img src>})
+ * stored base64-encoded under a stable Content-ID. A bundle file is read
+ * into memory once and shared by every message that uses it, so sends no
+ * longer re-read the template, signature and logo or re-encode images, and
+ * mail clients can cache images across messages. Bundles are small and are
+ * read onto the heap rather than mapped, so the file can be replaced (on
+ * Windows too) while a long-running process uses it.
+ * <p>
+ * File layout: magic, version, the HTML, then for each image its Content-ID,
+ * file name, content type, offset and length, followed by the encoded image
+ * data that the offsets point into.
+ */
+public class TemplateBundle {
+    private static final Logger logger = LoggerFactory.getLogger(TemplateBundle.class);
+
+    private static final int MAGIC = 0x45414231;  // "EAB1"
+    private static final int VERSION = 1;
+
+    private static final Pattern LOCAL_IMAGE = Pattern.compile("(<img\\b[^>]*?\\bsrc\\s*=\\s*[\"'])([^\"']+)([\"'])",
+            Pattern.CASE_INSENSITIVE);
+
+    // Loaded bundles by path, replaced when the file changes
+    private static final Map<Path, TemplateBundle> LOADED = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final long modified;
+    private final String html;
+    private final Map<String, Image> images;
+
+    private TemplateBundle(Path path, long modified, String html, Map<String, Image> images) {
+        this.path = path;
+        this.modified = modified;
+        this.html = html;
+        this.images = images;
+    }
+
+    /**
+     * The bundle at {@code path}, read on first use and reused until the
+     * file is replaced. While the file is briefly missing during a
+     * replacement, the copy already loaded is used.
+     */
+    public static TemplateBundle load(String path) throws IOException {
+        Path file = Paths.get(path).toAbsolutePath();
+        TemplateBundle bundle = LOADED.get(file);
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (NoSuchFileException e) {
+            if (bundle != null) {
+                return bundle;
+            }
+            throw e;
+        }
+        if (bundle == null || bundle.modified != modified) {
+            bundle = read(file, modified);
+            LOADED.put(file, bundle);
+            logger.info("Loaded template bundle {} ({} images)", file, bundle.images.size());
+        }
+        return bundle;
+    }
+
+    String getPath() {
+        return path.toString();
+    }
+
+    /**
+     * HTML with {SIGNATURE} filled in and image references pointing at cid: URLs
+     */
+    public String getHtml() {
+        return html;
+    }
+
+    /**
+     * The inline images, to be resolved with {@link #newPart(String)}
+     */
+    public List<RenderedEmail.InlineImage> getInlineImages() {
+        List<RenderedEmail.InlineImage> list = new ArrayList<>(images.size());
+        for (String contentId : images.keySet()) {
+            list.add(new RenderedEmail.InlineImage(path.toString(), contentId));
+        }
+        return list;
+    }
+
+    boolean contains(String contentId) {
+        return images.containsKey(contentId);
+    }
+
+    /**
+     * A new inline part over the loaded image data; parts cannot be shared
+     * between messages, the bytes behind them are
+     */
+    MimeBodyPart newPart(String contentId) throws MessagingException {
+        Image image = images.get(contentId);
+        MimeBodyPart part = new PreencodedMimeBodyPart("base64");
+        part.setDataHandler(new DataHandler(image));
+        part.setHeader("Content-ID", "<" + contentId + ">");
+        part.setDisposition(MimeBodyPart.INLINE);
+        part.setFileName(image.fileName);
+        return part;
+    }
+
+    private static TemplateBundle read(Path file, long modified) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (data.remaining() < 8 || data.getInt() != MAGIC) {
+            throw new IOException("Not a template bundle: " + file);
+        }
+        int version = data.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported template bundle version " + version + ": " + file);
+        }
+
+        String html = readString(data);
+        int count = data.getInt();
+        Map<String, Image> images = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String contentId = readString(data);
+            String fileName = readString(data);
+            String contentType = readString(data);
+            int offset = data.getInt();
+            int length = data.getInt();
+            ByteBuffer image = data.duplicate();
+            image.position(offset).limit(offset + length);
+            images.put(contentId, new Image(fileName, contentType, image.slice()));
+        }
+        return new TemplateBundle(file, modified, html, Collections.unmodifiableMap(images));
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Build a bundle from the html_template, signature_file and logo_path of
+     * {@code branding}. Local images in the template and signature are
+     * resolved against the template's directory and embedded too.
+     */
+    public static void compile(EmailConfig branding, Path output) throws IOException {
+        if (branding.getHtmlTemplate() == null || branding.getHtmlTemplate().isEmpty()) {
+            throw new IllegalArgumentException("html_template is not set");
+        }
+        Path template = Paths.get(branding.getHtmlTemplate()).toAbsolutePath();
+        String html = Files.readString(template);
+
+        String signature = "";
+        if (branding.getSignatureFile() != null && !branding.getSignatureFile().isEmpty()) {
+            signature = Files.readString(Paths.get(branding.getSignatureFile()));
+        }
+        html = html.replace("{SIGNATURE}", signature);
+
+        Map<String, Path> sources = new LinkedHashMap<>();
+        if (branding.getLogoPath() != null && !branding.getLogoPath().isEmpty()) {
+            Path logo = Paths.get(branding.getLogoPath());
+            String contentId = stableContentId("logo", logo);
+            html = html.replace("{LOGO}", "cid:" + contentId);
+            sources.put(contentId, logo);
+        } else {
+            html = html.replace("{LOGO}", "");
+        }
+
+        Matcher matcher = LOCAL_IMAGE.matcher(html);
+        StringBuilder rewritten = new StringBuilder(html.length());
+        while (matcher.find()) {
+            String src = matcher.group(2);
+            Path image = template.getParent().resolve(src);
+            String replacement = matcher.group(0);
+            if (!src.contains(":") && !src.startsWith("//") && Files.isRegularFile(image)) {
+                String contentId = stableContentId("img", image);
+                sources.put(contentId, image);
+                replacement = matcher.group(1) + "cid:" + contentId + matcher.group(3);
+            }
+            matcher.appendReplacement(rewritten, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(rewritten);
+        html = rewritten.toString();
+
+        Map<String, byte[]> encoded = new LinkedHashMap<>();
+        for (Map.Entry<String, Path> source : sources.entrySet()) {
+            encoded.put(source.getKey(), Base64.getMimeEncoder().encode(Files.readAllBytes(source.getValue())));
+        }
+        write(output, html, sources, encoded);
+        logger.info("Compiled template bundle {} from {} with {} images", output, template, sources.size());
+    }
+
+    /**
+     * Content-ID derived from the image bytes, so it only changes when the image does
+     */
+    private static String stableContentId(String prefix, Path image) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(image));
+            StringBuilder hex = new StringBuilder(prefix).append('_');
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.append("@emailautomation").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void write(Path output, String html, Map<String, Path> sources, Map<String, byte[]> encoded)
+            throws IOException {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(index);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, html);
+        out.writeInt(sources.size());
+
+        // Image data starts right after the index, so work out the index size first
+        int indexSize = index.size();
+        for (Map.Entry<String, Path> source : sources.entrySet()) {
+            indexSize += 4 + utf8Length(source.getKey())
+                    + 4 + utf8Length(source.getValue().getFileName().toString())
+                    + 4 + utf8Length(contentType(source.getValue()))
+                    + 8;
+        }
+        int offset = indexSize;
+        for (Map.Entry<String, Path> source : sources.entrySet()) {
+            byte[] data = encoded.get(source.getKey());
+            writeString(out, source.getKey());
+            writeString(out, source.getValue().getFileName().toString());
+            writeString(out, contentType(source.getValue()));
+            out.writeInt(offset);
+            out.writeInt(data.length);
+            offset += data.length;
+        }
+        out.flush();
+
+        Path parent = output.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, output.getFileName().toString(), ".tmp");
+        try (OutputStream file = Files.newOutputStream(temp)) {
+            index.writeTo(file);
+            for (byte[] data : encoded.values()) {
+                file.write(data);
+            }
+        }
+        Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int utf8Length(String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static String contentType(Path file) {
+        return FileTypeMap.getDefaultFileTypeMap().getContentType(file.toFile());
+    }
+
+    /**
+     * Base64 image data inside the loaded bundle
+     */
+    private static class Image implements DataSource {
+        private final String fileName;
+        private final String contentType;
+        private final ByteBuffer data;
+
+        Image(String fileName, String contentType, ByteBuffer data) {
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.data = data;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            ByteBuffer buffer = data.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) {
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    int n = Math.min(length, buffer.remaining());
+                    buffer.get(bytes, offset, n);
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Template bundles are read-only");
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getName() {
+            return fileName;
+        }
+    }
+}
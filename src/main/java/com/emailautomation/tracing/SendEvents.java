@@ -0,0 +1,148 @@
+package com.emailautomation.tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for tracing single messages through the send
+ * path. Each event carries the message ID where one is known, so a slow
+ * message in a continuous recording can be followed from loading to the
+ * SMTP reply in JMC without turning on debug logging.
+ * <p>
+ * The events are cheap while no recording is running: {@code shouldCommit()}
+ * is checked before any field is filled in. Record them with e.g.
+ * {@code -XX:StartFlightRecording=filename=send.jfr,settings=profile}.
+ */
+public final class SendEvents {
+    private static final String CATEGORY = "Email Automation";
+
+    private SendEvents() {
+    }
+
+    @Name("com.emailautomation.ConfigLoad")
+    @Label("Config Load")
+    @Description("Reading a param file with its body and attachment list")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class ConfigLoad extends Event {
+        @Label("Param File")
+        public String paramFile;
+
+        @Label("Body Length")
+        @Description("Characters in the message body")
+        public int bodyLength;
+
+        @Label("Recipients")
+        public int recipients;
+
+        @Label("Attachments")
+        public int attachments;
+
+        @Label("Succeeded")
+        public boolean succeeded;
+    }
+
+    @Name("com.emailautomation.TemplateRender")
+    @Label("Template Render")
+    @Description("Loading an HTML template and replacing its placeholders")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class TemplateRender extends Event {
+        @Label("Message ID")
+        public String messageId;
+
+        @Label("Template")
+        public String template;
+
+        @Label("Output Length")
+        @Description("Characters in the rendered HTML, 0 when falling back")
+        public int outputLength;
+    }
+
+    @Name("com.emailautomation.Attachments")
+    @Label("Attachments")
+    @Description("Waiting for the encoded attachment parts and adding them to the message")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class Attachments extends Event {
+        @Label("Message ID")
+        public String messageId;
+
+        @Label("Count")
+        public int count;
+
+        @Label("Size")
+        @Description("Combined size of the attachment files")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("com.emailautomation.SmtpConnect")
+    @Label("SMTP Connect")
+    @Description("TCP connect, TLS handshake and authentication with the relay")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class SmtpConnect extends Event {
+        @Label("Message ID")
+        public String messageId;
+
+        @Label("Relay")
+        @Description("SMTP server as host:port")
+        public String relay;
+
+        @Label("Reply Code")
+        @Description("Last SMTP reply code from the relay, -1 if none")
+        public int replyCode;
+
+        @Label("Succeeded")
+        public boolean succeeded;
+    }
+
+    @Name("com.emailautomation.SmtpData")
+    @Label("SMTP Data")
+    @Description("Sending one message to the relay, from MAIL FROM to the reply to DATA")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class SmtpData extends Event {
+        @Label("Message ID")
+        public String messageId;
+
+        @Label("Relay")
+        public String relay;
+
+        @Label("Recipients")
+        public int recipients;
+
+        @Label("Reply Code")
+        @Description("Last SMTP reply code from the relay, -1 if none")
+        public int replyCode;
+
+        @Label("Succeeded")
+        public boolean succeeded;
+    }
+
+    @Name("com.emailautomation.LogWrite")
+    @Label("Log Write")
+    @Description("Appending a result line to a send log file")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class LogWrite extends Event {
+        @Label("Message ID")
+        public String messageId;
+
+        @Label("Log File")
+        public String logFile;
+
+        @Label("Status")
+        public String status;
+
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+    }
+}
@@ -0,0 +1,184 @@
+package com.emailautomation.utils;
+
+import com.emailautomation.models.EmailConfig;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary form of an EmailConfig for persisting pending messages.
+ *
+ * Strings are varint-length-prefixed UTF-8 (length 0 = null, n+1 = n bytes),
+ * booleans are packed into one flags byte, and the send time is epoch millis.
+ * The SMTP user and password are not written; whoever reads a record back
+ * supplies them again.
+ */
+public class EmailConfigCodec {
+    // 2 added the DKIM settings, 3 attachment compression, 4 template bundles, 5 the sent-mail archive,
+    // 6 dropped the credentials and stores from, subject, body and team name as set instead of defaulted,
+    // 7 the sent index
+    private static final int VERSION = 7;
+
+    private static final int FLAG_TLS = 1;
+    private static final int FLAG_HTML = 1 << 1;
+    private static final int FLAG_DEBUG = 1 << 2;
+    private static final int FLAG_READ_RECEIPT = 1 << 3;
+    private static final int FLAG_SEND_AT = 1 << 4;
+    private static final int FLAG_HIGH_PRIORITY = 1 << 5;
+
+    public static void write(DataOutput out, EmailConfig config) throws IOException {
+        out.writeByte(VERSION);
+
+        int flags = (config.isUseTLS() ? FLAG_TLS : 0)
+                | (config.isUseHtml() ? FLAG_HTML : 0)
+                | (config.isDebug() ? FLAG_DEBUG : 0)
+                | (config.isReadReceipt() ? FLAG_READ_RECEIPT : 0)
+                | (config.getSendAt() != null ? FLAG_SEND_AT : 0)
+                | (config.getPriority() == EmailConfig.Priority.HIGH ? FLAG_HIGH_PRIORITY : 0);
+        out.writeByte(flags);
+        if (config.getSendAt() != null) {
+            out.writeLong(config.getSendAt().toEpochMilli());
+        }
+
+        writeString(out, config.getMessageId());
+        writeString(out, config.getSmtpServer());
+        writeVarInt(out, config.getPort());
+        writeString(out, config.getRawFrom());
+        writeList(out, config.getTo());
+        writeList(out, config.getBcc());
+        writeString(out, config.getAttachmentPath());
+        writeString(out, config.getAttachmentName());
+        writeList(out, config.getAttachmentPaths());
+        writeString(out, config.getRawSubject());
+        writeString(out, config.getRawBody());
+        writeString(out, config.getLogoPath());
+        writeString(out, config.getSignatureFile());
+        writeString(out, config.getReplyTo());
+        writeString(out, config.getRawTeamName());
+        writeString(out, config.getHtmlTemplate());
+        writeString(out, config.getDkimSelector());
+        writeString(out, config.getDkimKey());
+        writeVarInt(out, config.getCompressOverKb());
+        writeString(out, config.getTemplateBundle());
+        writeString(out, config.getArchiveDir());
+        writeString(out, config.getSentIndex());
+    }
+
+    public static EmailConfig read(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported config record version " + version);
+        }
+
+        int flags = in.readUnsignedByte();
+        EmailConfig.Builder builder = EmailConfig.builder()
+                .useTLS((flags & FLAG_TLS) != 0)
+                .useHtml((flags & FLAG_HTML) != 0)
+                .debug((flags & FLAG_DEBUG) != 0)
+                .readReceipt((flags & FLAG_READ_RECEIPT) != 0)
+                .priority((flags & FLAG_HIGH_PRIORITY) != 0 ? EmailConfig.Priority.HIGH : EmailConfig.Priority.NORMAL);
+        if ((flags & FLAG_SEND_AT) != 0) {
+            builder.sendAt(Instant.ofEpochMilli(in.readLong()));
+        }
+
+        builder
+                .messageId(readString(in))
+                .smtpServer(readString(in))
+                .port(readVarInt(in));
+        if (version < 6) {
+            builder.user(readString(in))
+                    .password(readString(in));
+        }
+        builder
+                .from(readString(in))
+                .to(readList(in))
+                .bcc(readList(in))
+                .attachmentPath(readString(in))
+                .attachmentName(readString(in))
+                .attachmentPaths(readList(in))
+                .subject(readString(in))
+                .body(readString(in))
+                .logoPath(readString(in))
+                .signatureFile(readString(in))
+                .replyTo(readString(in))
+                .teamName(readString(in))
+                .htmlTemplate(readString(in));
+        if (version >= 2) {
+            builder.dkimSelector(readString(in))
+                    .dkimKey(readString(in));
+        }
+        if (version >= 3) {
+            builder.compressOverKb(readVarInt(in));
+        }
+        if (version >= 4) {
+            builder.templateBundle(readString(in));
+        }
+        if (version >= 5) {
+            builder.archiveDir(readString(in));
+        }
+        if (version >= 7) {
+            builder.sentIndex(readString(in));
+        }
+        return builder.build();
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeList(DataOutput out, List<String> values) throws IOException {
+        writeVarInt(out, values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static List<String> readList(DataInput in) throws IOException {
+        int count = readVarInt(in);
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -1,149 +1,200 @@
 package com.emailautomation.utils;
 
 import com.emailautomation.models.EmailConfig;
+import com.emailautomation.tracing.SendEvents;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
-import java.util.logging.Logger;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class EmailConfigLoader
 {
-    private static final Logger logger = Logger.getLogger(EmailConfigLoader.class.getName());
+    private static final Logger logger = LoggerFactory.getLogger(EmailConfigLoader.class);
+
+    // Sibling files present next to a param file, as found by a directory listing
+    private static final int HAS_MD = 1;
+    private static final int HAS_TXT = 2;
+    private static final int HAS_LIST = 4;
+    private static final int SIBLINGS_UNKNOWN = -1;
+
+    // Whether Files.exists finds "Notes.MD" when probing for "notes.md"
+    private static final boolean CASE_INSENSITIVE_NAMES = File.separatorChar == '\\';
+
+    private static final java.nio.charset.Charset PARAM_CHARSET = java.nio.charset.Charset.forName("IBM862");
 
     public static EmailConfig loadFromFile(String filePath) throws IOException
     {
-        EmailConfig.Builder builder = EmailConfig.builder();
+        return loadFromFile(filePath, null);
+    }
 
-        // Force DOS encoding (IBM-862) for the config file
-        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filePath), java.nio.charset.Charset.forName("IBM862")))
+    /**
+     * Load a param file, handing the settings read from the param file itself
+     * to {@code onParamsRead} before the body and attachment list files are
+     * read. The SMTP connection can then be opened while the rest loads.
+     */
+    public static EmailConfig loadFromFile(String filePath, java.util.function.Consumer<EmailConfig> onParamsRead) throws IOException
+    {
+        return load(filePath, SIBLINGS_UNKNOWN, onParamsRead);
+    }
+
+    /**
+     * Load many param files at once, e.g. a spool backlog. Each directory is
+     * listed once to find the .md/.txt/.list siblings of all its param files
+     * instead of probing for them file by file, and the files are parsed in
+     * parallel on the fork-join pool.
+     *
+     * @return the loaded configs by param file; files that could not be read
+     *         are left out, so callers can load them singly and report the error
+     */
+    public static Map<String, EmailConfig> loadAll(List<String> filePaths)
+    {
+        Map<Path, Map<String, Integer>> siblingsByDir = new HashMap<>();
+        for (String filePath : filePaths)
+        {
+            Path dir = Paths.get(filePath).toAbsolutePath().getParent();
+            if (!siblingsByDir.containsKey(dir))
+            {
+                siblingsByDir.put(dir, listSiblings(dir));
+            }
+        }
+
+        Map<String, EmailConfig> loaded = new ConcurrentHashMap<>();
+        filePaths.parallelStream().forEach(filePath ->
+        {
+            Path path = Paths.get(filePath).toAbsolutePath();
+            Map<String, Integer> siblings = siblingsByDir.get(path.getParent());
+            int found = siblings == null ? SIBLINGS_UNKNOWN
+                    : siblings.getOrDefault(foldCase(baseName(path.getFileName().toString())), 0);
+            try
+            {
+                loaded.put(filePath, load(filePath, found, null));
+            }
+            catch (Exception e)
+            {
+                logger.debug("Bulk load of {} failed: {}", filePath, e.getMessage());
+            }
+        });
+        return loaded;
+    }
+
+    /**
+     * Sibling flags by base name for every file in {@code dir}, in one
+     * listing, or null if the directory cannot be listed. Names are matched
+     * with the same case rules as the probes in load(), so both find the
+     * same body and list files.
+     */
+    private static Map<String, Integer> listSiblings(Path dir)
+    {
+        Map<String, Integer> siblings = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+        {
+            for (Path file : files)
+            {
+                String name = foldCase(file.getFileName().toString());
+                int flag = name.endsWith(".md") ? HAS_MD
+                        : name.endsWith(".txt") ? HAS_TXT
+                        : name.endsWith(".list") ? HAS_LIST
+                        : 0;
+                if (flag != 0)
+                {
+                    siblings.merge(baseName(name), flag, (a, b) -> a | b);
+                }
+            }
+            return siblings;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not list {}, probing for body files instead: {}", dir, e.getMessage());
+            return null;
+        }
+    }
+
+    private static EmailConfig load(String filePath, int siblings, java.util.function.Consumer<EmailConfig> onParamsRead)
+            throws IOException
+    {
+        SendEvents.ConfigLoad event = new SendEvents.ConfigLoad();
+        event.begin();
+        EmailConfig config = null;
+        try
+        {
+            config = read(filePath, siblings, onParamsRead);
+            return config;
+        }
+        finally
         {
-            String line;
-            while ((line = reader.readLine()) != null)
+            if (event.shouldCommit())
             {
-                String[] parts = line.split("=", 2);
-                if (parts.length != 2) continue;
+                event.paramFile = filePath;
+                if (config != null)
+                {
+                    event.bodyLength = config.getBody() != null ? config.getBody().length() : 0;
+                    event.recipients = config.getTo().size() + config.getBcc().size();
+                    event.attachments = config.getAllAttachmentPaths().size();
+                    event.succeeded = true;
+                }
+                event.commit();
+            }
+        }
+    }
 
-                String key = parts[0].trim();
-                String value = parts[1].trim();
+    private static EmailConfig read(String filePath, int siblings, java.util.function.Consumer<EmailConfig> onParamsRead)
+            throws IOException
+    {
+        EmailConfig.Builder builder = EmailConfig.builder();
 
-                // For fields that can be Hebrew, fix the direction
-                switch (key)
+        // Force DOS encoding (IBM-862) for the config file
+        String text = new String(Files.readAllBytes(Paths.get(filePath)), PARAM_CHARSET);
+        int length = text.length();
+        int lineStart = 0;
+        while (lineStart < length)
+        {
+            int lineEnd = lineStart;
+            int equals = -1;
+            for (char c; lineEnd < length && (c = text.charAt(lineEnd)) != '\n' && c != '\r'; lineEnd++)
+            {
+                if (c == '=' && equals < 0)
                 {
-                    case "smtp_server":
-                        builder.smtpServer(value); // English/host - no fix
-                        break;
-                    case "port":
-                        builder.port(Integer.parseInt(value));
-                        break;
-                    case "user":
-                        builder.user(value);
-                        break;
-                    case "password":
-                        builder.password(value);
-                        break;
-                    case "from_":
-                        builder.from(fixHebrewDirection(value));
-                        break;
-                    case "to":
-                        String[] toAddresses = value.split(",");
-                        List<String> toList = new ArrayList<>();
-                        for (String email : toAddresses)
-                        {
-                            String trimmed = fixHebrewDirection(email.trim());
-                            if (!trimmed.isEmpty())
-                            {
-                                toList.add(trimmed);
-                            }
-                        }
-                        builder.to(toList);
-                        break;
-                    case "bcc":
-                        String[] bccAddresses = value.split(",");
-                        List<String> bccList = new ArrayList<>();
-                        for (String email : bccAddresses)
-                        {
-                            String trimmed = fixHebrewDirection(email.trim());
-                            if (!trimmed.isEmpty())
-                            {
-                                bccList.add(trimmed);
-                            }
-                        }
-                        builder.bcc(bccList);
-                        break;
-                    case "fileandpath":
-                        builder.attachmentPath(value);
-                        break;
-                    case "filename":
-                        builder.attachmentName(fixHebrewDirection(value));
-                        break;
-                    case "subject":
-                        builder.subject(fixHebrewDirection(value));
-                        break;
-                    case "body":
-                        builder.body(fixHebrewDirection(value));
-                        break;
-                    case "cert":
-                        builder.useTLS(Boolean.parseBoolean(value) || "True".equalsIgnoreCase(value));
-                        break;
-                    case "logo":
-                    case "logo_path":
-                        builder.logoPath(value);
-                        break;
-                    case "sendamail":
-                    case "sendemail":
-                        logger.info("Ignoring deprecated parameter: " + key);
-                        break;
-                    case "signaturefile":
-                    case "signature_file":
-                    case "signature":
-                        builder.signatureFile(fixHebrewDirection(value));
-                        break;
-                    case "debug":
-                        builder.debug(Boolean.parseBoolean(value) || "True".equalsIgnoreCase(value));
-                        break;
-                    case "reply_to":
-                    case "replyto":
-                        builder.replyTo(fixHebrewDirection(value));
-                        break;
-                    case "read_receipt":
-                    case "readreceipt":
-                        builder.readReceipt(Boolean.parseBoolean(value) || "True".equalsIgnoreCase(value));
-                        break;
-                    case "teamname":
-                    case "team_name":
-                        builder.teamName(fixHebrewDirection(value));
-                        break;
-                    case "htmltemplate":
-                    case "html_template":
-                        builder.htmlTemplate(fixHebrewDirection(value));
-                        break;
+                    equals = lineEnd;
                 }
             }
+            if (equals >= 0)
+            {
+                apply(builder, trim(text, lineStart, equals), trim(text, equals + 1, lineEnd));
+            }
+            lineStart = lineEnd + (lineEnd + 1 < length && text.charAt(lineEnd) == '\r' && text.charAt(lineEnd + 1) == '\n' ? 2 : 1);
+        }
+
+        if (onParamsRead != null)
+        {
+            onParamsRead.accept(builder.build());
         }
 
         // Load body from separate files - priority: .md > .txt > config
-        String mdFilePath = filePath.replaceAll("\\.[^.]+$", ".md");
-        String txtFilePath = filePath.replaceAll("\\.[^.]+$", ".txt");
+        String base = stripExtension(filePath);
+        String mdFilePath = base + ".md";
+        String txtFilePath = base + ".txt";
 
-        if (Files.exists(Paths.get(mdFilePath)))
+        if (hasSibling(siblings, HAS_MD, mdFilePath))
         {
-            logger.info("Loading Markdown email body from: " + mdFilePath);
+            logger.debug("Loading Markdown email body from: {}", mdFilePath);
             String mdBody = readFileWithEncoding(mdFilePath);
             builder.body(mdBody);
             builder.useHtml(true);  // Will convert to HTML
         }
-        else if (Files.exists(Paths.get(txtFilePath)))
+        else if (hasSibling(siblings, HAS_TXT, txtFilePath))
         {
-            logger.info("Loading email body from: " + txtFilePath);
+            logger.debug("Loading email body from: {}", txtFilePath);
             String bodyFromFile = readFileWithEncoding(txtFilePath);
             builder.body(bodyFromFile);
         }
 
         // Load attachments from separate .list file if it exists
-        String listFilePath = filePath.replaceAll("\\.[^.]+$", ".list");
-        if (Files.exists(Paths.get(listFilePath)))
+        String listFilePath = base + ".list";
+        if (hasSibling(siblings, HAS_LIST, listFilePath))
         {
-            logger.info("Loading attachments from: " + listFilePath);
+            logger.debug("Loading attachments from: {}", listFilePath);
             List<String> attachmentLines = Files.readAllLines(Paths.get(listFilePath));
             List<String> attachmentPaths = new ArrayList<>();
 
@@ -152,13 +203,10 @@ public class EmailConfigLoader
                 line = line.trim();
                 if (!line.isEmpty() && !line.startsWith("#"))
                 {
-                    if (line.contains("="))
+                    int equals = line.indexOf('=');
+                    if (equals >= 0)
                     {
-                        String[] parts = line.split("=", 2);
-                        if (parts.length == 2)
-                        {
-                            attachmentPaths.add(parts[1].trim());
-                        }
+                        attachmentPaths.add(line.substring(equals + 1).trim());
                     }
                     else
                     {
@@ -176,6 +224,220 @@ public class EmailConfigLoader
         return builder.build();
     }
 
+    private static void apply(EmailConfig.Builder builder, String key, String value)
+    {
+        // For fields that can be Hebrew, fix the direction
+        switch (key)
+        {
+            case "smtp_server":
+                builder.smtpServer(value); // English/host - no fix
+                break;
+            case "port":
+                builder.port(Integer.parseInt(value));
+                break;
+            case "user":
+                builder.user(value);
+                break;
+            case "password":
+                builder.password(value);
+                break;
+            case "from_":
+                builder.from(fixHebrewDirection(value));
+                break;
+            case "to":
+                String[] toAddresses = value.split(",");
+                List<String> toList = new ArrayList<>();
+                for (String email : toAddresses)
+                {
+                    String trimmed = fixHebrewDirection(email.trim());
+                    if (!trimmed.isEmpty())
+                    {
+                        toList.add(trimmed);
+                    }
+                }
+                builder.to(toList);
+                break;
+            case "bcc":
+                String[] bccAddresses = value.split(",");
+                List<String> bccList = new ArrayList<>();
+                for (String email : bccAddresses)
+                {
+                    String trimmed = fixHebrewDirection(email.trim());
+                    if (!trimmed.isEmpty())
+                    {
+                        bccList.add(trimmed);
+                    }
+                }
+                builder.bcc(bccList);
+                break;
+            case "fileandpath":
+                builder.attachmentPath(value);
+                break;
+            case "filename":
+                builder.attachmentName(fixHebrewDirection(value));
+                break;
+            case "subject":
+                builder.subject(fixHebrewDirection(value));
+                break;
+            case "body":
+                builder.body(fixHebrewDirection(value));
+                break;
+            case "cert":
+                builder.useTLS(Boolean.parseBoolean(value) || "True".equalsIgnoreCase(value));
+                break;
+            case "logo":
+            case "logo_path":
+                builder.logoPath(value);
+                break;
+            case "sendamail":
+            case "sendemail":
+                logger.info("Ignoring deprecated parameter: {}", key);
+                break;
+            case "signaturefile":
+            case "signature_file":
+            case "signature":
+                builder.signatureFile(fixHebrewDirection(value));
+                break;
+            case "debug":
+                builder.debug(Boolean.parseBoolean(value) || "True".equalsIgnoreCase(value));
+                break;
+            case "reply_to":
+            case "replyto":
+                builder.replyTo(fixHebrewDirection(value));
+                break;
+            case "read_receipt":
+            case "readreceipt":
+                builder.readReceipt(Boolean.parseBoolean(value) || "True".equalsIgnoreCase(value));
+                break;
+            case "teamname":
+            case "team_name":
+                builder.teamName(fixHebrewDirection(value));
+                break;
+            case "htmltemplate":
+            case "html_template":
+                builder.htmlTemplate(fixHebrewDirection(value));
+                break;
+            case "send_at":
+            case "sendat":
+                builder.sendAt(parseSendAt(value));
+                break;
+            case "dkim_selector":
+            case "dkimselector":
+                builder.dkimSelector(value);
+                break;
+            case "dkim_key":
+            case "dkimkey":
+                builder.dkimKey(value);
+                break;
+            case "compress_over_kb":
+            case "compressoverkb":
+                builder.compressOverKb(value.isEmpty() ? 0 : Integer.parseInt(value));
+                break;
+            case "priority":
+                builder.priority(EmailConfig.Priority.parse(value));
+                break;
+            case "template_bundle":
+            case "templatebundle":
+                builder.templateBundle(value);
+                break;
+            case "archive_dir":
+            case "archivedir":
+                builder.archiveDir(value.isEmpty() ? null : value);
+                break;
+            case "sent_index":
+            case "sentindex":
+                builder.sentIndex(value.isEmpty() ? null : value);
+                break;
+        }
+    }
+
+    /**
+     * {@code text} between {@code start} and {@code end} without surrounding
+     * whitespace, as String.trim() would give it
+     */
+    private static String trim(String text, int start, int end)
+    {
+        while (start < end && text.charAt(start) <= ' ')
+        {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ')
+        {
+            end--;
+        }
+        return text.substring(start, end);
+    }
+
+    private static boolean hasSibling(int siblings, int flag, String path)
+    {
+        return siblings == SIBLINGS_UNKNOWN ? Files.exists(Paths.get(path)) : (siblings & flag) != 0;
+    }
+
+    /**
+     * The path without its file extension
+     */
+    private static String stripExtension(String path)
+    {
+        int dot = path.lastIndexOf('.');
+        int separator = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        return dot > separator + 1 ? path.substring(0, dot) : path;
+    }
+
+    /**
+     * The file name as compared by the file system: lower case where names
+     * are case-insensitive, unchanged elsewhere
+     */
+    private static String foldCase(String fileName)
+    {
+        return CASE_INSENSITIVE_NAMES ? fileName.toLowerCase(Locale.ROOT) : fileName;
+    }
+
+    private static String baseName(String fileName)
+    {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+    /**
+     * Parse a send_at value. Accepts ISO (2025-01-31T18:00[:00]),
+     * "2025-01-31 18:00[:00]" and "31/01/2025 18:00[:00]" in local time,
+     * an ISO instant with offset, or an empty value for "send now".
+     */
+    public static java.time.Instant parseSendAt(String value)
+    {
+        if (value == null || value.trim().isEmpty())
+        {
+            return null;
+        }
+        String text = value.trim();
+        try
+        {
+            return java.time.OffsetDateTime.parse(text).toInstant();
+        }
+        catch (java.time.format.DateTimeParseException e)
+        {
+            // No offset - interpret in the local time zone below
+        }
+        for (java.time.format.DateTimeFormatter format : SEND_AT_FORMATS)
+        {
+            try
+            {
+                return java.time.LocalDateTime.parse(text, format).atZone(java.time.ZoneId.systemDefault()).toInstant();
+            }
+            catch (java.time.format.DateTimeParseException e)
+            {
+                // Try the next format
+            }
+        }
+        throw new IllegalArgumentException("Invalid send_at value: " + value);
+    }
+
+    private static final java.time.format.DateTimeFormatter[] SEND_AT_FORMATS = {
+            java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm[:ss]"),
+            java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm[:ss]"),
+            java.time.format.DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm[:ss]")
+    };
+
     private static String readFileWithEncoding(String filePath) throws IOException
     {
         // Try UTF-8, fallback to IBM-862, then Windows-1255 for body/attachments
@@ -203,10 +465,15 @@ public class EmailConfigLoader
     // Hebrew direction fixer: reverses any line with Hebrew letters
     private static String fixHebrewDirection(String text)
     {
+        // Most values are a single line without Hebrew and come back unchanged
+        if (!containsHebrew(text) && text.indexOf('\n') < 0)
+        {
+            return text;
+        }
         StringBuilder fixed = new StringBuilder();
         for (String line : text.split("\\r?\\n"))
         {
-            if (line.matches(".*[\\u0590-\\u05FF]+.*")) // Hebrew Unicode range
+            if (containsHebrew(line))
             {
                 fixed.append(new StringBuilder(line).reverse());
             }
@@ -223,4 +490,17 @@ public class EmailConfigLoader
         }
         return fixed.toString();
     }
+
+    private static boolean containsHebrew(String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c >= '\u0590' && c <= '\u05FF') // Hebrew Unicode range
+            {
+                return true;
+            }
+        }
+        return false;
+    }
 }
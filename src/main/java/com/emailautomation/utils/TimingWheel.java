@@ -0,0 +1,191 @@
+package com.emailautomation.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hierarchical timing wheel (Varghese and Lauck) for holding many deferred
+ * items with O(1) insert and release.
+ *
+ * Four wheels of 256 slots each; with the default 100 ms tick they cover
+ * 25.6 s, 1.8 h, 19 days and 13 years. Items further out than that wait in
+ * an overflow list that is re-examined every time the top wheel turns.
+ * Items are handed to the release callback on the wheel's own thread, at
+ * most one tick late.
+ */
+public class TimingWheel<T> implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private static class Entry<T> {
+        final long dueTick;
+        final T item;
+
+        Entry(long dueTick, T item) {
+            this.dueTick = dueTick;
+            this.item = item;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Consumer<T> onRelease;
+    private final ArrayDeque<Entry<T>>[][] wheels;
+    private final List<Entry<T>> overflow = new ArrayList<>();
+    private final Thread ticker;
+
+    private long currentTick = 0;
+    private int size = 0;
+    private boolean closed = false;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, Consumer<T> onRelease) {
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+        this.onRelease = onRelease;
+        this.wheels = new ArrayDeque[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheels[level][slot] = new ArrayDeque<>();
+            }
+        }
+
+        this.ticker = new Thread(this::runTicker, "timing-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Hold {@code item} until {@code deadlineMillis} (epoch millis). Items
+     * that are already due are released immediately on the caller's thread.
+     */
+    public void schedule(long deadlineMillis, T item) {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Timing wheel is closed");
+            }
+            long dueTick = Math.max(0, Math.floorDiv(deadlineMillis - startMillis + tickMillis - 1, tickMillis));
+            if (dueTick > currentTick) {
+                place(new Entry<>(dueTick, item));
+                size++;
+                notifyAll();
+                return;
+            }
+        }
+        release(item);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.dueTick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                int slot = (int) ((entry.dueTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                wheels[level][slot].add(entry);
+                return;
+            }
+        }
+        overflow.add(entry);
+    }
+
+    /**
+     * Move the wheel forward one tick and collect the items that became due
+     */
+    private void advance(List<T> due) {
+        currentTick++;
+
+        // Cascade the higher wheels (top first) whenever the wheel below wraps
+        for (int level = LEVELS - 1; level >= 1; level--) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                continue;
+            }
+            if (level == LEVELS - 1 && !overflow.isEmpty()) {
+                List<Entry<T>> pending = new ArrayList<>(overflow);
+                overflow.clear();
+                pending.forEach(this::place);
+            }
+            int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+            ArrayDeque<Entry<T>> bucket = wheels[level][slot];
+            int count = bucket.size();
+            for (int i = 0; i < count; i++) {
+                place(bucket.poll());
+            }
+        }
+
+        ArrayDeque<Entry<T>> expired = wheels[0][(int) (currentTick & SLOT_MASK)];
+        Entry<T> entry;
+        while ((entry = expired.poll()) != null) {
+            due.add(entry.item);
+            size--;
+        }
+    }
+
+    private void runTicker() {
+        List<T> due = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (closed) {
+                        return;
+                    }
+                    long nowTick = (System.currentTimeMillis() - startMillis) / tickMillis;
+                    if (size == 0) {
+                        // Nothing pending: jump straight to now and sleep until work arrives
+                        currentTick = Math.max(currentTick, nowTick);
+                        wait();
+                        continue;
+                    }
+                    while (currentTick < nowTick) {
+                        advance(due);
+                    }
+                    if (due.isEmpty()) {
+                        long nextTickMillis = startMillis + (currentTick + 1) * tickMillis;
+                        TimeUnit.MILLISECONDS.timedWait(this, Math.max(1, nextTickMillis - System.currentTimeMillis()));
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            // Release outside the lock so callbacks can schedule again
+            for (T item : due) {
+                release(item);
+            }
+            due.clear();
+        }
+    }
+
+    private void release(T item) {
+        try {
+            onRelease.accept(item);
+        } catch (Exception e) {
+            logger.error("Release callback failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Stop the ticker. Items still held are dropped; callers that persist
+     * them can reload them on the next start.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        ticker.interrupt();
+    }
+}
@@ -0,0 +1,78 @@
+package com.emailautomation.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MultipartParserTest {
+
+    @Test
+    void findsTheBoundary() {
+        assertEquals("----form7MA4YWxk",
+                MultipartParser.boundaryOf("multipart/form-data; boundary=----form7MA4YWxk"));
+        assertEquals("quoted value", MultipartParser.boundaryOf("multipart/form-data; Boundary=\"quoted value\""));
+        assertThrows(IllegalArgumentException.class, () -> MultipartParser.boundaryOf("multipart/form-data"));
+    }
+
+    @Test
+    void splitsFieldsAndFiles() {
+        // The file holds CRLFs and dashes that must not end the part early
+        byte[] file = { 0, (byte) 0xff, '\r', '\n', '-', '-', '\r', '\n', 'x' };
+        String head = "preamble\r\n"
+                + "--XyZ\r\n"
+                + "Content-Disposition: form-data; name=\"subject\"\r\n\r\n"
+                + "שלום\r\n"
+                + "--XyZ\r\n"
+                + "Content-Disposition: form-data; name=\"attachment\"; filename=\"report.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n";
+        String tail = "\r\n"
+                + "--XyZ\r\n"
+                + "content-disposition: form-data; name=empty\r\n\r\n"
+                + "\r\n"
+                + "--XyZ--\r\n";
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes(head.getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(file);
+        body.writeBytes(tail.getBytes(StandardCharsets.UTF_8));
+
+        List<MultipartParser.Part> parts = MultipartParser.parse(body.toByteArray(), "XyZ");
+
+        assertEquals(3, parts.size());
+        MultipartParser.Part subject = parts.get(0);
+        assertEquals("subject", subject.name);
+        assertFalse(subject.isFile());
+        assertEquals("שלום", subject.text());
+
+        MultipartParser.Part attachment = parts.get(1);
+        assertEquals("attachment", attachment.name);
+        assertTrue(attachment.isFile());
+        assertEquals("report.bin", attachment.filename);
+        assertArrayEquals(file, attachment.content);
+
+        MultipartParser.Part empty = parts.get(2);
+        assertEquals("empty", empty.name);
+        assertNull(empty.filename);
+        assertEquals(0, empty.content.length);
+    }
+
+    @Test
+    void rejectsTruncatedBodies() {
+        String[] truncated = {
+                "no delimiter at all",
+                "--XyZ",
+                "--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n",
+                "--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nnever closed" };
+        for (String body : truncated) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> MultipartParser.parse(body.getBytes(StandardCharsets.UTF_8), "XyZ"), body);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.emailautomation.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.emailautomation.models.EmailConfig;
+import com.emailautomation.services.EmailDispatcher;
+import com.emailautomation.services.EmailService;
+import com.emailautomation.services.LogService;
+import com.emailautomation.services.MemoryBudget;
+import com.emailautomation.services.SendScheduler;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SubmissionServerTest {
+    private static final String TOKEN = "test-token";
+
+    @TempDir
+    Path dir;
+
+    private final List<EmailConfig> submitted = new CopyOnWriteArrayList<>();
+    private final List<Long> reservedAtSubmit = new CopyOnWriteArrayList<>();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private EmailDispatcher dispatcher;
+    private SendScheduler scheduler;
+    private SubmissionServer server;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        EmailConfig defaults = EmailConfig.builder()
+                .smtpServer("smtp.example.com")
+                .port(587)
+                .user("sender@example.com")
+                .password("secret")
+                .from("Sender <sender@example.com>")
+                .build();
+        // Records what would be queued instead of sending it
+        dispatcher = new EmailDispatcher(new EmailService(), new LogService(), null, 1, new MemoryBudget(1 << 20)) {
+            @Override
+            public String submit(EmailConfig config, Runnable afterSend) {
+                if ("Full".equals(config.getSubject())) {
+                    throw new IllegalStateException("Interrupted while queueing");
+                }
+                submitted.add(config);
+                reservedAtSubmit.add(getMemoryBudget().getReservedBytes());
+                return config.getMessageId();
+            }
+        };
+        scheduler = new SendScheduler(dir.resolve("schedule.journal"), defaults, (config, done) -> { });
+        server = new SubmissionServer(0, defaults, TOKEN, dispatcher, scheduler, dir.resolve("uploads"));
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        server.stop();
+        scheduler.close();
+        dispatcher.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void acceptsAMessageWithTheServersSender() throws Exception {
+        HttpResponse<String> response = post("/api/messages",
+                "{\"to\":[\"a@example.org\"],\"subject\":\"Hi\",\"body\":\"Hello\"}");
+
+        assertEquals(202, response.statusCode(), response.body());
+        assertEquals(1, submitted.size());
+        assertEquals("Sender <sender@example.com>", submitted.get(0).getFrom());
+    }
+
+    @Test
+    void refusesToSendAsSomeoneElse() throws Exception {
+        for (String field : List.of("from", "from_")) {
+            HttpResponse<String> response = post("/api/messages",
+                    "{\"to\":\"a@example.org\",\"" + field + "\":\"ceo@example.com\",\"subject\":\"Wire\"}");
+
+            assertEquals(400, response.statusCode(), field);
+            assertTrue(response.body().contains("Field " + field + " can only be set in the server's defaults"),
+                    response.body());
+        }
+        assertTrue(submitted.isEmpty());
+    }
+
+    @Test
+    void bodyIsNoLongerReservedWhenTheMessageIsQueued() throws Exception {
+        String json = "{\"to\":\"a@example.org\",\"subject\":\"Hi\",\"body\":\"Hello\"}";
+        assertEquals(202, post("/api/messages", json).statusCode());
+
+        // Without a Content-Length the reservation is the request size limit,
+        // which would keep the pipeline from admitting anything while queueing blocks
+        HttpRequest chunked = request("/api/messages")
+                .POST(HttpRequest.BodyPublishers.ofInputStream(
+                        () -> new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))))
+                .build();
+        assertEquals(202, client.send(chunked, HttpResponse.BodyHandlers.ofString()).statusCode());
+
+        assertEquals(List.of(0L, 0L), reservedAtSubmit);
+        assertEquals(0, dispatcher.getMemoryBudget().getReservedBytes());
+    }
+
+    @Test
+    void batchThatFailsPartWayReportsWhatWasQueued() throws Exception {
+        HttpResponse<String> response = post("/api/messages/batch", "["
+                + "{\"to\":\"a@example.org\",\"subject\":\"One\"},"
+                + "{\"to\":\"b@example.org\",\"subject\":\"Full\"},"
+                + "{\"to\":\"c@example.org\",\"subject\":\"Three\"}]");
+
+        assertEquals(500, response.statusCode());
+        assertEquals(1, submitted.size());
+        assertTrue(response.body().contains("\"failedIndex\":1"), response.body());
+        assertTrue(response.body().contains("\"ids\":[\"" + submitted.get(0).getMessageId() + "\"]"),
+                response.body());
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + path))
+                .header("Authorization", "Bearer " + TOKEN)
+                .header("Content-Type", "application/json");
+    }
+
+    private HttpResponse<String> post(String path, String json) throws Exception {
+        HttpRequest request = request(path).POST(HttpRequest.BodyPublishers.ofString(json)).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
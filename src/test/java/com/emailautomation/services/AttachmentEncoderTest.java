@@ -0,0 +1,144 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AttachmentEncoderTest {
+    private static final long COMPRESS_OVER = 100;
+    private static final long PREENCODE_LIMIT = 10_000;
+
+    @TempDir
+    Path dir;
+
+    private Path zips;
+
+    @BeforeEach
+    void createZipDir() throws IOException {
+        zips = Files.createDirectories(dir.resolve("zips"));
+    }
+
+    @Test
+    void sameFileIsZippedOnce() throws Exception {
+        Path report = csv("a.csv", 2_000);
+        AttachmentEncoder encoder = new AttachmentEncoder(PREENCODE_LIMIT, 1 << 20, 1 << 20, zips);
+
+        MimeBodyPart first = encoder.attachment(report.toString(), COMPRESS_OVER).join();
+        MimeBodyPart second = encoder.attachment(report.toString(), COMPRESS_OVER).join();
+
+        assertEquals(1, encoder.zipCount());
+        assertEquals("a.csv.zip", second.getFileName());
+        assertArrayEquals(Files.readAllBytes(report), unzip(first));
+        assertArrayEquals(Files.readAllBytes(report), unzip(second));
+    }
+
+    @Test
+    void leastRecentlyUsedZipIsDroppedFirst() throws Exception {
+        Path a = csv("a.csv", 2_000);
+        Path b = csv("b.csv", 2_000);
+        Path c = csv("c.csv", 2_000);
+        long zipSize = encodedSize(a);
+        AttachmentEncoder encoder = new AttachmentEncoder(PREENCODE_LIMIT, zipSize * 2 + zipSize / 2, 1 << 20, zips);
+
+        encoder.attachment(a.toString(), COMPRESS_OVER).join();
+        encoder.attachment(b.toString(), COMPRESS_OVER).join();
+        encoder.attachment(a.toString(), COMPRESS_OVER).join();
+        encoder.attachment(c.toString(), COMPRESS_OVER).join();
+        assertEquals(3, encoder.zipCount());
+
+        // a was used after b, so b made room for c
+        encoder.attachment(a.toString(), COMPRESS_OVER).join();
+        assertEquals(3, encoder.zipCount());
+        encoder.attachment(b.toString(), COMPRESS_OVER).join();
+        assertEquals(4, encoder.zipCount());
+    }
+
+    @Test
+    void largeFileIsZippedOnceToDiskAndStreamed() throws Exception {
+        Path export = csv("export.csv", 20_000);
+        AttachmentEncoder encoder = new AttachmentEncoder(PREENCODE_LIMIT, 1 << 20, 1 << 20, zips);
+
+        MimeBodyPart first = encoder.attachment(export.toString(), COMPRESS_OVER).join();
+        MimeBodyPart second = encoder.attachment(export.toString(), COMPRESS_OVER).join();
+
+        assertEquals("base64", first.getHeader("Content-Transfer-Encoding", null));
+        // Signing and sending each read the part
+        assertArrayEquals(Files.readAllBytes(export), unzip(first));
+        assertArrayEquals(Files.readAllBytes(export), unzip(first));
+        assertArrayEquals(Files.readAllBytes(export), unzip(second));
+        assertEquals(1, encoder.zipCount());
+        assertEquals(1, zipFiles());
+    }
+
+    @Test
+    void evictedLargeZipIsDeletedAndMadeAgainWhenRead() throws Exception {
+        Path a = csv("a.csv", 20_000);
+        Path b = csv("b.csv", 20_000);
+        AttachmentEncoder encoder = new AttachmentEncoder(PREENCODE_LIMIT, 1 << 20, 1, zips);
+
+        MimeBodyPart first = encoder.attachment(a.toString(), COMPRESS_OVER).join();
+        encoder.attachment(b.toString(), COMPRESS_OVER).join();
+        assertEquals(1, zipFiles());
+
+        assertArrayEquals(Files.readAllBytes(a), unzip(first));
+        assertEquals(3, encoder.zipCount());
+        assertEquals(1, zipFiles());
+    }
+
+    private Path csv(String name, int bytes) throws IOException {
+        StringBuilder rows = new StringBuilder();
+        for (int row = 0; rows.length() < bytes; row++) {
+            rows.append(row).append(",customer-").append(row % 97).append(",").append(row * 31 % 1000).append('\n');
+        }
+        return Files.writeString(dir.resolve(name), rows.substring(0, bytes), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Size a zip of {@code file} takes in the in-memory cache
+     */
+    private long encodedSize(Path file) throws Exception {
+        AttachmentEncoder probe = new AttachmentEncoder(PREENCODE_LIMIT, 1 << 20, 1 << 20, zips);
+        try (InputStream in = probe.attachment(file.toString(), COMPRESS_OVER).join().getDataHandler().getInputStream()) {
+            return in.readAllBytes().length;
+        }
+    }
+
+    private static byte[] unzip(MimeBodyPart part) throws Exception {
+        byte[] content;
+        try (InputStream in = part.getDataHandler().getInputStream()) {
+            content = in.readAllBytes();
+        }
+        // Small zips are cached already base64 encoded
+        if (part instanceof PreencodedMimeBodyPart) {
+            content = Base64.getMimeDecoder().decode(content);
+        }
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(content))) {
+            ZipEntry entry = zip.getNextEntry();
+            byte[] unzipped = zip.readAllBytes();
+            assertNull(zip.getNextEntry(), entry.getName());
+            return unzipped;
+        }
+    }
+
+    private long zipFiles() throws IOException {
+        try (Stream<Path> files = Files.list(zips)) {
+            return files.count();
+        }
+    }
+}
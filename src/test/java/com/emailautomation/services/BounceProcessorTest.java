@@ -0,0 +1,134 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BounceProcessorTest {
+
+    @TempDir
+    Path dir;
+
+    private Path mbox;
+    private Path checkpoint;
+    private Path log;
+    private SuppressionList suppressionList;
+    private BounceProcessor processor;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        mbox = dir.resolve("bounces.mbox");
+        checkpoint = dir.resolve("bounces.checkpoint");
+        log = dir.resolve("filesendlist.log");
+
+        SentIndex sentIndex = new SentIndex(dir.resolve("sent.index"));
+        sentIndex.record("first", log, "q1.pdf", "C:\\reports\\q1.pdf");
+        sentIndex.record("second", log, null, null);
+        suppressionList = new SuppressionList(dir.resolve("suppressed.txt"));
+        processor = new BounceProcessor(new LogService(), sentIndex, suppressionList);
+    }
+
+    @Test
+    void resumesAfterTheCheckpoint() throws Exception {
+        append(bounce("first", "gone@example.org", "5.1.1") + bounce("second", "busy@example.org", "4.2.2"));
+
+        assertEquals(2, processor.sync(mbox.toString(), checkpoint));
+        List<String> lines = Files.readAllLines(log, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("\tBOUNCED\tq1.pdf\tC:\\reports\\q1.pdf\tgone@example.org\t"), lines.get(0));
+        assertTrue(lines.get(0).endsWith("Message first: 5.1.1 smtp; 550 rejected"), lines.get(0));
+        assertTrue(suppressionList.contains("gone@example.org"));
+        assertFalse(suppressionList.contains("busy@example.org"));
+
+        // Nothing new: the next sync starts at the saved offset
+        assertEquals(0, processor.sync(mbox.toString(), checkpoint));
+
+        append(bounce("second", "later@example.org", "5.7.1"));
+        assertEquals(1, processor.sync(mbox.toString(), checkpoint));
+        lines = Files.readAllLines(log, StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(2).contains("\tlater@example.org\t"), lines.get(2));
+        assertEquals(2, suppressionList.size());
+    }
+
+    @Test
+    void messageStillBeingWrittenWaitsForTheNextSync() throws Exception {
+        String partial = bounce("first", "gone@example.org", "5.1.1");
+        int cut = partial.indexOf("Status:");
+        append(bounce("second", "busy@example.org", "4.2.2") + partial.substring(0, cut));
+
+        assertEquals(1, processor.sync(mbox.toString(), checkpoint));
+
+        append(partial.substring(cut));
+        assertEquals(1, processor.sync(mbox.toString(), checkpoint));
+        assertEquals(2, Files.readAllLines(log, StandardCharsets.UTF_8).size());
+        assertTrue(suppressionList.contains("gone@example.org"));
+    }
+
+    @Test
+    void restartsWhenTheMailboxWasReplaced() throws Exception {
+        append(bounce("first", "gone@example.org", "5.1.1") + bounce("second", "busy@example.org", "4.2.2"));
+        assertEquals(2, processor.sync(mbox.toString(), checkpoint));
+
+        // A shorter file than the saved offset is read from the start
+        Files.delete(mbox);
+        append(bounce("second", "other@example.org", "5.1.1"));
+        assertEquals(1, processor.sync(mbox.toString(), checkpoint));
+        assertTrue(suppressionList.contains("other@example.org"));
+    }
+
+    @Test
+    void batchIsReadAgainWhenItsLogCannotBeWritten() throws Exception {
+        append(bounce("first", "gone@example.org", "5.1.1"));
+        Files.createDirectory(log);
+
+        assertThrows(IOException.class, () -> processor.sync(mbox.toString(), checkpoint));
+
+        Files.delete(log);
+        assertEquals(1, processor.sync(mbox.toString(), checkpoint));
+        List<String> lines = Files.readAllLines(log, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\tBOUNCED\t"), lines.get(0));
+    }
+
+    private void append(String text) throws IOException {
+        Files.writeString(mbox, text, StandardCharsets.US_ASCII, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /** One mbox entry holding a single-recipient DSN, ending with the separating blank line */
+    private static String bounce(String messageId, String recipient, String status) {
+        return "From MAILER-DAEMON Fri Jan 31 18:00:00 2025\n"
+                + "From: MAILER-DAEMON@mx.example.com\n"
+                + "Subject: Undelivered Mail Returned to Sender\n"
+                + "Content-Type: multipart/report; report-type=delivery-status; boundary=\"dsn\"\n"
+                + "\n"
+                + "--dsn\n"
+                + "Content-Type: message/delivery-status\n"
+                + "\n"
+                + "Reporting-MTA: dns; mx.example.com\n"
+                + "\n"
+                + "Final-Recipient: rfc822; " + recipient + "\n"
+                + "Action: failed\n"
+                + "Status: " + status + "\n"
+                + "Diagnostic-Code: smtp; " + (status.startsWith("5") ? "550" : "452") + " rejected\n"
+                + "\n"
+                + "--dsn\n"
+                + "Content-Type: text/rfc822-headers\n"
+                + "\n"
+                + "Message-ID: <" + messageId + "@emailautomation>\n"
+                + "\n"
+                + "--dsn--\n"
+                + "\n";
+    }
+}
@@ -0,0 +1,67 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DryRunTest {
+    @TempDir
+    Path dir;
+
+    private String paramFile(String name, String to, String password) throws IOException {
+        Path file = dir.resolve(name + ".prm");
+        Files.writeString(file, String.join("\n",
+                "smtp_server=smtp.invalid",
+                "port=587",
+                "user=sender@example.com",
+                "password=" + password,
+                "from_=sender@example.com",
+                "to=" + to,
+                "subject=Dry run " + name,
+                "body=Nothing is sent from here",
+                ""));
+        return file.toString();
+    }
+
+    @Test
+    void buildsEveryFileWithoutAnyFailures() throws Exception {
+        List<String> files = List.of(
+                paramFile("one", "a@example.org", "secret"),
+                paramFile("two", "b@example.org,c@example.org", "secret"));
+
+        assertEquals(0, new DryRun(new EmailService(), 2).run(files, 3, false));
+        assertEquals(0, new DryRun(new EmailService(), 2).run(files, 1, true));
+    }
+
+    @Test
+    void countsEachFileThatCannotBeLoadedOncePerRepeat() throws Exception {
+        List<String> files = List.of(
+                paramFile("valid", "a@example.org", "secret"),
+                paramFile("no-password", "a@example.org", ""),
+                dir.resolve("missing.prm").toString());
+
+        assertEquals(4, new DryRun(new EmailService(), 2).run(files, 2, false));
+    }
+
+    @Test
+    void messageThatFailsToBuildIsCounted() throws Exception {
+        List<String> files = List.of(paramFile("bad-address", "not an <address", "secret"));
+
+        assertEquals(1, new DryRun(new EmailService(), 1).run(files, 1, false));
+    }
+
+    @Test
+    void everyFailedRecipientCountsAndTheRestStillBuild() throws Exception {
+        List<String> files = List.of(paramFile("merge",
+                "a@example.org,not an <address,b@example.org,also <bad,c@example.org", "secret"));
+
+        assertEquals(2, new DryRun(new EmailService(), 1).run(files, 1, true));
+        // Built as one message, the file fails once
+        assertEquals(1, new DryRun(new EmailService(), 1).run(files, 1, false));
+    }
+}
@@ -0,0 +1,152 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.emailautomation.models.EmailConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(10)
+class LaneQueueTest {
+    private static final SendJob STOP = bulk("stop");
+
+    private static SendJob bulk(String name) {
+        return new SendJob(name, EmailConfig.builder().build(), null, null, null);
+    }
+
+    private static SendJob urgent(String name) {
+        return new SendJob(name, EmailConfig.builder().priority(EmailConfig.Priority.HIGH).build(), null, null, null);
+    }
+
+    @Test
+    void highPriorityGetsInWhenTheNormalLaneIsFull() throws InterruptedException {
+        LaneQueue queue = new LaneQueue(2, STOP);
+        queue.put(bulk("campaign-1"), false);
+        queue.put(bulk("campaign-2"), false);
+
+        SendJob reset = urgent("password-reset");
+        queue.put(reset, true);
+
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.highSize());
+        assertSame(reset, queue.take());
+    }
+
+    @Test
+    void putWaitsForRoomInItsOwnLane() throws Exception {
+        LaneQueue queue = new LaneQueue(1, STOP);
+        queue.put(bulk("campaign-1"), false);
+
+        CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+            try {
+                queue.put(bulk("campaign-2"), false);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(second.isDone());
+
+        assertEquals("campaign-1", queue.take().paramFile);
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals("campaign-2", queue.take().paramFile);
+    }
+
+    @Test
+    void normalLaneGetsOneTurnInNine() throws InterruptedException {
+        LaneQueue queue = new LaneQueue(100, STOP);
+        for (int i = 0; i < 3; i++) {
+            queue.put(bulk("campaign-" + i), false);
+        }
+        for (int i = 0; i < 20; i++) {
+            queue.put(urgent("reset-" + i), true);
+        }
+
+        List<String> taken = new ArrayList<>();
+        while (queue.size() > 0) {
+            taken.add(queue.take().paramFile);
+        }
+
+        // Eight high priority jobs, then one normal one, while both are waiting
+        assertEquals(23, taken.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals("reset-" + i, taken.get(i));
+        }
+        assertEquals("campaign-0", taken.get(8));
+        assertEquals("campaign-1", taken.get(17));
+        assertEquals("campaign-2", taken.get(22));
+    }
+
+    @Test
+    void stopMarkerComesOutAfterQueuedHighPriorityJobs() throws InterruptedException {
+        LaneQueue queue = new LaneQueue(100, STOP);
+        queue.put(STOP, false);
+        for (int i = 0; i < 12; i++) {
+            queue.put(urgent("reset-" + i), true);
+        }
+
+        for (int i = 0; i < 12; i++) {
+            assertEquals("reset-" + i, queue.take().paramFile);
+        }
+        assertSame(STOP, queue.take());
+    }
+
+    @Test
+    void takeHighIgnoresTheNormalLane() throws Exception {
+        LaneQueue queue = new LaneQueue(10, STOP);
+        queue.put(bulk("campaign"), false);
+
+        CompletableFuture<SendJob> taken = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.takeHigh();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(taken.isDone());
+
+        queue.put(urgent("reset"), true);
+        assertEquals("reset", taken.get(5, TimeUnit.SECONDS).paramFile);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void reservedWorkerTakesHighPriorityWhileTheSharedOneIsBusy() throws InterruptedException {
+        CountDownLatch campaignRunning = new CountDownLatch(1);
+        CountDownLatch finishCampaign = new CountDownLatch(1);
+        CountDownLatch resetSent = new CountDownLatch(1);
+        List<String> resetThreads = new CopyOnWriteArrayList<>();
+
+        // One shared worker and one reserved for high priority
+        PipelineStage deliver = new PipelineStage("deliver", 1, 1, 10, job -> {
+            if (job.isHighPriority()) {
+                resetThreads.add(Thread.currentThread().getName());
+                resetSent.countDown();
+            } else {
+                campaignRunning.countDown();
+                finishCampaign.await();
+            }
+        });
+        deliver.start();
+
+        deliver.put(bulk("campaign"));
+        assertTrue(campaignRunning.await(5, TimeUnit.SECONDS));
+        deliver.put(urgent("reset"));
+
+        assertTrue(resetSent.await(5, TimeUnit.SECONDS), "reset waited for the campaign");
+        assertEquals(List.of("pipeline-deliver-high-1"), resetThreads);
+
+        finishCampaign.countDown();
+        assertTrue(deliver.drainAndStop(System.nanoTime() + TimeUnit.SECONDS.toNanos(5)));
+    }
+}
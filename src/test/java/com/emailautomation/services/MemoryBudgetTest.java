@@ -0,0 +1,146 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.emailautomation.models.EmailConfig;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+@Timeout(10)
+class MemoryBudgetTest {
+
+    @TempDir
+    Path dir;
+
+    // Normal priority messages may use 80 of these; the rest is held back
+    // for high priority ones
+    private static final long BUDGET = 100;
+
+    @Test
+    void waitsUntilEnoughIsReleased() throws Exception {
+        MemoryBudget budget = new MemoryBudget(BUDGET);
+        long first = budget.acquire(50);
+        long second = budget.acquire(30);
+        assertEquals(80, budget.getReservedBytes());
+
+        CompletableFuture<Long> third = acquireAsync(budget, 40, false);
+        Thread.sleep(100);
+        assertFalse(third.isDone(), "admitted 40 bytes with none free");
+
+        // Freeing 30 still leaves too little; freeing the 50 is enough
+        budget.release(second);
+        Thread.sleep(100);
+        assertFalse(third.isDone());
+        budget.release(first);
+        assertEquals(40, third.get(5, TimeUnit.SECONDS));
+        assertEquals(40, budget.getReservedBytes());
+    }
+
+    @Test
+    void waitersAreAdmittedAsSpaceFreesUp() throws Exception {
+        MemoryBudget budget = new MemoryBudget(BUDGET);
+        long held = budget.acquire(BUDGET);
+        assertEquals(80, held);
+        List<Long> admitted = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> one = acquireAsync(budget, 40, false).thenAccept(admitted::add);
+        CompletableFuture<Void> other = acquireAsync(budget, 40, false).thenAccept(admitted::add);
+
+        Thread.sleep(100);
+        assertTrue(admitted.isEmpty());
+        budget.release(held);
+        CompletableFuture.allOf(one, other).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(40L, 40L), admitted);
+        assertEquals(80, budget.getReservedBytes());
+    }
+
+    @Test
+    void oversizedMessageRunsAlone() throws Exception {
+        MemoryBudget budget = new MemoryBudget(BUDGET);
+        long small = budget.acquire(10);
+
+        CompletableFuture<Long> huge = acquireAsync(budget, 1_000, false);
+        Thread.sleep(100);
+        assertFalse(huge.isDone(), "oversized message admitted alongside another");
+
+        budget.release(small);
+        long reserved = huge.get(5, TimeUnit.SECONDS);
+        assertEquals(80, reserved);
+        budget.release(reserved);
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    void highPriorityUsesTheReserveWhileCampaignsWait() throws Exception {
+        MemoryBudget budget = new MemoryBudget(BUDGET);
+        long campaign = budget.acquire(80);
+
+        CompletableFuture<Long> moreCampaign = acquireAsync(budget, 5, false);
+        Thread.sleep(100);
+        assertFalse(moreCampaign.isDone(), "normal priority went into the reserve");
+
+        // The reserved 20 admit a high priority message straight away
+        long reset = budget.acquire(20, true);
+        assertEquals(100, budget.getReservedBytes());
+        CompletableFuture<Long> secondReset = acquireAsync(budget, 10, true);
+        Thread.sleep(100);
+        assertFalse(secondReset.isDone(), "admitted past the whole budget");
+
+        budget.release(reset);
+        assertEquals(10, secondReset.get(5, TimeUnit.SECONDS));
+        assertFalse(moreCampaign.isDone(), "normal priority admitted while only the reserve was free");
+        budget.release(campaign);
+        assertEquals(5, moreCampaign.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void oversizedHighPriorityMessageMayUseTheWholeBudget() throws Exception {
+        MemoryBudget budget = new MemoryBudget(BUDGET);
+        assertEquals(100, budget.acquire(1_000, true));
+    }
+
+    @Test
+    void rejectsAnEmptyBudget() {
+        assertThrows(IllegalArgumentException.class, () -> new MemoryBudget(0));
+        assertThrows(IllegalArgumentException.class, () -> new MemoryBudget(-1));
+    }
+
+    @Test
+    void estimateGrowsWithBodyAndAttachments() throws IOException {
+        Path attachment = dir.resolve("report.csv");
+        Files.write(attachment, new byte[30_000]);
+
+        long bare = MemoryBudget.estimate(EmailConfig.builder().build());
+        long withBody = MemoryBudget.estimate(EmailConfig.builder().body("x".repeat(1000)).build());
+        long withAttachment = MemoryBudget.estimate(EmailConfig.builder()
+                .attachmentPath(attachment.toString())
+                .build());
+        long withMissingAttachment = MemoryBudget.estimate(EmailConfig.builder()
+                .attachmentPath(dir.resolve("missing.csv").toString())
+                .build());
+
+        assertEquals(bare + 4000, withBody);
+        assertEquals(bare + AttachmentEncoder.footprint(30_000), withAttachment);
+        assertEquals(bare, withMissingAttachment);
+    }
+
+    private static CompletableFuture<Long> acquireAsync(MemoryBudget budget, long bytes, boolean highPriority) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return budget.acquire(bytes, highPriority);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,99 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(10)
+class PipelineStageTest {
+
+    private static long inFiveSeconds() {
+        return System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    }
+
+    @Test
+    void fullQueueBlocksIntake() throws Exception {
+        CountDownLatch unblock = new CountDownLatch(1);
+        PipelineStage deliver = new PipelineStage("deliver", 1, 2, job -> unblock.await());
+        deliver.start();
+
+        // The worker holds the first job and the queue takes two more
+        deliver.put(new SendJob("1.prm", null, null, null, null));
+        deliver.put(new SendJob("2.prm", null, null, null, null));
+        deliver.put(new SendJob("3.prm", null, null, null, null));
+        CompletableFuture<Void> fourth = CompletableFuture.runAsync(() -> {
+            try {
+                deliver.put(new SendJob("4.prm", null, null, null, null));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(fourth.isDone(), "put returned while the stage was full");
+
+        unblock.countDown();
+        fourth.get(5, TimeUnit.SECONDS);
+        assertTrue(deliver.drainAndStop(inFiveSeconds()));
+        assertEquals(0, deliver.depth());
+    }
+
+    @Test
+    void failedJobGoesStraightToTheExitStage() throws Exception {
+        List<String> rendered = new CopyOnWriteArrayList<>();
+        Map<String, SendJob> logged = new ConcurrentHashMap<>();
+        CountDownLatch bothLogged = new CountDownLatch(2);
+
+        PipelineStage load = new PipelineStage("load", 1, 10, job -> {
+            if (job.paramFile.equals("broken.prm")) {
+                throw new IllegalArgumentException("Invalid email configuration");
+            }
+        });
+        PipelineStage render = new PipelineStage("render", 1, 10, job -> rendered.add(job.paramFile));
+        PipelineStage log = new PipelineStage("log", 1, 10, job -> {
+            logged.put(job.paramFile, job);
+            bothLogged.countDown();
+        });
+        load.connect(render, log);
+        render.connect(log, log);
+        List<PipelineStage> stages = List.of(load, render, log);
+        stages.forEach(PipelineStage::start);
+
+        load.put(new SendJob("broken.prm", null, null, null, null));
+        load.put(new SendJob("fine.prm", null, null, null, null));
+        assertTrue(bothLogged.await(5, TimeUnit.SECONDS));
+
+        assertEquals(List.of("fine.prm"), rendered);
+        assertEquals("Invalid email configuration", logged.get("broken.prm").failure.getMessage());
+        assertNull(logged.get("fine.prm").failure);
+        for (PipelineStage stage : stages) {
+            assertTrue(stage.drainAndStop(inFiveSeconds()), stage.getName() + " did not stop");
+        }
+    }
+
+    @Test
+    void drainRunsTheBacklogBeforeStopping() throws InterruptedException {
+        List<String> sent = new CopyOnWriteArrayList<>();
+        PipelineStage deliver = new PipelineStage("deliver", 2, 50, job -> {
+            Thread.sleep(1);
+            sent.add(job.paramFile);
+        });
+        deliver.start();
+        for (int i = 0; i < 40; i++) {
+            deliver.put(new SendJob(i + ".prm", null, null, null, null));
+        }
+
+        assertTrue(deliver.drainAndStop(inFiveSeconds()));
+        assertEquals(40, sent.size());
+    }
+}
@@ -0,0 +1,214 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.emailautomation.models.DeliveryReport;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+
+class ReportParserTest {
+
+    // A Postfix bounce for two recipients: one unknown user, one full mailbox
+    private static final String POSTFIX_DSN = ""
+            + "From: MAILER-DAEMON@mx.example.com (Mail Delivery System)\r\n"
+            + "To: sender@example.com\r\n"
+            + "Subject: Undelivered Mail Returned to Sender\r\n"
+            + "MIME-Version: 1.0\r\n"
+            + "Content-Type: multipart/report; report-type=delivery-status;\r\n"
+            + "\tboundary=\"B7A3C1E02.1738346400/mx.example.com\"\r\n"
+            + "\r\n"
+            + "This is a MIME-encapsulated message.\r\n"
+            + "\r\n"
+            + "--B7A3C1E02.1738346400/mx.example.com\r\n"
+            + "Content-Description: Notification\r\n"
+            + "Content-Type: text/plain; charset=us-ascii\r\n"
+            + "\r\n"
+            + "I'm sorry to have to inform you that your message could not\r\n"
+            + "be delivered to one or more recipients.\r\n"
+            + "\r\n"
+            + "--B7A3C1E02.1738346400/mx.example.com\r\n"
+            + "Content-Description: Delivery report\r\n"
+            + "Content-Type: message/delivery-status\r\n"
+            + "\r\n"
+            + "Reporting-MTA: dns; mx.example.com\r\n"
+            + "X-Postfix-Queue-ID: B7A3C1E02\r\n"
+            + "Arrival-Date: Fri, 31 Jan 2025 18:00:00 +0200 (IST)\r\n"
+            + "\r\n"
+            + "Final-Recipient: rfc822; Nobody@Example.org\r\n"
+            + "Original-Recipient: rfc822;Nobody@Example.org\r\n"
+            + "Action: failed\r\n"
+            + "Status: 5.1.1\r\n"
+            + "Remote-MTA: dns; mail.example.org\r\n"
+            + "Diagnostic-Code: smtp; 550 5.1.1 <Nobody@Example.org>: Recipient address\r\n"
+            + "    rejected: User unknown in virtual mailbox table\r\n"
+            + "\r\n"
+            + "Final-Recipient: rfc822; full@example.net\r\n"
+            + "Action: failed\r\n"
+            + "Status: 4.2.2\r\n"
+            + "Diagnostic-Code: smtp; 452 4.2.2 Mailbox full\r\n"
+            + "\r\n"
+            + "--B7A3C1E02.1738346400/mx.example.com\r\n"
+            + "Content-Description: Undelivered Message Headers\r\n"
+            + "Content-Type: text/rfc822-headers\r\n"
+            + "\r\n"
+            + "From: Sender <sender@example.com>\r\n"
+            + "To: Nobody@Example.org, full@example.net\r\n"
+            + "Subject: Q1 report\r\n"
+            + "Message-ID: <20250131180000.q1report@emailautomation>\r\n"
+            + "\r\n"
+            + "--B7A3C1E02.1738346400/mx.example.com--\r\n";
+
+    @Test
+    void tellsHardBouncesFromSoftOnes() throws Exception {
+        List<DeliveryReport> reports = ReportParser.parse(message(POSTFIX_DSN));
+
+        assertEquals(2, reports.size());
+        DeliveryReport unknownUser = reports.get(0);
+        assertEquals(DeliveryReport.Kind.HARD_BOUNCE, unknownUser.getKind());
+        assertEquals("nobody@example.org", unknownUser.getRecipient());
+        assertEquals("20250131180000.q1report", unknownUser.getMessageId());
+        assertEquals("5.1.1", unknownUser.getStatus());
+        assertTrue(unknownUser.getDiagnostic().startsWith("smtp; 550 5.1.1"), unknownUser.getDiagnostic());
+
+        DeliveryReport mailboxFull = reports.get(1);
+        assertEquals(DeliveryReport.Kind.SOFT_BOUNCE, mailboxFull.getKind());
+        assertEquals("full@example.net", mailboxFull.getRecipient());
+        assertEquals("4.2.2", mailboxFull.getStatus());
+    }
+
+    @Test
+    void readsDelaysAndSuccessNotices() throws Exception {
+        String dsn = ""
+                + "Content-Type: multipart/report; report-type=delivery-status; boundary=\"=_dsn\"\r\n"
+                + "\r\n"
+                + "--=_dsn\r\n"
+                + "Content-Type: message/delivery-status\r\n"
+                + "\r\n"
+                + "Reporting-MTA: dns; relay.example.com\r\n"
+                + "\r\n"
+                + "Final-Recipient: rfc822; slow@example.org\r\n"
+                + "Action: delayed\r\n"
+                + "Status: 4.4.7\r\n"
+                + "Will-Retry-Until: Sat, 1 Feb 2025 18:00:00 +0000\r\n"
+                + "\r\n"
+                + "Final-Recipient: rfc822; <ok@example.org>\r\n"
+                + "Action: delivered\r\n"
+                + "Status: 2.0.0\r\n"
+                + "\r\n"
+                + "Final-Recipient: rfc822; odd@example.org\r\n"
+                + "Action: vanished\r\n"
+                + "Status: 2.0.0\r\n"
+                + "\r\n"
+                + "--=_dsn\r\n"
+                + "Content-Type: message/rfc822\r\n"
+                + "\r\n"
+                + "Message-ID: <notours@mail.example.com>\r\n"
+                + "Subject: Hello\r\n"
+                + "\r\n"
+                + "Original body that is never read.\r\n"
+                + "--=_dsn--\r\n";
+
+        List<DeliveryReport> reports = ReportParser.parse(message(dsn));
+
+        assertEquals(2, reports.size());
+        assertEquals(DeliveryReport.Kind.DELAYED, reports.get(0).getKind());
+        assertEquals(DeliveryReport.Kind.DELIVERED, reports.get(1).getKind());
+        assertEquals("ok@example.org", reports.get(1).getRecipient());
+        // A Message-ID we did not generate is kept whole and simply won't match
+        assertEquals("<notours@mail.example.com>", reports.get(0).getMessageId());
+    }
+
+    @Test
+    void readReceiptWithoutOriginalMessageIdFallsBackToTheReturnedHeaders() throws Exception {
+        String mdn = ""
+                + "From: Reader <Reader@Example.org>\r\n"
+                + "Subject: Read: Q1 report\r\n"
+                + "Content-Type: multipart/report; report-type=disposition-notification;\r\n"
+                + " boundary=\"mdn-boundary\"\r\n"
+                + "\r\n"
+                + "--mdn-boundary\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "\r\n"
+                + "Your message was displayed.\r\n"
+                + "--mdn-boundary\r\n"
+                + "Content-Type: message/disposition-notification\r\n"
+                + "\r\n"
+                + "Reporting-UA: reader.example.org; Thunderbird\r\n"
+                + "Final-Recipient: rfc822;Reader@Example.org\r\n"
+                + "Disposition: manual-action/MDN-sent-manually; displayed\r\n"
+                + "\r\n"
+                + "--mdn-boundary\r\n"
+                + "Content-Type: text/rfc822-headers\r\n"
+                + "\r\n"
+                + "Message-ID: <q1report@emailautomation>\r\n"
+                + "\r\n"
+                + "--mdn-boundary--\r\n";
+
+        List<DeliveryReport> reports = ReportParser.parse(message(mdn));
+
+        assertEquals(1, reports.size());
+        DeliveryReport read = reports.get(0);
+        assertEquals(DeliveryReport.Kind.READ, read.getKind());
+        assertEquals("reader@example.org", read.getRecipient());
+        assertEquals("q1report", read.getMessageId());
+        assertEquals("manual-action/MDN-sent-manually; displayed", read.getStatus());
+    }
+
+    @Test
+    void reportWithNoMessageIdAtAllStillParses() throws Exception {
+        String mdn = ""
+                + "Content-Type: multipart/report; report-type=disposition-notification; boundary=b\r\n"
+                + "\r\n"
+                + "--b\r\n"
+                + "Content-Type: message/disposition-notification\r\n"
+                + "\r\n"
+                + "Final-Recipient: rfc822; reader@example.org\r\n"
+                + "Disposition: automatic-action/MDN-sent-automatically; displayed\r\n"
+                + "\r\n"
+                + "--b--\r\n";
+
+        List<DeliveryReport> reports = ReportParser.parse(message(mdn));
+
+        assertEquals(1, reports.size());
+        assertNull(reports.get(0).getMessageId());
+    }
+
+    @Test
+    void deletedWithoutReadingIsNotAReceipt() throws Exception {
+        String mdn = ""
+                + "Content-Type: multipart/report; report-type=disposition-notification; boundary=b\r\n"
+                + "\r\n"
+                + "--b\r\n"
+                + "Content-Type: message/disposition-notification\r\n"
+                + "\r\n"
+                + "Final-Recipient: rfc822; reader@example.org\r\n"
+                + "Original-Message-ID: <q1report@emailautomation>\r\n"
+                + "Disposition: manual-action/MDN-sent-manually; deleted\r\n"
+                + "\r\n"
+                + "--b--\r\n";
+
+        assertTrue(ReportParser.parse(message(mdn)).isEmpty());
+    }
+
+    @Test
+    void ordinaryMailIsIgnored() throws Exception {
+        String reply = ""
+                + "From: someone@example.org\r\n"
+                + "Subject: Re: Q1 report\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "\r\n"
+                + "Thanks, got it.\r\n";
+
+        assertTrue(ReportParser.parse(message(reply)).isEmpty());
+    }
+
+    private static MimeMessage message(String raw) throws Exception {
+        return new MimeMessage(ReportSource.LOCAL_SESSION,
+                new ByteArrayInputStream(raw.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
@@ -0,0 +1,98 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.emailautomation.models.EmailConfig;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ScheduleJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void credentialsComeFromTheDefaultsOnReplay() throws IOException {
+        Path path = dir.resolve("schedule.journal");
+        try (ScheduleJournal journal = new ScheduleJournal(path, defaults("old-password"))) {
+            journal.add(message("first").toBuilder().password("old-password").build());
+        }
+
+        String journaled = new String(Files.readAllBytes(path), StandardCharsets.ISO_8859_1);
+        assertFalse(journaled.contains("old-password"));
+
+        try (ScheduleJournal journal = new ScheduleJournal(path, defaults("new-password"))) {
+            List<EmailConfig> pending = journal.pending();
+            assertEquals(1, pending.size());
+            EmailConfig config = pending.get(0);
+            assertEquals("sender@example.com", config.getUser());
+            assertEquals("new-password", config.getPassword());
+            assertEquals("sender@example.com", config.getFrom());
+            assertNull(config.getRawSubject());
+            assertNull(config.getRawTeamName());
+            assertEquals(List.of("a@example.org"), config.getTo());
+        }
+    }
+
+    @Test
+    void finishedMessagesAreNotReplayed() throws IOException {
+        Path path = dir.resolve("schedule.journal");
+        try (ScheduleJournal journal = new ScheduleJournal(path, defaults("secret"))) {
+            journal.add(message("first"));
+            journal.add(message("second"));
+            journal.markDone("first");
+        }
+
+        try (ScheduleJournal journal = new ScheduleJournal(path, defaults("secret"))) {
+            List<EmailConfig> pending = journal.pending();
+            assertEquals(1, pending.size());
+            assertEquals("second", pending.get(0).getMessageId());
+        }
+    }
+
+    @Test
+    void partialLastRecordIsDropped() throws IOException {
+        Path path = dir.resolve("schedule.journal");
+        try (ScheduleJournal journal = new ScheduleJournal(path, defaults("secret"))) {
+            journal.add(message("first"));
+            journal.add(message("second"));
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 3));
+
+        try (ScheduleJournal journal = new ScheduleJournal(path, defaults("secret"))) {
+            assertEquals(1, journal.pending().size());
+        }
+        assertTrue(Files.size(path) < bytes.length);
+    }
+
+    private static EmailConfig defaults(String password) {
+        return EmailConfig.builder()
+                .smtpServer("smtp.example.com")
+                .port(587)
+                .user("sender@example.com")
+                .password(password)
+                .build();
+    }
+
+    private static EmailConfig message(String messageId) {
+        return EmailConfig.builder()
+                .smtpServer("smtp.example.com")
+                .port(587)
+                .user("sender@example.com")
+                .messageId(messageId)
+                .addTo("a@example.org")
+                .sendAt(Instant.now().plusSeconds(3600))
+                .build();
+    }
+}
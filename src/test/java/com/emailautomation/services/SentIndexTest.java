@@ -0,0 +1,55 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.emailautomation.models.EmailConfig;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SentIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void keepsTwoGenerations() throws IOException {
+        Path path = dir.resolve("sent.index");
+        // Any non-empty index is full, so each record starts a new generation
+        SentIndex index = new SentIndex(path, 1);
+        Path log = dir.resolve("filesendlist.log");
+
+        index.record("first", log, "q1.pdf", "/reports/q1.pdf");
+        assertFalse(Files.exists(dir.resolve("sent.index.1")));
+        index.record("second", log, null, null);
+        Map<String, SentIndex.Entry> entries = index.load();
+        assertEquals(Set.of("first", "second"), entries.keySet());
+        assertEquals("q1.pdf", entries.get("first").getAttachmentName());
+        assertEquals(log.toAbsolutePath(), entries.get("second").getLogPath());
+
+        index.record("third", log, null, null);
+        assertEquals(Set.of("second", "third"), index.load().keySet());
+    }
+
+    @Test
+    void sendsAreOnlyIndexedWhenTheConfigNamesAnIndex() throws IOException {
+        Path path = dir.resolve("sent.index");
+        EmailConfig.Builder sent = EmailConfig.builder()
+                .messageId("first")
+                .addTo("a@example.org")
+                .attachmentPath(dir.resolve("report.pdf").toString());
+        LogService logService = new LogService();
+
+        logService.recordSent(sent.build());
+        assertFalse(Files.exists(path));
+
+        logService.recordSent(sent.sentIndex(path.toString()).build());
+        assertEquals(dir.resolve("filesendlist.log").toAbsolutePath(),
+                new SentIndex(path).load().get("first").getLogPath());
+    }
+}
@@ -0,0 +1,198 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+@Timeout(30)
+class SpoolDirectoryTest {
+    // Short enough that a dead node is noticed within a test
+    private static final Duration LEASE = Duration.ofMillis(200);
+
+    @TempDir
+    Path spool;
+
+    @Test
+    void claimsParamFilesTogetherWithTheirSiblings() throws IOException {
+        spoolParamFile("one", ".txt", ".list");
+        spoolParamFile("two");
+        spoolParamFile("three");
+
+        try (SpoolDirectory node = new SpoolDirectory(spool, "node-a", LEASE)) {
+            List<String> claimed = new ArrayList<>(node.claim(2));
+            assertEquals(2, claimed.size());
+            claimed.addAll(node.claim(2));
+            assertEquals(3, claimed.size());
+            assertTrue(node.claim(2).isEmpty());
+
+            Path ownDir = spool.resolve(".inprogress/node-a");
+            for (String paramFile : claimed) {
+                assertEquals(ownDir, Paths.get(paramFile).getParent());
+            }
+            assertTrue(Files.exists(ownDir.resolve("one.txt")));
+            assertTrue(Files.exists(ownDir.resolve("one.list")));
+            assertFalse(Files.exists(spool.resolve("one.prm")));
+        }
+    }
+
+    @Test
+    void concurrentNodesNeverClaimTheSameFile() throws Exception {
+        for (int i = 0; i < 300; i++) {
+            spoolParamFile("m" + i);
+        }
+        Set<String> claimedNames = ConcurrentHashMap.newKeySet();
+        AtomicInteger claims = new AtomicInteger();
+        List<SpoolDirectory> nodes = new ArrayList<>();
+        List<Thread> drainers = new ArrayList<>();
+        try {
+            for (String nodeId : List.of("node-a", "node-b", "node-c")) {
+                SpoolDirectory node = new SpoolDirectory(spool, nodeId, LEASE);
+                nodes.add(node);
+                Thread drainer = new Thread(() -> {
+                    try {
+                        List<String> batch;
+                        while (!(batch = node.claim(7)).isEmpty()) {
+                            for (String paramFile : batch) {
+                                claimedNames.add(Paths.get(paramFile).getFileName().toString());
+                                claims.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                drainers.add(drainer);
+                drainer.start();
+            }
+            for (Thread drainer : drainers) {
+                drainer.join();
+            }
+        } finally {
+            for (SpoolDirectory node : nodes) {
+                node.close();
+            }
+        }
+
+        assertEquals(300, claims.get());
+        assertEquals(300, claimedNames.size());
+    }
+
+    @Test
+    void finishedGroupsLeaveTheNodesDirectory() throws IOException {
+        spoolParamFile("sent", ".txt");
+        spoolParamFile("failed", ".md");
+        spoolParamFile("kept", ".html");
+
+        try (SpoolDirectory node = new SpoolDirectory(spool, "node-a", LEASE)) {
+            for (String paramFile : node.claim(3)) {
+                switch (Paths.get(paramFile).getFileName().toString()) {
+                    case "sent.prm":
+                        node.complete(paramFile);
+                        break;
+                    case "failed.prm":
+                        node.fail(paramFile);
+                        break;
+                    default:
+                        node.keep(paramFile);
+                }
+            }
+        }
+
+        Path ownDir = spool.resolve(".inprogress/node-a");
+        for (String gone : List.of("sent.prm", "sent.txt", "sent.prm.sent")) {
+            assertFalse(Files.exists(ownDir.resolve(gone)), gone);
+        }
+        for (String moved : List.of(".failed/failed.prm", ".failed/failed.md", ".kept/kept.prm", ".kept/kept.html")) {
+            assertTrue(Files.exists(spool.resolve(moved)), moved);
+        }
+    }
+
+    @Test
+    void closingPutsUnsentFilesBack() throws IOException {
+        spoolParamFile("unsent", ".txt");
+
+        SpoolDirectory node = new SpoolDirectory(spool, "node-a", LEASE);
+        assertEquals(1, node.claim(1).size());
+        node.close();
+
+        assertTrue(Files.exists(spool.resolve("unsent.prm")));
+        assertTrue(Files.exists(spool.resolve("unsent.txt")));
+        assertFalse(Files.exists(spool.resolve(".inprogress/node-a")));
+        assertFalse(Files.exists(spool.resolve(".inprogress/node-a.lease")));
+    }
+
+    @Test
+    void restartedNodeFinishesCleanupAndKeepsItsClaims() throws IOException {
+        // Left behind by a crash: one claimed file and one sent but not yet removed
+        Path ownDir = Files.createDirectories(spool.resolve(".inprogress/node-a"));
+        Files.writeString(ownDir.resolve("resume.prm"), "subject=resume");
+        Files.writeString(ownDir.resolve("done.prm.sent"), "subject=done");
+        Files.writeString(ownDir.resolve("done.txt"), "body");
+
+        try (SpoolDirectory node = new SpoolDirectory(spool, "node-a", LEASE)) {
+            assertFalse(Files.exists(ownDir.resolve("done.prm.sent")));
+            assertFalse(Files.exists(ownDir.resolve("done.txt")));
+            assertEquals(List.of(ownDir.resolve("resume.prm").toString()), node.claim(5));
+        }
+    }
+
+    @Test
+    void adoptsTheClaimsOfADeadNode() throws Exception {
+        Path inProgress = Files.createDirectories(spool.resolve(".inprogress"));
+        Path deadDir = Files.createDirectories(inProgress.resolve("node-dead"));
+        Files.writeString(inProgress.resolve("node-dead.lease"), "41");
+        Files.writeString(deadDir.resolve("orphan.prm"), "subject=orphan");
+        Files.writeString(deadDir.resolve("orphan.txt"), "body");
+
+        try (SpoolDirectory node = new SpoolDirectory(spool, "node-a", LEASE)) {
+            // The lease has to be seen unchanged for a full timeout first
+            List<String> claimed = List.of();
+            long giveUp = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+            while (claimed.isEmpty() && System.nanoTime() < giveUp) {
+                Thread.sleep(20);
+                claimed = node.claim(5);
+            }
+
+            Path ownDir = inProgress.resolve("node-a");
+            assertEquals(List.of(ownDir.resolve("orphan.prm").toString()), claimed);
+            assertTrue(Files.exists(ownDir.resolve("orphan.txt")));
+            assertFalse(Files.exists(deadDir));
+            assertFalse(Files.exists(inProgress.resolve("node-dead.lease")));
+        }
+    }
+
+    @Test
+    void liveNodesKeepTheirClaims() throws Exception {
+        spoolParamFile("busy");
+        try (SpoolDirectory live = new SpoolDirectory(spool, "node-live", LEASE);
+             SpoolDirectory other = new SpoolDirectory(spool, "node-a", LEASE)) {
+            assertEquals(1, live.claim(1).size());
+
+            Thread.sleep(LEASE.multipliedBy(5).toMillis());
+            assertTrue(other.claim(1).isEmpty());
+            assertTrue(Files.exists(spool.resolve(".inprogress/node-live/busy.prm")));
+        }
+    }
+
+    private void spoolParamFile(String base, String... siblings) throws IOException {
+        // Siblings first, as a writer dropping files into the spool would
+        for (String extension : siblings) {
+            Files.writeString(spool.resolve(base + extension), base);
+        }
+        Files.writeString(spool.resolve(base + SpoolDirectory.PARAM_EXTENSION), "subject=" + base);
+    }
+}
@@ -0,0 +1,44 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SuppressionListTest {
+
+    @Test
+    void addressesMatchRegardlessOfCase(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("suppressed.txt");
+        Files.write(file, List.of("# bounced in 2024", "Old.Bounce@Example.COM", "  "), StandardCharsets.UTF_8);
+        SuppressionList list = new SuppressionList(file);
+
+        assertEquals(1, list.size());
+        assertTrue(list.contains("old.bounce@example.com"));
+        assertTrue(list.contains(" OLD.BOUNCE@EXAMPLE.COM "));
+
+        // The same address in another case is not new
+        assertEquals(1, list.addAll(List.of("New@Example.org", "new@example.ORG", "OLD.bounce@example.com")));
+        assertTrue(list.contains("NEW@example.org"));
+        assertFalse(list.contains("other@example.org"));
+        assertEquals(List.of("# bounced in 2024", "Old.Bounce@Example.COM", "  ", "new@example.org"),
+                Files.readAllLines(file, StandardCharsets.UTF_8));
+
+        assertTrue(new SuppressionList(file).contains("New@Example.Org"));
+    }
+
+    @Test
+    void nothingIsWrittenWhenNoAddressIsNew(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("suppressed.txt");
+        SuppressionList list = new SuppressionList(file);
+
+        assertEquals(0, list.addAll(List.of()));
+        assertFalse(Files.exists(file));
+    }
+}
@@ -0,0 +1,147 @@
+package com.emailautomation.services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.emailautomation.models.EmailConfig;
+import com.emailautomation.models.RenderedEmail;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Base64;
+import java.util.List;
+import javax.mail.internet.MimeBodyPart;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TemplateBundleTest {
+    private static final byte[] LOGO = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 1, 2, 3 };
+    private static final byte[] BANNER = { 'G', 'I', 'F', '8', '9', 'a', 0, (byte) 0xff };
+
+    @TempDir
+    Path dir;
+
+    private EmailConfig branding;
+
+    @BeforeEach
+    void writeBranding() throws IOException {
+        Files.write(dir.resolve("logo.png"), LOGO);
+        Files.createDirectories(dir.resolve("images"));
+        Files.write(dir.resolve("images/banner.gif"), BANNER);
+        Files.writeString(dir.resolve("template.html"), "<html><body>"
+                + "<img src=\"{LOGO}\"><img src='images/banner.gif'>"
+                + "<img src=\"https://cdn.example.com/remote.png\"><img src=\"missing.png\">"
+                + "{BODY}{SIGNATURE}</body></html>");
+        Files.writeString(dir.resolve("signature.html"), "<p>Finance team</p>");
+        branding = EmailConfig.builder()
+                .htmlTemplate(dir.resolve("template.html").toString())
+                .signatureFile(dir.resolve("signature.html").toString())
+                .logoPath(dir.resolve("logo.png").toString())
+                .build();
+    }
+
+    @Test
+    void compiledBundleEmbedsLocalImagesOnly() throws Exception {
+        Path output = dir.resolve("branding.bundle");
+        TemplateBundle.compile(branding, output);
+        TemplateBundle bundle = TemplateBundle.load(output.toString());
+
+        List<RenderedEmail.InlineImage> images = bundle.getInlineImages();
+        assertEquals(2, images.size());
+        String logoId = images.get(0).getContentId();
+        String bannerId = images.get(1).getContentId();
+        assertTrue(logoId.startsWith("logo_") && logoId.endsWith("@emailautomation"), logoId);
+        assertTrue(bannerId.startsWith("img_"), bannerId);
+
+        String html = bundle.getHtml();
+        assertTrue(html.contains("<img src=\"cid:" + logoId + "\">"), html);
+        assertTrue(html.contains("<img src='cid:" + bannerId + "'>"), html);
+        assertTrue(html.contains("https://cdn.example.com/remote.png"), html);
+        assertTrue(html.contains("src=\"missing.png\""), html);
+        assertTrue(html.contains("{BODY}<p>Finance team</p>"), html);
+        assertFalse(html.contains("{SIGNATURE}"));
+    }
+
+    @Test
+    void partsCarryTheOriginalImageBytes() throws Exception {
+        Path output = dir.resolve("branding.bundle");
+        TemplateBundle.compile(branding, output);
+        TemplateBundle bundle = TemplateBundle.load(output.toString());
+        String logoId = bundle.getInlineImages().get(0).getContentId();
+
+        // Two messages get separate parts over the same data
+        MimeBodyPart first = bundle.newPart(logoId);
+        MimeBodyPart second = bundle.newPart(logoId);
+        assertNotSame(first, second);
+        for (MimeBodyPart part : List.of(first, second)) {
+            assertEquals("<" + logoId + ">", part.getContentID());
+            assertEquals(MimeBodyPart.INLINE, part.getDisposition());
+            assertEquals("logo.png", part.getFileName());
+            assertEquals("base64", part.getEncoding());
+            try (InputStream encoded = part.getDataHandler().getInputStream()) {
+                assertArrayEquals(LOGO, Base64.getMimeDecoder().decode(encoded.readAllBytes()));
+            }
+        }
+        assertFalse(bundle.contains("unknown@emailautomation"));
+    }
+
+    @Test
+    void contentIdsOnlyChangeWithTheImage() throws Exception {
+        TemplateBundle.compile(branding, dir.resolve("a.bundle"));
+        TemplateBundle.compile(branding, dir.resolve("b.bundle"));
+        Files.write(dir.resolve("logo.png"), BANNER);
+        TemplateBundle.compile(branding, dir.resolve("c.bundle"));
+
+        String a = TemplateBundle.load(dir.resolve("a.bundle").toString()).getInlineImages().get(0).getContentId();
+        String b = TemplateBundle.load(dir.resolve("b.bundle").toString()).getInlineImages().get(0).getContentId();
+        String c = TemplateBundle.load(dir.resolve("c.bundle").toString()).getInlineImages().get(0).getContentId();
+        assertEquals(a, b);
+        assertFalse(a.equals(c));
+    }
+
+    @Test
+    void loadIsCachedUntilTheFileChanges() throws Exception {
+        Path output = dir.resolve("branding.bundle");
+        TemplateBundle.compile(branding, output);
+        Files.setLastModifiedTime(output, FileTime.fromMillis(1_700_000_000_000L));
+        TemplateBundle first = TemplateBundle.load(output.toString());
+        assertSame(first, TemplateBundle.load(output.toString()));
+
+        Files.writeString(dir.resolve("signature.html"), "<p>Sales team</p>");
+        TemplateBundle.compile(branding, output);
+        Files.setLastModifiedTime(output, FileTime.fromMillis(1_700_000_060_000L));
+        TemplateBundle second = TemplateBundle.load(output.toString());
+        assertNotSame(first, second);
+        assertTrue(second.getHtml().contains("Sales team"));
+    }
+
+    @Test
+    void loadedCopyIsServedWhileTheFileIsBeingReplaced() throws Exception {
+        Path output = dir.resolve("branding.bundle");
+        TemplateBundle.compile(branding, output);
+        TemplateBundle loaded = TemplateBundle.load(output.toString());
+
+        Files.delete(output);
+        assertSame(loaded, TemplateBundle.load(output.toString()));
+
+        // A bundle that was never loaded has no copy to fall back on
+        assertThrows(NoSuchFileException.class, () -> TemplateBundle.load(dir.resolve("other.bundle").toString()));
+    }
+
+    @Test
+    void rejectsFilesThatAreNotBundles() throws IOException {
+        Path notABundle = dir.resolve("template.html");
+        assertThrows(IOException.class, () -> TemplateBundle.load(notABundle.toString()));
+        assertThrows(IllegalArgumentException.class,
+                () -> TemplateBundle.compile(EmailConfig.builder().build(), dir.resolve("x.bundle")));
+    }
+}
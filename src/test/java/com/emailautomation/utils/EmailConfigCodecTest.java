@@ -0,0 +1,188 @@
+package com.emailautomation.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.emailautomation.models.EmailConfig;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class EmailConfigCodecTest {
+    private static final int FIELDS_SINCE_VERSION_ONE = 6;
+
+    @Test
+    void roundTripsEveryField() throws IOException {
+        EmailConfig config = EmailConfig.builder()
+                .messageId("<20250131.abc@example.com>")
+                .smtpServer("smtp.example.com")
+                .port(587)
+                .user("sender@example.com")
+                .password("p@ss word")
+                .from("Sender <sender@example.com>")
+                .to(List.of("a@example.com", "b@example.com"))
+                .bcc(List.of("audit@example.com"))
+                .attachmentPath("C:\\reports\\q1.pdf")
+                .attachmentName("q1.pdf")
+                .attachmentPaths(List.of("/tmp/one.csv", "/tmp/two.csv"))
+                .subject("דוח רבעוני")
+                .body("שלום,\r\nמצורף הדוח.")
+                .useTLS(true)
+                .useHtml(true)
+                .debug(true)
+                .readReceipt(true)
+                .logoPath("logo.png")
+                .signatureFile("signature.html")
+                .replyTo("reply@example.com")
+                .teamName("Finance")
+                .htmlTemplate("template.html")
+                .sendAt(Instant.ofEpochMilli(1738346400123L))
+                .dkimSelector("s1")
+                .dkimKey("dkim.pem")
+                .compressOverKb(1 << 20)
+                .priority(EmailConfig.Priority.HIGH)
+                .templateBundle("campaign.bundle")
+                .archiveDir("archive")
+                .sentIndex("sent.index")
+                .build();
+
+        EmailConfig read = decode(encode(config));
+
+        assertEquals(config.getMessageId(), read.getMessageId());
+        assertEquals(config.getSmtpServer(), read.getSmtpServer());
+        assertEquals(config.getPort(), read.getPort());
+        assertNull(read.getUser());
+        assertNull(read.getPassword());
+        assertEquals(config.getFrom(), read.getFrom());
+        assertEquals(config.getTo(), read.getTo());
+        assertEquals(config.getBcc(), read.getBcc());
+        assertEquals(config.getAttachmentPath(), read.getAttachmentPath());
+        assertEquals(config.getAttachmentName(), read.getAttachmentName());
+        assertEquals(config.getAttachmentPaths(), read.getAttachmentPaths());
+        assertEquals(config.getSubject(), read.getSubject());
+        assertEquals(config.getBody(), read.getBody());
+        assertTrue(read.isUseTLS() && read.isUseHtml() && read.isDebug() && read.isReadReceipt());
+        assertEquals(config.getLogoPath(), read.getLogoPath());
+        assertEquals(config.getSignatureFile(), read.getSignatureFile());
+        assertEquals(config.getReplyTo(), read.getReplyTo());
+        assertEquals(config.getTeamName(), read.getTeamName());
+        assertEquals(config.getHtmlTemplate(), read.getHtmlTemplate());
+        assertEquals(config.getSendAt(), read.getSendAt());
+        assertEquals(config.getDkimSelector(), read.getDkimSelector());
+        assertEquals(config.getDkimKey(), read.getDkimKey());
+        assertEquals(config.getCompressOverKb(), read.getCompressOverKb());
+        assertEquals(EmailConfig.Priority.HIGH, read.getPriority());
+        assertEquals(config.getTemplateBundle(), read.getTemplateBundle());
+        assertEquals(config.getArchiveDir(), read.getArchiveDir());
+        assertEquals(config.getSentIndex(), read.getSentIndex());
+    }
+
+    @Test
+    void keepsNullsAndEmptyStringsApart() throws IOException {
+        EmailConfig read = decode(encode(EmailConfig.builder()
+                .smtpServer("")
+                .subject("")
+                .addTo("a@example.com")
+                .build()));
+
+        assertEquals("", read.getSmtpServer());
+        assertEquals("", read.getRawSubject());
+        assertNull(read.getRawBody());
+        assertNull(read.getMessageId());
+        assertNull(read.getSendAt());
+        assertNull(read.getArchiveDir());
+        assertFalse(read.isUseTLS());
+        assertEquals(EmailConfig.Priority.NORMAL, read.getPriority());
+        assertEquals(List.of("a@example.com"), read.getTo());
+    }
+
+    @Test
+    void storesFieldsAsSetRatherThanDefaulted() throws IOException {
+        EmailConfig read = decode(encode(EmailConfig.builder()
+                .user("old-account@example.com")
+                .password("secret")
+                .addTo("a@example.com")
+                .build()));
+
+        // Defaulted again from the credentials the reader supplies
+        assertNull(read.getRawFrom());
+        assertNull(read.getRawTeamName());
+        assertNull(read.getRawSubject());
+        assertNull(read.getRawBody());
+        assertEquals("new-account@example.com",
+                read.toBuilder().user("new-account@example.com").build().getFrom());
+    }
+
+    @Test
+    void readsRecordsJournaledByVersionOne() throws IOException {
+        byte[] current = encode(EmailConfig.builder()
+                .smtpServer("smtp.example.com")
+                .port(25)
+                .addTo("a@example.com")
+                .subject("Journaled before DKIM support")
+                .build());
+
+        // Version 1 stopped before the fields added since; each is null here
+        // and takes a single byte. Up to version 5 the user and password
+        // followed the port.
+        byte[] versionOne = withCredentials(Arrays.copyOf(current, current.length - FIELDS_SINCE_VERSION_ONE));
+        versionOne[0] = 1;
+        EmailConfig read = decode(versionOne);
+
+        assertEquals("smtp.example.com", read.getSmtpServer());
+        assertEquals("sender", read.getUser());
+        assertEquals("secret", read.getPassword());
+        assertEquals(25, read.getPort());
+        assertEquals(List.of("a@example.com"), read.getTo());
+        assertEquals("Journaled before DKIM support", read.getSubject());
+        assertNull(read.getDkimSelector());
+        assertEquals(0, read.getCompressOverKb());
+        assertNull(read.getTemplateBundle());
+        assertNull(read.getArchiveDir());
+        assertNull(read.getSentIndex());
+        assertArrayEquals(current, encode(read));
+    }
+
+    @Test
+    void rejectsRecordsFromAnotherVersion() throws IOException {
+        byte[] record = encode(EmailConfig.builder().build());
+        for (int version : new int[] { 0, 8, 255 }) {
+            record[0] = (byte) version;
+            assertThrows(IOException.class, () -> decode(record), "version " + version);
+        }
+    }
+
+    /**
+     * Insert a user and password after the port of a record for
+     * smtp.example.com without a message ID
+     */
+    private static byte[] withCredentials(byte[] record) {
+        int afterPort = 1 + 1 + 1 + 1 + "smtp.example.com".length() + 1;
+        byte[] credentials = { 7, 's', 'e', 'n', 'd', 'e', 'r', 7, 's', 'e', 'c', 'r', 'e', 't' };
+        byte[] withCredentials = new byte[record.length + credentials.length];
+        System.arraycopy(record, 0, withCredentials, 0, afterPort);
+        System.arraycopy(credentials, 0, withCredentials, afterPort, credentials.length);
+        System.arraycopy(record, afterPort, withCredentials, afterPort + credentials.length, record.length - afterPort);
+        return withCredentials;
+    }
+
+    private static byte[] encode(EmailConfig config) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EmailConfigCodec.write(new DataOutputStream(bytes), config);
+        return bytes.toByteArray();
+    }
+
+    private static EmailConfig decode(byte[] record) throws IOException {
+        return EmailConfigCodec.read(new DataInputStream(new ByteArrayInputStream(record)));
+    }
+}
@@ -0,0 +1,123 @@
+package com.emailautomation.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.emailautomation.models.EmailConfig;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class EmailConfigLoaderTest {
+    // Param files come from DOS tools and are read as code page 862
+    private static final Charset DOS_HEBREW = Charset.forName("IBM862");
+
+    @TempDir
+    Path dir;
+
+    private Path paramFile(String name, String content) throws IOException {
+        return Files.write(dir.resolve(name), content.getBytes(DOS_HEBREW));
+    }
+
+    private void sibling(String name, String content) throws IOException {
+        Files.writeString(dir.resolve(name), content, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void acceptsCrLfAndBareLineEndings() throws IOException {
+        Path file = paramFile("mixed.prm", "smtp_server=smtp.example.com\r\n"
+                + "  port =  587  \n"
+                + "user=sender@example.com\r"
+                + "password=a=b=c\r\n"
+                + "\r\n"
+                + "this line has no separator\n"
+                + "unknown_key=ignored\n"
+                + "to= a@example.com , ,b@example.com\n"
+                + "cert=True\n"
+                + "subject=");
+
+        EmailConfig config = EmailConfigLoader.loadFromFile(file.toString());
+
+        assertEquals("smtp.example.com", config.getSmtpServer());
+        assertEquals(587, config.getPort());
+        assertEquals("sender@example.com", config.getUser());
+        // Only the first '=' separates key and value
+        assertEquals("a=b=c", config.getPassword());
+        assertEquals(List.of("a@example.com", "b@example.com"), config.getTo());
+        assertTrue(config.isUseTLS());
+        assertEquals("", config.getSubject());
+    }
+
+    @Test
+    void reversesVisualOrderHebrew() throws IOException {
+        Path file = paramFile("hebrew.prm", "subject=םולש\r\nteamname=Finance\r\n");
+
+        EmailConfig config = EmailConfigLoader.loadFromFile(file.toString());
+
+        assertEquals("שלום", config.getSubject());
+        assertEquals("Finance", config.getTeamName());
+    }
+
+    @Test
+    void markdownSiblingWinsOverTextAndInlineBody() throws IOException {
+        Path file = paramFile("campaign.prm", "body=inline body\r\n");
+        sibling("campaign.txt", "text body");
+        sibling("campaign.md", "# markdown body");
+        sibling("campaign.list", "# comment\n/tmp/one.pdf\n\nfile2=/tmp/two.pdf\n");
+
+        EmailConfig config = EmailConfigLoader.loadFromFile(file.toString());
+
+        assertEquals("# markdown body", config.getBody());
+        assertTrue(config.isUseHtml());
+        assertEquals(List.of("/tmp/one.pdf", "/tmp/two.pdf"), config.getAttachmentPaths());
+    }
+
+    @Test
+    void bulkLoadingAgreesWithLoadingOneAtATime() throws IOException {
+        Path markdown = paramFile("one.prm", "subject=one\r\nto=a@example.com\r\n");
+        sibling("one.md", "markdown");
+        Path text = paramFile("two.prm", "subject=two\r\nto=b@example.com\r\n");
+        sibling("two.txt", "text");
+        sibling("two.list", "/tmp/two.pdf\n");
+        Path inline = paramFile("three.prm", "subject=three\r\nbody=inline\r\n");
+        // Whether six.TXT belongs to Six.prm depends on the file system; both paths must agree
+        Path mixedCase = paramFile("Six.prm", "subject=six\r\nbody=inline\r\n");
+        sibling("six.TXT", "upper-case sibling");
+        Path badPort = paramFile("four.prm", "port=not a number\r\n");
+        Path missing = dir.resolve("five.prm");
+
+        Map<String, EmailConfig> loaded = EmailConfigLoader.loadAll(List.of(markdown.toString(), text.toString(),
+                inline.toString(), mixedCase.toString(), badPort.toString(), missing.toString()));
+
+        // Files that fail to load are left out, as loadFromFile would throw for them
+        assertEquals(Set.of(markdown.toString(), text.toString(), inline.toString(), mixedCase.toString()),
+                loaded.keySet());
+        for (Path file : List.of(markdown, text, inline, mixedCase)) {
+            EmailConfig alone = EmailConfigLoader.loadFromFile(file.toString());
+            EmailConfig inBulk = loaded.get(file.toString());
+            assertEquals(alone.getSubject(), inBulk.getSubject(), file.toString());
+            assertEquals(alone.getBody(), inBulk.getBody(), file.toString());
+            assertEquals(alone.isUseHtml(), inBulk.isUseHtml(), file.toString());
+            assertEquals(alone.getTo(), inBulk.getTo(), file.toString());
+            assertEquals(alone.getAttachmentPaths(), inBulk.getAttachmentPaths(), file.toString());
+        }
+        assertEquals("markdown", loaded.get(markdown.toString()).getBody());
+        assertEquals("text", loaded.get(text.toString()).getBody());
+        assertEquals(List.of("/tmp/two.pdf"), loaded.get(text.toString()).getAttachmentPaths());
+        assertEquals("inline", loaded.get(inline.toString()).getBody());
+    }
+
+    @Test
+    void blankArchiveDirTurnsArchivingOff() throws IOException {
+        Path file = paramFile("plain.prm", "archive_dir=\r\n");
+        assertNull(EmailConfigLoader.loadFromFile(file.toString()).getArchiveDir());
+    }
+}
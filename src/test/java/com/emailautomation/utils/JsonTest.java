@@ -0,0 +1,67 @@
+package com.emailautomation.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class JsonTest {
+
+    @Test
+    void parsesASubmission() {
+        Map<?, ?> request = (Map<?, ?>) Json.parse("{\n"
+                + "  \"to\": [\"a@example.com\", \"b@example.com\"],\n"
+                + "  \"subject\": \"Invoice\", \"port\": 587, \"ratio\": -1.5e2,\n"
+                + "  \"use_html\": true, \"debug\": false, \"reply_to\": null,\n"
+                + "  \"headers\": {}, \"bcc\": []\n"
+                + "}");
+
+        // Keys keep their order, as the API echoes fields back in request order
+        assertEquals(List.of("to", "subject", "port", "ratio", "use_html", "debug", "reply_to", "headers", "bcc"),
+                List.copyOf(request.keySet()));
+        assertEquals(List.of("a@example.com", "b@example.com"), request.get("to"));
+        assertEquals(587L, request.get("port"));
+        assertEquals(-150.0, request.get("ratio"));
+        assertEquals(true, request.get("use_html"));
+        assertEquals(false, request.get("debug"));
+        assertTrue(request.containsKey("reply_to"));
+        assertNull(request.get("reply_to"));
+        assertEquals(Map.of(), request.get("headers"));
+        assertEquals(List.of(), request.get("bcc"));
+    }
+
+    @Test
+    void decodesEscapes() {
+        assertEquals("a\"b\\c/d\b\f\n\r\tשלום",
+                Json.parse("\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\\u05e9\\u05DC\u05d5\u05dd\""));
+    }
+
+    @Test
+    void quotedStringsParseBackUnchanged() {
+        String[] values = { "", "plain", "quote \" and \\ backslash", "line\r\nbreak\ttab",
+                "bell \u0007 and nul \u0000", "עברית" };
+        for (String value : values) {
+            assertEquals(value, Json.parse(Json.quote(value)));
+        }
+        assertEquals("null", Json.quote(null));
+        assertEquals("\"\\u0007\"", Json.quote("\u0007"));
+    }
+
+    @Test
+    void reportsWhereMalformedInputGoesWrong() {
+        assertEquals("Expected ':' at position 5",
+                assertThrows(IllegalArgumentException.class, () -> Json.parse("{\"a\" 1}")).getMessage());
+        assertEquals("Unexpected trailing content at position 3",
+                assertThrows(IllegalArgumentException.class, () -> Json.parse("{} {}")).getMessage());
+
+        String[] malformed = { "", "{", "{\"a\":1,}", "{a:1}", "[1 2]", "\"open", "\"bad \\x escape\"",
+                "\"\\u12\"", "tru", "nul", "-", "1.2.3", "@" };
+        for (String text : malformed) {
+            assertThrows(IllegalArgumentException.class, () -> Json.parse(text), text);
+        }
+    }
+}
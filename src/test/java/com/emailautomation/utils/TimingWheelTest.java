@@ -0,0 +1,99 @@
+package com.emailautomation.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+    // With a 1 ms tick the first wheel spans 256 ms, so the delays below
+    // land on both sides of the first cascade
+    private static final long TICK = 1;
+    private static final long LATE_LIMIT = 200;
+
+    /** Records when each item came out and counts down once per item. */
+    private static class Releases<T> {
+        final Map<T, Long> at = new ConcurrentHashMap<>();
+        final CountDownLatch remaining;
+
+        Releases(int expected) {
+            remaining = new CountDownLatch(expected);
+        }
+
+        void record(T item) {
+            at.put(item, System.currentTimeMillis());
+            remaining.countDown();
+        }
+
+        void awaitAll() throws InterruptedException {
+            assertTrue(remaining.await(5, TimeUnit.SECONDS), "only released " + at.keySet());
+        }
+
+        void assertOnTime(T item, long deadline) {
+            long released = at.get(item);
+            assertTrue(released >= deadline, item + " released " + (deadline - released) + " ms early");
+            assertTrue(released <= deadline + LATE_LIMIT, item + " released " + (released - deadline) + " ms late");
+        }
+    }
+
+    @Test
+    void releasesAcrossTheCascadeNoEarlierThanDue() throws InterruptedException {
+        long[] delays = { 5, 255, 256, 257, 300, 511, 512, 700 };
+        Releases<Long> releases = new Releases<>(delays.length);
+        long start = System.currentTimeMillis();
+
+        try (TimingWheel<Long> wheel = new TimingWheel<>(TICK, releases::record)) {
+            for (long delay : delays) {
+                wheel.schedule(start + delay, delay);
+            }
+            releases.awaitAll();
+            assertEquals(0, wheel.size());
+        }
+        for (long delay : delays) {
+            releases.assertOnTime(delay, start + delay);
+        }
+    }
+
+    @Test
+    void catchesUpAfterIdling() throws InterruptedException {
+        Releases<String> releases = new Releases<>(2);
+
+        try (TimingWheel<String> wheel = new TimingWheel<>(TICK, releases::record)) {
+            // More than a full turn of the first wheel passes with nothing held
+            Thread.sleep(600);
+            long now = System.currentTimeMillis();
+            wheel.schedule(now + 20, "soon");
+            wheel.schedule(now + 400, "later");
+
+            releases.awaitAll();
+            releases.assertOnTime("soon", now + 20);
+            releases.assertOnTime("later", now + 400);
+        }
+    }
+
+    @Test
+    void overdueItemsAreReleasedBeforeScheduleReturns() {
+        Map<String, Thread> threads = new ConcurrentHashMap<>();
+        try (TimingWheel<String> wheel = new TimingWheel<>(TICK,
+                item -> threads.put(item, Thread.currentThread()))) {
+            wheel.schedule(System.currentTimeMillis() - 1000, "overdue");
+
+            assertSame(Thread.currentThread(), threads.get("overdue"));
+            assertEquals(0, wheel.size());
+        }
+    }
+
+    @Test
+    void holdsFutureItems() throws InterruptedException {
+        try (TimingWheel<String> wheel = new TimingWheel<>(TICK, item -> { })) {
+            wheel.schedule(System.currentTimeMillis() + 60_000, "next minute");
+            Thread.sleep(50);
+            assertEquals(1, wheel.size());
+        }
+    }
+}